@@ -0,0 +1,439 @@
+/*
+ * The language-java constructors the translator emits, grouped by the
+ * Haskell type they belong to, with what each of their arguments is.
+ * This is the schema for the binary output format (see BinaryAstOutput),
+ * and running this class generates the matching Haskell decoder:
+ *
+ *   java AstSchema JavaAstDecoder.hs
+ *
+ * having first checked the schema against what the translator prints, as
+ * its metaInf table and its tables of constructor names describe it, and
+ * failed if they differ.
+ *
+ * A constructor is written as its name followed by the types of its
+ * arguments, with "[T]" for a list, "?T" for Maybe and "(A,B)" for a pair.
+ * Arguments of the following types are encoded directly:
+ *   String           varint byte count, then UTF-8
+ *   Integer, Int     zigzag varint
+ *   Double           8 bytes, IEEE 754, big-endian
+ *   Char             varint code point
+ * A constructor is encoded as its tag, its index within its type, followed
+ * by its arguments. A list is a varint element count followed by the
+ * elements, and a tuple is just its components in order. Varints are
+ * unsigned LEB128.
+ *
+ * The shared (DAG) variant differs in two ways. Every node read in full,
+ * other than nullary constructors and Just, is numbered in order within
+ * its type, and wherever a node is expected the tag SHARED_REF followed by
+ * a varint index may appear instead, meaning that node again. Strings are
+ * numbered as well: a string is written as 0 followed by the string the
+ * first time, and as its number plus one after that.
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class AstSchema {
+
+    static final int SHARED_REF = 0xff;
+
+    static class Constructor {
+        final String type;
+        final int typeIndex;
+        final String name;
+        final int tag;
+        final String[] argTypes;
+
+        /*
+         * One letter per argument, saying how it is encoded: S, I, D and C
+         * for the directly encoded types in the order listed above, v for
+         * anything else
+         */
+        final String args;
+
+        Constructor(String type, int typeIndex, String name, int tag, String[] argTypes) {
+            this.type = type;
+            this.typeIndex = typeIndex;
+            this.name = name;
+            this.tag = tag;
+            this.argTypes = argTypes;
+
+            StringBuilder kinds = new StringBuilder();
+            for(String t : argTypes)
+                kinds.append(kindOf(t));
+            this.args = kinds.toString();
+        }
+
+        int arity() {
+            return args.length();
+        }
+
+        /*
+         * Whether the shared variant numbers this node. The Prelude types
+         * are left out since they are polymorphic, and nullary constructors
+         * since a reference would never be shorter.
+         */
+        boolean shared() {
+            return arity() > 0 && !isPrelude(type);
+        }
+    }
+
+    private static final Map<String, List<Constructor>> types = new LinkedHashMap<String, List<Constructor>>();
+    private static final Map<String, Constructor> constructors = new HashMap<String, Constructor>();
+
+    private static void type(String name, String... specs) {
+        List<Constructor> cs = new ArrayList<Constructor>();
+        for(String spec : specs) {
+            String[] parts = spec.split(" ");
+            Constructor c = new Constructor(name, types.size(), parts[0], cs.size(),
+                                            Arrays.copyOfRange(parts, 1, parts.length));
+            if(constructors.put(c.name, c) != null)
+                throw new IllegalStateException("Duplicate constructor " + c.name);
+            cs.add(c);
+        }
+        types.put(name, cs);
+    }
+
+    static {
+        // Prelude types; their decoders are written out by hand below
+        type("Bool", "False", "True");
+        type("Maybe", "Nothing", "Just a");
+
+        type("CompilationUnit", "CompilationUnit ?PackageDecl [ImportDecl] [TypeDecl]");
+        type("PackageDecl", "PackageDecl Name");
+        type("ImportDecl", "ImportDecl Bool Name Bool");
+        type("TypeDecl", "ClassTypeDecl ClassDecl", "InterfaceTypeDecl InterfaceDecl");
+        type("ClassDecl", "ClassDecl [Modifier] Ident [TypeParam] ?RefType [RefType] ClassBody",
+             "EnumDecl [Modifier] Ident [RefType] EnumBody");
+        type("ClassBody", "ClassBody [Decl]");
+        type("EnumBody", "EnumBody [EnumConstant] [Decl]");
+        type("EnumConstant", "EnumConstant Ident [Exp] ?ClassBody");
+        type("InterfaceDecl", "InterfaceDecl [Modifier] Ident [TypeParam] [RefType] InterfaceBody");
+        type("InterfaceBody", "InterfaceBody [MemberDecl]");
+        type("Decl", "MemberDecl MemberDecl", "InitDecl Bool Block");
+        type("MemberDecl", "FieldDecl [Modifier] Type [VarDecl]",
+             "MethodDecl [Modifier] [TypeParam] ?Type Ident [FormalParam] [RefType] ?Exp MethodBody",
+             "ConstructorDecl [Modifier] [TypeParam] Ident [FormalParam] [RefType] ConstructorBody",
+             "MemberClassDecl ClassDecl", "MemberInterfaceDecl InterfaceDecl");
+        type("VarDecl", "VarDecl VarDeclId ?VarInit");
+        type("VarDeclId", "VarId Ident", "VarDeclArray VarDeclId");
+        type("VarInit", "InitExp Exp", "InitArray ArrayInit");
+        type("FormalParam", "FormalParam [Modifier] Type Bool VarDeclId");
+        type("MethodBody", "MethodBody ?Block");
+        type("ConstructorBody", "ConstructorBody ?ExplConstrInv [BlockStmt]");
+        type("ExplConstrInv", "ThisInvoke [RefType] [Exp]", "SuperInvoke [RefType] [Exp]",
+             "PrimarySuperInvoke Exp [RefType] [Exp]");
+        type("Modifier", "Public", "Private", "Protected", "Abstract", "Final", "Static", "StrictFP",
+             "Transient", "Volatile", "Native", "Synchronized_");
+        type("Block", "Block [BlockStmt]");
+        type("BlockStmt", "BlockStmt Stmt", "LocalClass ClassDecl", "LocalVars [Modifier] Type [VarDecl]");
+        type("Stmt", "StmtBlock Block", "IfThen Exp Stmt", "IfThenElse Exp Stmt Stmt", "While Exp Stmt",
+             "BasicFor ?ForInit ?Exp ?[Exp] Stmt", "EnhancedFor [Modifier] Type Ident Exp Stmt", "Empty",
+             "ExpStmt Exp", "Assert Exp ?Exp", "Switch Exp [SwitchBlock]", "Do Stmt Exp", "Break ?Ident",
+             "Continue ?Ident", "Return ?Exp", "Synchronized Exp Block", "Throw Exp",
+             "Try Block [Catch] ?Block", "Labeled Ident Stmt");
+        type("Catch", "Catch FormalParam Block");
+        type("SwitchBlock", "SwitchBlock SwitchLabel [BlockStmt]");
+        type("SwitchLabel", "SwitchCase Exp", "Default");
+        type("ForInit", "ForLocalVars [Modifier] Type [VarDecl]", "ForInitExps [Exp]");
+        type("Exp", "Lit Literal", "ClassLit ?Type", "This", "ThisClass Name",
+             "InstanceCreation [TypeArgument] TypeDeclSpecifier [Exp] ?ClassBody",
+             "QualInstanceCreation Exp [TypeArgument] Ident [Exp] ?ClassBody",
+             "ArrayCreate Type [Exp] Int", "ArrayCreateInit Type Int ArrayInit", "FieldAccess FieldAccess",
+             "MethodInv MethodInvocation", "ArrayAccess ArrayIndex", "ExpName Name",
+             "PostIncrement Exp", "PostDecrement Exp", "PreIncrement Exp", "PreDecrement Exp",
+             "PrePlus Exp", "PreMinus Exp", "PreBitCompl Exp", "PreNot Exp", "Cast Type Exp",
+             "BinOp Exp Op Exp", "InstanceOf Exp RefType", "Cond Exp Exp Exp", "Assign Lhs AssignOp Exp");
+        type("TypeDeclSpecifier", "TypeDeclSpecifier ClassType");
+        type("Lhs", "NameLhs Name", "FieldLhs FieldAccess", "ArrayLhs ArrayIndex");
+        type("ArrayIndex", "ArrayIndex Exp [Exp]");
+        type("FieldAccess", "PrimaryFieldAccess Exp Ident", "SuperFieldAccess Ident", "ClassFieldAccess Name Ident");
+        type("MethodInvocation", "MethodCall Name [Exp]", "PrimaryMethodCall Exp [RefType] Ident [Exp]",
+             "SuperMethodCall [RefType] Ident [Exp]", "ClassMethodCall Name [RefType] Ident [Exp]");
+        type("ArrayInit", "ArrayInit [VarInit]");
+        type("Type", "PrimType PrimType", "RefType RefType");
+        type("RefType", "ClassRefType ClassType", "ArrayType Type");
+        type("ClassType", "ClassType [(Ident,[TypeArgument])]");
+        type("TypeArgument", "Wildcard ?WildcardBound", "ActualType RefType");
+        type("WildcardBound", "ExtendsBound RefType", "SuperBound RefType");
+        type("PrimType", "BooleanT", "ByteT", "ShortT", "IntT", "LongT", "CharT", "FloatT", "DoubleT");
+        type("TypeParam", "TypeParam Ident [RefType]");
+        type("Ident", "Ident String");
+        type("Name", "Name [Ident]");
+        type("Literal", "Int Integer", "Word Integer", "Float Double", "Double Double", "Boolean Bool",
+             "Char Char", "String String", "Null");
+        type("Op", "Mult", "Div", "Rem", "Add", "Sub", "LShift", "RShift", "RRShift", "LThan", "GThan",
+             "LThanE", "GThanE", "Equal", "NotEq", "And", "Or", "Xor", "CAnd", "COr");
+        type("AssignOp", "EqualA", "MultA", "DivA", "RemA", "AddA", "SubA", "LShiftA", "RShiftA",
+             "RRShiftA", "AndA", "XorA", "OrA");
+    }
+
+    private static char kindOf(String type) {
+        if(type.equals("String"))
+            return 'S';
+        else if(type.equals("Integer") || type.equals("Int"))
+            return 'I';
+        else if(type.equals("Double"))
+            return 'D';
+        else if(type.equals("Char"))
+            return 'C';
+        else
+            return 'v';
+    }
+
+    private static boolean isPrelude(String type) {
+        return type.equals("Bool") || type.equals("Maybe");
+    }
+
+    static int typeCount() {
+        return types.size();
+    }
+
+    static List<Constructor> constructorsOf(String type) {
+        List<Constructor> cs = types.get(type);
+        if(cs == null)
+            throw new IllegalArgumentException("No type " + type + " in the binary schema");
+        return cs;
+    }
+
+    static Constructor constructor(String name) {
+        Constructor c = constructors.get(name);
+        if(c == null)
+            throw new IllegalArgumentException("No constructor " + name + " in the binary schema");
+        return c;
+    }
+
+    /*
+     * The constructor with the given name, or null if there is none
+     */
+    static Constructor find(String name) {
+        return constructors.get(name);
+    }
+
+    static boolean isInteger(String type) {
+        return kindOf(type) == 'I';
+    }
+
+    //- Haskell decoder -----------------------------------
+
+    private static final String[] PRELUDE = {
+        "-- Generated by AstSchema.java; do not edit.",
+        "--",
+        "-- Decodes the binary output of javaparser-to-hs (--binary), and its",
+        "-- shared variant (--dag), rebuilding the sharing of the latter.",
+        "",
+        "module JavaAstDecoder ( decodeCompilationUnit, decodeSharedCompilationUnit ) where",
+        "",
+        "import Control.Applicative ( (<$>), (<*>) )",
+        "import Control.Monad ( liftM, liftM2, replicateM, when )",
+        "import Control.Monad.State.Strict ( StateT, evalStateT, gets, lift, modify )",
+        "",
+        "import Data.Binary.Get",
+        "import Data.Bits ( shiftL, shiftR, testBit, (.&.), (.|.) )",
+        "import qualified Data.ByteString as B",
+        "import qualified Data.ByteString.Lazy as BL",
+        "import Data.Sequence ( Seq, (|>) )",
+        "import qualified Data.Sequence as Seq",
+        "import qualified Data.Text as T",
+        "import qualified Data.Text.Encoding as T",
+        "import Data.Word ( Word8 )",
+        "",
+        "import GHC.Float ( castWord64ToDouble )",
+        "",
+        "import Language.Java.Syntax",
+        "",
+        "--------------------------------------------------------------------------------",
+        "",
+        "decodeCompilationUnit :: B.ByteString -> Either String CompilationUnit",
+        "decodeCompilationUnit = run False",
+        "",
+        "decodeSharedCompilationUnit :: B.ByteString -> Either String CompilationUnit",
+        "decodeSharedCompilationUnit = run True",
+        "",
+        "run :: Bool -> B.ByteString -> Either String CompilationUnit",
+        "run shared b = case runGetOrFail (evalStateT decode (emptyTables shared)) (BL.fromStrict b) of",
+        "                 Left (_, _, e)  -> Left e",
+        "                 Right (_, _, x) -> Right x",
+        "",
+        "type D = StateT Tables Get",
+        "",
+        "class Decode a where",
+        "  decode :: D a",
+        "",
+        "byte :: D Word8",
+        "byte = lift getWord8",
+        "",
+        "varint :: D Integer",
+        "varint = go 0 0",
+        "  where",
+        "    go s acc = do w <- byte",
+        "                  let acc' = acc .|. (fromIntegral (w .&. 0x7f) `shiftL` s)",
+        "                  if testBit w 7 then go (s + 7) acc' else return acc'",
+        "",
+        "-- A count of things to come, each of which takes at least a byte",
+        "count :: D Int",
+        "count = do n <- varint",
+        "           left <- lift remaining",
+        "           when (n > toInteger left) $ lift $ fail $ \"count \" ++ show n ++ \" runs past the end of the input\"",
+        "           return (fromInteger n)",
+        "",
+        "integral :: Num a => D a",
+        "integral = do n <- varint",
+        "              return $ fromInteger $ if testBit n 0 then negate (n `shiftR` 1) - 1 else n `shiftR` 1",
+        "",
+        "string :: D String",
+        "string = do shared <- gets sharing",
+        "            if not shared then literal else do",
+        "              n <- varint",
+        "              if n /= 0",
+        "                then at \"string\" symbols (n - 1)",
+        "                else do s <- literal",
+        "                        modify $ \\t -> t { symbols = symbols t |> s }",
+        "                        return s",
+        "  where",
+        "    literal = do n <- count",
+        "                 liftM (T.unpack . T.decodeUtf8) $ lift $ getByteString n",
+        "",
+        "double :: D Double",
+        "double = lift $ liftM castWord64ToDouble getWord64be",
+        "",
+        "char :: D Char",
+        "char = do c <- varint",
+        "          when (c > 0x10ffff) $ lift $ fail $ \"bad character \" ++ show c",
+        "          return (toEnum (fromInteger c))",
+        "",
+        "badTag :: String -> Word8 -> D a",
+        "badTag ty t = lift $ fail $ \"bad tag \" ++ show t ++ \" for \" ++ ty",
+        "",
+        "at :: String -> (Tables -> Seq a) -> Integer -> D a",
+        "at what table i = do s <- gets table",
+        "                     if i < toInteger (Seq.length s)",
+        "                       then return (Seq.index s (fromInteger i))",
+        "                       else lift $ fail $ \"bad reference \" ++ show i ++ \" to a \" ++ what",
+        "",
+        "ref :: String -> (Tables -> Seq a) -> D a",
+        "ref what table = varint >>= at what table",
+        "",
+        "keep :: (Tables -> Seq a) -> (Seq a -> Tables -> Tables) -> D a -> D a",
+        "keep table set d = do x <- d",
+        "                      shared <- gets sharing",
+        "                      when shared $ modify $ \\t -> set (table t |> x) t",
+        "                      return x",
+        "",
+        "instance Decode a => Decode [a] where",
+        "  decode = do n <- count",
+        "              replicateM n decode",
+        "",
+        "instance (Decode a, Decode b) => Decode (a, b) where",
+        "  decode = liftM2 (,) decode decode",
+        "",
+        "instance Decode a => Decode (Maybe a) where",
+        "  decode = do t <- byte",
+        "              case t of",
+        "                0 -> return Nothing",
+        "                1 -> liftM Just decode",
+        "                _ -> badTag \"Maybe\" t",
+        "",
+        "instance Decode Bool where",
+        "  decode = do t <- byte",
+        "              case t of",
+        "                0 -> return False",
+        "                1 -> return True",
+        "                _ -> badTag \"Bool\" t",
+    };
+
+    private static String argDecoder(char kind) {
+        switch(kind) {
+        case 'v': return "decode";
+        case 'S': return "string";
+        case 'I': return "integral";
+        case 'D': return "double";
+        case 'C': return "char";
+        default: throw new IllegalArgumentException("Unknown argument kind " + kind);
+        }
+    }
+
+    private static boolean hasTable(List<Constructor> cs) {
+        for(Constructor c : cs) {
+            if(c.shared())
+                return true;
+        }
+        return false;
+    }
+
+    static void writeDecoder(PrintWriter w) {
+        for(String line : PRELUDE)
+            w.println(line);
+
+        List<String> tabled = new ArrayList<String>();
+        for(Map.Entry<String, List<Constructor>> e : types.entrySet()) {
+            if(hasTable(e.getValue()))
+                tabled.add(e.getKey());
+        }
+
+        w.println();
+        w.println("data Tables = Tables { sharing :: !Bool");
+        w.println("                     , symbols :: !(Seq String)");
+        for(String t : tabled)
+            w.println("                     , t" + t + " :: !(Seq " + t + ")");
+        w.println("                     }");
+        w.println();
+        w.println("emptyTables :: Bool -> Tables");
+        w.print("emptyTables shared = Tables shared Seq.empty");
+        for(int i = 0; i < tabled.size(); i++)
+            w.print(" Seq.empty");
+        w.println();
+
+        for(Map.Entry<String, List<Constructor>> e : types.entrySet()) {
+            String type = e.getKey();
+            if(isPrelude(type))
+                continue;
+
+            boolean table = hasTable(e.getValue());
+            if(table) {
+                w.println();
+                w.println("keep" + type + " :: D " + type + " -> D " + type);
+                w.println("keep" + type + " = keep t" + type + " (\\s t -> t { t" + type + " = s })");
+            }
+
+            w.println();
+            w.println("instance Decode " + type + " where");
+            w.println("  decode = do t <- byte");
+            w.println("              case t of");
+            if(table)
+                w.println("                " + SHARED_REF + " -> ref \"" + type + "\" t" + type);
+            for(Constructor c : e.getValue()) {
+                StringBuilder rhs = new StringBuilder();
+                if(c.arity() == 0) {
+                    rhs.append("return ").append(c.name);
+                } else {
+                    rhs.append("keep").append(type).append(" $ ");
+                    rhs.append(c.name).append(" <$> ").append(argDecoder(c.args.charAt(0)));
+                    for(int i = 1; i < c.arity(); i++)
+                        rhs.append(" <*> ").append(argDecoder(c.args.charAt(i)));
+                }
+                w.println("                " + c.tag + " -> " + rhs);
+            }
+            w.println("                _ -> badTag \"" + type + "\" t");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> problems = ToDeriveReadVisitor.schemaProblems();
+        if(!problems.isEmpty()) {
+            for(String p : problems)
+                System.err.println(p);
+            System.err.println(problems.size() + " differences between the translator and the schema");
+            System.exit(1);
+        }
+
+        PrintWriter w = new PrintWriter(new FileWriter(args[0]));
+        try {
+            writeDecoder(w);
+        } finally {
+            w.close();
+        }
+    }
+}
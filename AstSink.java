@@ -0,0 +1,40 @@
+/*
+ * Receives a translated tree as a sequence of structural events, rather
+ * than as text:
+ *
+ *   begin(name)       a constructor; its arguments follow, then end()
+ *   end()             the end of the innermost constructor
+ *   beginList()       a list; its elements follow, then endList()
+ *   endList()
+ *   beginTuple()      a tuple; its components follow, then endTuple()
+ *   endTuple()
+ *   string(text)      a string, such as an identifier, as printed between
+ *                     the quotes: Haskell escapes are not decoded
+ *   character(text)   a character literal, likewise
+ *   number(text)      an integer or floating-point number, as printed;
+ *                     also given as ASCII digits in a byte array, which
+ *                     the visitor decodes literals into
+ *   finish()          the end of the output
+ *
+ * A constructor with no arguments is a begin() followed at once by its
+ * end(). ToDeriveReadVisitor emits these as it walks the tree; TextSink
+ * prints them as the "deriving Read" text, BinaryAstOutput encodes the
+ * binary format, CountingSink only counts, and TeeSink passes every event
+ * on to several sinks, so that one translation can produce all of them.
+ *
+ * @author James Koppel
+ */
+
+public interface AstSink {
+    void begin(String constructor);
+    void end();
+    void beginList();
+    void endList();
+    void beginTuple();
+    void endTuple();
+    void string(String text);
+    void character(String text);
+    void number(String text);
+    void number(byte[] digits, int off, int len);
+    void finish();
+}
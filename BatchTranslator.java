@@ -0,0 +1,406 @@
+/*
+ * Translates many files in one JVM, in parallel, largest first (see
+ * JobScheduler).
+ *
+ * Usage:
+ *   java -jar javaparser-to-hs.jar --batch [-o outdir] [-j threads] [-H megabytes] [-e errors] [-m]
+ *                                  [-c cachedir [-C megabytes]] [-b | -d] path...
+ *
+ * Each path is a .java file, a directory (searched recursively for .java
+ * files), "@file" for a file listing one path per line, or "-" to read
+ * such a list from standard input. The output for a file found under a
+ * directory goes to the same relative path under outdir, with ".java"
+ * replaced by ".hs"; files named directly keep the path they were given
+ * by. Without -o, each output is written next to its source. With -b, the
+ * output is in the binary format of AstSchema, and ".bin" is used instead;
+ * with -d, it is in its shared variant, and ".dag" is used. With -m, each
+ * output is written through a memory mapping of its exact size (see
+ * MappedOutput). With -c, outputs and failures are looked up in and
+ * stored to a TranslationCache in cachedir, kept under 512 MB or the
+ * size given with -C.
+ *
+ * There is one thread per processor, unless -j says otherwise. Files only
+ * start while the heap they are estimated to take, all together, is
+ * within half the maximum heap, or the budget given with -H.
+ *
+ * One line is printed per file as it finishes, then a summary. The exit
+ * status is 1 if any file failed. A file that fails leaves no output, and
+ * does not stop the others; with -e, a record of each failure is written
+ * to errors, one per line (see record()).
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import japa.parser.*;
+
+public class BatchTranslator {
+
+    static class Job {
+        final File in;
+        final File out;
+        final JavaparserToHS.Format format;
+        final boolean mapped;
+        final TranslationCache cache; // null for none
+
+        Job(File in, File out, JavaparserToHS.Format format, boolean mapped) {
+            this(in, out, format, mapped, null);
+        }
+
+        Job(File in, File out, JavaparserToHS.Format format, boolean mapped, TranslationCache cache) {
+            this.in = in;
+            this.out = out;
+            this.format = format;
+            this.mapped = mapped;
+            this.cache = cache;
+        }
+    }
+
+    static class Result {
+        final Job job;
+        final Throwable failure; // null on success
+        final String error;
+        final long nanos;
+
+        Result(Job job, Throwable failure, long nanos) {
+            this.job = job;
+            this.failure = failure;
+            this.error = failure == null ? null : describe(failure);
+            this.nanos = nanos;
+        }
+
+        boolean succeeded() {
+            return error == null;
+        }
+    }
+
+    private File outRoot;
+    private JavaparserToHS.Format format;
+    private boolean mapped;
+    private TranslationCache cache;
+    private List<Job> jobs = new ArrayList<Job>();
+
+    BatchTranslator(File outRoot) {
+        this(outRoot, JavaparserToHS.Format.TEXT);
+    }
+
+    BatchTranslator(File outRoot, JavaparserToHS.Format format) {
+        this(outRoot, format, false);
+    }
+
+    BatchTranslator(File outRoot, JavaparserToHS.Format format, boolean mapped) {
+        this(outRoot, format, mapped, null);
+    }
+
+    BatchTranslator(File outRoot, JavaparserToHS.Format format, boolean mapped, TranslationCache cache) {
+        this.outRoot = outRoot;
+        this.format = format;
+        this.mapped = mapped;
+        this.cache = cache;
+    }
+
+    private static final String[] EXTENSIONS = {".hs", ".bin", ".dag"};
+
+    private String outputName(String path) {
+        if(path.endsWith(".java"))
+            path = path.substring(0, path.length() - ".java".length());
+        return path + EXTENSIONS[format.ordinal()];
+    }
+
+    /*
+     * Where the output for f goes, given its path relative to the
+     * directory it was found under
+     */
+    File outputFor(File f, String relative) {
+        if(outRoot == null)
+            return new File(outputName(f.getPath()));
+        else
+            return new File(outRoot, outputName(relative));
+    }
+
+    private void addFile(File f, String relative) {
+        jobs.add(new Job(f, outputFor(f, relative), format, mapped, cache));
+    }
+
+    private void addTree(File dir, String relative) {
+        File[] children = dir.listFiles();
+        if(children == null)
+            return;
+        Arrays.sort(children);
+
+        for(File child : children) {
+            String rel = relative.isEmpty() ? child.getName() : relative + File.separator + child.getName();
+            if(child.isDirectory())
+                addTree(child, rel);
+            else if(child.getName().endsWith(".java"))
+                addFile(child, rel);
+        }
+    }
+
+    private void addList(BufferedReader r) throws IOException {
+        String line;
+        while((line = r.readLine()) != null) {
+            line = line.trim();
+            if(!line.isEmpty())
+                addPath(line);
+        }
+    }
+
+    void addPath(String path) throws IOException {
+        if(path.equals("-")) {
+            addList(new BufferedReader(new InputStreamReader(System.in)));
+        } else if(path.startsWith("@")) {
+            BufferedReader r = new BufferedReader(new FileReader(path.substring(1)));
+            try {
+                addList(r);
+            } finally {
+                r.close();
+            }
+        } else {
+            File f = new File(path);
+            if(f.isDirectory())
+                addTree(f, "");
+            else
+                addFile(f, f.isAbsolute() ? f.getName() : f.getPath());
+        }
+    }
+
+    List<Job> jobs() {
+        return jobs;
+    }
+
+    static String describe(Throwable t) {
+        String msg = t.getMessage();
+        if(msg == null)
+            return t.getClass().getSimpleName();
+
+        int nl = msg.indexOf('\n');
+        if(nl >= 0)
+            msg = msg.substring(0, nl);
+        return t.getClass().getSimpleName() + ": " + msg;
+    }
+
+    static Result translate(Job job) {
+        long start = System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            File dir = job.out.getAbsoluteFile().getParentFile();
+            if(dir != null)
+                dir.mkdirs();
+            JavaparserToHS.translate(job.in, job.out, job.format, job.mapped, job.cache);
+        } catch(Throwable e) {
+            // anything, down to running out of memory, fails the file alone
+            failure = e;
+        }
+
+        return new Result(job, failure, System.nanoTime() - start);
+    }
+
+    /*
+     * What became of a file, given what translating it threw: "translated"
+     * if nothing, "parse" if javaparser rejected it, "unsupported" if it
+     * uses a construct the translator does not handle, and "error" for
+     * anything else
+     */
+    static String kind(Throwable t) {
+        if(t == null)
+            return "translated";
+        if(t instanceof UnsupportedOperationException)
+            return "unsupported";
+        if(t instanceof ParseException || t instanceof TokenMgrError)
+            return "parse";
+        return "error";
+    }
+
+    /*
+     * The record of a file, as one tab-separated line: the path, its kind,
+     * the class of the unsupported node if any, the line and column where
+     * the failure was found if known, and the message, if it failed.
+     */
+    static String record(Result r) {
+        Throwable t = r.failure;
+        String node = "", line = "", column = "";
+
+        if(t instanceof UnsupportedNodeException) {
+            UnsupportedNodeException u = (UnsupportedNodeException)t;
+            node = u.getNodeClass().getSimpleName();
+            line = String.valueOf(u.getLine());
+            column = String.valueOf(u.getColumn());
+        } else if(t instanceof ParseException) {
+            ParseException p = (ParseException)t;
+            if(p.currentToken != null && p.currentToken.next != null) {
+                line = String.valueOf(p.currentToken.next.beginLine);
+                column = String.valueOf(p.currentToken.next.beginColumn);
+            }
+        }
+
+        String message = r.error == null ? "" : r.error.replace('\t', ' ');
+        return r.job.in + "\t" + kind(t) + "\t" + node + "\t" + line + "\t" + column + "\t" + message;
+    }
+
+    static void writeRecords(Result[] results, File f) throws IOException {
+        PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(f)));
+        try {
+            for(Result r : results) {
+                if(!r.succeeded())
+                    w.println(record(r));
+            }
+        } finally {
+            w.close();
+        }
+    }
+
+    static void report(Result r) {
+        synchronized(System.out) {
+            if(r.succeeded())
+                System.out.println("ok " + r.job.in);
+            else
+                System.out.println("FAIL " + r.job.in + ": " + r.error);
+        }
+    }
+
+    static Result[] translateAll(List<Job> jobs, int threads) {
+        return translateAll(jobs, threads, true);
+    }
+
+    static Result[] translateAll(List<Job> jobs, int threads, boolean verbose) {
+        return translateAll(jobs, threads, JobScheduler.defaultBudget(), verbose);
+    }
+
+    /*
+     * Translates the jobs on the given number of threads, each starting the
+     * next job in the scheduler's order as it finishes one, with the jobs
+     * running at once estimated to fit in budget bytes of heap
+     */
+    static Result[] translateAll(final List<Job> jobs, int threads, long budget, final boolean verbose) {
+        if(threads < 1)
+            throw new IllegalArgumentException("Need at least one thread, not " + threads);
+
+        final Result[] results = new Result[jobs.size()];
+        final JobScheduler scheduler = new JobScheduler(jobs, JobScheduler.HEAP_PER_SOURCE_BYTE, budget);
+        final AtomicInteger next = new AtomicInteger();
+
+        Thread[] workers = new Thread[threads];
+        for(int t = 0; t < threads; t++) {
+            workers[t] = new Thread("batch") {
+                public void run() {
+                    int position;
+                    while((position = next.getAndIncrement()) < scheduler.size()) {
+                        try {
+                            scheduler.admit(position);
+                        } catch(InterruptedException e) {
+                            return;
+                        }
+
+                        int i = scheduler.job(position);
+                        try {
+                            results[i] = translate(jobs.get(i));
+                            if(verbose)
+                                report(results[i]);
+                        } catch(Throwable e) {
+                            // what escapes translate(), as running out of memory for the result
+                            if(results[i] == null)
+                                results[i] = new Result(jobs.get(i), e, 0);
+                        } finally {
+                            scheduler.release(position);
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+
+        try {
+            for(Thread w : workers)
+                w.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // a file is never left out of the results, even if it was never run
+        for(int i = 0; i < results.length; i++) {
+            if(results[i] == null)
+                results[i] = new Result(jobs.get(i), new IllegalStateException("Not translated"), 0);
+        }
+        return results;
+    }
+
+    static void summarize(Result[] results, long nanos) {
+        int failed = 0;
+        long inBytes = 0, outBytes = 0;
+        for(Result r : results) {
+            inBytes += r.job.in.length();
+            if(r.succeeded())
+                outBytes += r.job.out.length();
+            else
+                failed++;
+        }
+
+        double secs = nanos / 1e9;
+        System.out.println(String.format("%d files, %d translated, %d failed in %.2f s: %.1f files/s, %.2f MB/s in, %.2f MB/s out",
+                                         results.length, results.length - failed, failed, secs,
+                                         results.length / secs, inBytes / 1e6 / secs, outBytes / 1e6 / secs));
+    }
+
+    static int run(String[] args) throws IOException {
+        File outRoot = null;
+        File errors = null;
+        boolean mapped = false;
+        File cacheDir = null;
+        long cacheLimit = TranslationCache.DEFAULT_LIMIT;
+        JavaparserToHS.Format format = JavaparserToHS.Format.TEXT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long budget = JobScheduler.defaultBudget();
+        List<String> paths = new ArrayList<String>();
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-o")) {
+                outRoot = new File(args[++i]);
+            } else if(args[i].equals("-e")) {
+                errors = new File(args[++i]);
+            } else if(args[i].equals("-H")) {
+                budget = Long.parseLong(args[++i]) << 20;
+            } else if(args[i].equals("-m")) {
+                mapped = true;
+            } else if(args[i].equals("-c")) {
+                cacheDir = new File(args[++i]);
+            } else if(args[i].equals("-C")) {
+                cacheLimit = Long.parseLong(args[++i]) << 20;
+            } else if(args[i].equals("-b")) {
+                format = JavaparserToHS.Format.BINARY;
+            } else if(args[i].equals("-d")) {
+                format = JavaparserToHS.Format.DAG;
+            } else if(args[i].equals("-j")) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                paths.add(args[i]);
+            }
+        }
+
+        TranslationCache cache = cacheDir == null ? null : new TranslationCache(cacheDir, cacheLimit);
+        BatchTranslator batch = new BatchTranslator(outRoot, format, mapped, cache);
+        for(String p : paths)
+            batch.addPath(p);
+
+        // JavaParser otherwise shares one parser instance between all callers
+        JavaParser.setCacheParser(false);
+
+        long start = System.nanoTime();
+        Result[] results = translateAll(batch.jobs(), threads, budget, true);
+        summarize(results, System.nanoTime() - start);
+        if(cache != null)
+            System.out.println(cache.summary());
+        if(errors != null)
+            writeRecords(results, errors);
+
+        for(Result r : results) {
+            if(!r.succeeded())
+                return 1;
+        }
+        return 0;
+    }
+}
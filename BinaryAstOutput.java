@@ -0,0 +1,461 @@
+/*
+ * Encodes the translator's output in the compact binary format described
+ * in AstSchema, as it is printed.
+ *
+ * It is an AstSink, fed by the visitor as it walks the tree (see
+ * JavaparserToHS.Format), and the binary encoding of each finished
+ * top-level value is written to the underlying output. Constructors
+ * become their tag followed by their arguments, lists become a count
+ * followed by their elements, tuples their components in order, and
+ * strings, characters and numbers are decoded from their Haskell syntax
+ * and written as described in AstSchema. Since the count of a list is
+ * only known once it closes, a list is encoded with a one-byte count that
+ * is widened in place in the rare case it turns out to need more.
+ *
+ * In shared mode the output is a DAG instead: every node that is repeated
+ * is written in full only the first time, and referred to by index after
+ * that. See AstSchema for the encoding. To recognize repeats, each node
+ * also gets a canonical key, built alongside its encoding, in which its
+ * child nodes appear by index and its strings by symbol number; a node is
+ * a repeat exactly when its key has been seen before.
+ *
+ * @author James Koppel
+ */
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class BinaryAstOutput implements AstSink {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // frame kinds
+    private static final int APPLY = 0, LIST = 1, TUPLE = 2;
+
+    /*
+     * A growable byte array that can be cut back to an earlier position,
+     * and in which a list count can be filled in once it is known.
+     */
+    private static class Buf {
+        byte[] b = new byte[1 << 16];
+        int pos = 0;
+
+        void ensure(int n) {
+            if(pos + n > b.length)
+                b = Arrays.copyOf(b, Math.max(b.length * 2, pos + n));
+        }
+
+        void put(int x) {
+            ensure(1);
+            b[pos++] = (byte)x;
+        }
+
+        void varint(long n) {
+            ensure(10);
+            while((n & ~0x7fL) != 0) {
+                b[pos++] = (byte)((n & 0x7f) | 0x80);
+                n >>>= 7;
+            }
+            b[pos++] = (byte)n;
+        }
+
+        void bytes(byte[] x) {
+            ensure(x.length);
+            System.arraycopy(x, 0, b, pos, x.length);
+            pos += x.length;
+        }
+
+        /*
+         * Fills in the count reserved with put(0) at mark
+         */
+        void patchCount(int mark, int n) {
+            int extra = varintSize(n) - 1;
+            if(extra > 0) {
+                ensure(extra);
+                System.arraycopy(b, mark + 1, b, mark + 1 + extra, pos - mark - 1);
+                pos += extra;
+            }
+
+            for(int i = mark; n > 0x7f; i++, n >>>= 7)
+                b[i] = (byte)((n & 0x7f) | 0x80);
+            b[mark + extra] = (byte)n;
+        }
+    }
+
+    private static class Key {
+        final byte[] b;
+        final int hash;
+
+        Key(byte[] b, int from, int to) {
+            this.b = Arrays.copyOfRange(b, from, to);
+            this.hash = Arrays.hashCode(this.b);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(b, ((Key)o).b);
+        }
+    }
+
+    private final ByteOutput target;
+    private final boolean shared;
+
+    private final Buf enc = new Buf();
+    private final Buf key = new Buf();
+
+    /*
+     * The open parentheses and brackets. For each, its kind, the number of
+     * values completed inside it, for an application its constructor, for
+     * a list the position of its count, and in shared mode where its
+     * encoding and key start and how many nodes had been numbered before it.
+     */
+    private int depth = 0;
+    private int[] kinds = new int[64];
+    private int[] counts = new int[64];
+    private int[] marks = new int[64];
+    private int[] keyMarks = new int[64];
+    private int[] numbered = new int[64];
+    private AstSchema.Constructor[] applied = new AstSchema.Constructor[64];
+
+    /*
+     * Shared mode: the index of each node key and the next index per type,
+     * the type of every node numbered so far in order, so that numbering
+     * can be undone, and the symbol table.
+     */
+    private HashMap<Key, Integer>[] nodeIndex;
+    private int[] nextIndex;
+    private int[] numberedTypes;
+    private int numberedCount;
+    private HashMap<String, Integer> symbols;
+
+    public BinaryAstOutput(ByteOutput target) {
+        this(target, false);
+    }
+
+    public BinaryAstOutput(ByteOutput target, boolean shared) {
+        this.target = target;
+        this.shared = shared;
+        if(shared)
+            clearTables();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void clearTables() {
+        nodeIndex = new HashMap[AstSchema.typeCount()];
+        for(int i = 0; i < nodeIndex.length; i++)
+            nodeIndex[i] = new HashMap<Key, Integer>();
+        nextIndex = new int[AstSchema.typeCount()];
+        numberedTypes = new int[1024];
+        numberedCount = 0;
+        symbols = new HashMap<String, Integer>();
+    }
+
+    private static int varintSize(long n) {
+        int size = 1;
+        while((n >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    //- Structure -----------------------------------------
+
+    private void push(int kind) {
+        if(depth == kinds.length) {
+            int n = depth * 2;
+            kinds = Arrays.copyOf(kinds, n);
+            counts = Arrays.copyOf(counts, n);
+            marks = Arrays.copyOf(marks, n);
+            keyMarks = Arrays.copyOf(keyMarks, n);
+            numbered = Arrays.copyOf(numbered, n);
+            applied = Arrays.copyOf(applied, n);
+        }
+        kinds[depth] = kind;
+        counts[depth] = 0;
+        marks[depth] = enc.pos;
+        keyMarks[depth] = key.pos;
+        numbered[depth] = numberedCount;
+        applied[depth] = null;
+        depth++;
+    }
+
+    private static IllegalArgumentException malformed(String what) {
+        return new IllegalArgumentException("Cannot encode translator output: " + what);
+    }
+
+    /*
+     * What the next value inside the innermost application has to be
+     */
+    private char expected() {
+        if(depth == 0 || kinds[depth - 1] != APPLY)
+            return 'v';
+
+        AstSchema.Constructor c = applied[depth - 1];
+        if(counts[depth - 1] >= c.arity())
+            throw malformed("too many arguments to " + c.name);
+        return c.args.charAt(counts[depth - 1]);
+    }
+
+    private void completed() {
+        if(depth == 0) {
+            target.write(enc.b, 0, enc.pos);
+            enc.pos = 0;
+            key.pos = 0;
+        } else {
+            counts[depth - 1]++;
+        }
+    }
+
+    public void number(String w) {
+        char kind = expected();
+        if(kind == 'I')
+            integral(Long.parseLong(w));
+        else if(kind == 'D')
+            floating(Double.parseDouble(w));
+        else
+            throw malformed("unexpected number " + w);
+        completed();
+    }
+
+    /*
+     * As above, without making a String of an integer's digits
+     */
+    public void number(byte[] digits, int off, int len) {
+        if(expected() != 'I') {
+            number(new String(digits, off, len, UTF8));
+            return;
+        }
+
+        boolean negative = digits[off] == '-';
+        long n = 0;
+        for(int i = negative ? off + 1 : off; i < off + len; i++)
+            n = n * 10 - (digits[i] - '0'); // negative, so that MIN_VALUE needs no special case
+        integral(negative ? n : -n);
+        completed();
+    }
+
+    private void integral(long n) {
+        enc.varint((n << 1) ^ (n >> 63));
+        if(shared)
+            key.varint((n << 1) ^ (n >> 63));
+    }
+
+    private void floating(double d) {
+        long bits = Double.doubleToLongBits(d);
+        for(int shift = 56; shift >= 0; shift -= 8) {
+            enc.put((int)(bits >>> shift));
+            if(shared)
+                key.put((int)(bits >>> shift));
+        }
+    }
+
+    public void begin(String name) {
+        if(expected() != 'v')
+            throw malformed("expected a string, character or number, found " + name);
+
+        AstSchema.Constructor c = AstSchema.constructor(name);
+        push(APPLY);
+        applied[depth - 1] = c;
+        enc.put(c.tag);
+        if(shared)
+            key.put(c.tag);
+    }
+
+    private void quoted(String s, boolean isChar) {
+        char kind = expected();
+        String value = unescape(s);
+
+        if(isChar) {
+            if(kind != 'C' || value.codePointCount(0, value.length()) != 1)
+                throw malformed("unexpected character literal '" + s + "'");
+            enc.varint(value.codePointAt(0));
+            if(shared)
+                key.varint(value.codePointAt(0));
+        } else {
+            if(kind != 'S')
+                throw malformed("unexpected string \"" + s + "\"");
+            if(shared)
+                symbol(value);
+            else
+                utf8(value);
+        }
+        completed();
+    }
+
+    private void utf8(String value) {
+        byte[] b = value.getBytes(UTF8);
+        enc.varint(b.length);
+        enc.bytes(b);
+    }
+
+    /*
+     * Shared mode: 0 and the string the first time it is seen, its symbol
+     * number plus one after that
+     */
+    private void symbol(String value) {
+        Integer n = symbols.get(value);
+        if(n == null) {
+            n = symbols.size();
+            symbols.put(value, n);
+            enc.put(0);
+            utf8(value);
+        } else {
+            enc.varint(n + 1);
+        }
+        key.varint(n);
+    }
+
+    public void end() {
+        if(depth == 0 || kinds[depth - 1] != APPLY)
+            throw malformed("unbalanced )");
+
+        depth--;
+        AstSchema.Constructor c = applied[depth];
+        if(counts[depth] != c.arity())
+            throw malformed(c.name + " applied to " + counts[depth] + " arguments");
+        if(shared && c.shared())
+            share(c);
+        completed();
+    }
+
+    public void string(String text) {
+        quoted(text, false);
+    }
+
+    public void character(String text) {
+        quoted(text, true);
+    }
+
+    /*
+     * Shared mode: called when the node just closed, whose encoding and key
+     * start at marks[depth] and keyMarks[depth], has been written in full.
+     * Replaces it by a reference if it is a repeat and that is shorter, and
+     * replaces its key by its index.
+     */
+    private void share(AstSchema.Constructor c) {
+        int type = c.typeIndex;
+        Key k = new Key(key.b, keyMarks[depth], key.pos);
+        Integer index = nodeIndex[type].get(k);
+
+        if(index != null && 1 + varintSize(index) < enc.pos - marks[depth]) {
+            // undo the numbering of its inline descendants; the decoder never sees them
+            while(numberedCount > numbered[depth])
+                nextIndex[numberedTypes[--numberedCount]]--;
+
+            enc.pos = marks[depth];
+            enc.put(AstSchema.SHARED_REF);
+            enc.varint(index);
+        } else {
+            if(index == null) {
+                index = nextIndex[type];
+                nodeIndex[type].put(k, index);
+            }
+
+            // the decoder numbers every node it reads in full
+            nextIndex[type]++;
+            if(numberedCount == numberedTypes.length)
+                numberedTypes = Arrays.copyOf(numberedTypes, numberedCount * 2);
+            numberedTypes[numberedCount++] = type;
+        }
+
+        key.pos = keyMarks[depth];
+        key.put(AstSchema.SHARED_REF);
+        key.varint(index);
+    }
+
+    public void beginList() {
+        if(expected() != 'v')
+            throw malformed("unexpected [");
+        push(LIST);
+        enc.put(0);
+        if(shared)
+            key.put(0);
+    }
+
+    public void endList() {
+        if(depth == 0 || kinds[depth - 1] != LIST)
+            throw malformed("unbalanced ]");
+
+        depth--;
+        enc.patchCount(marks[depth], counts[depth]);
+        if(shared)
+            key.patchCount(keyMarks[depth], counts[depth]);
+        completed();
+    }
+
+    public void beginTuple() {
+        if(expected() != 'v')
+            throw malformed("unexpected (");
+        push(TUPLE);
+    }
+
+    public void endTuple() {
+        if(depth == 0 || kinds[depth - 1] != TUPLE)
+            throw malformed("unbalanced )");
+
+        depth--;
+        completed();
+    }
+
+    /*
+     * Reads the body of a Haskell string or character literal.
+     */
+    static String unescape(String s) {
+        if(s.indexOf('\\') < 0)
+            return s;
+
+        StringBuilder b = new StringBuilder(s.length());
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c != '\\') {
+                b.append(c);
+                continue;
+            }
+
+            c = s.charAt(++i);
+            int radix = 0;
+            switch(c) {
+            case 'n': b.append('\n'); break;
+            case 't': b.append('\t'); break;
+            case 'r': b.append('\r'); break;
+            case 'b': b.append('\b'); break;
+            case 'f': b.append('\f'); break;
+            case 'v': b.append('\u000B'); break;
+            case 'a': b.append('\u0007'); break;
+            case '\\': b.append('\\'); break;
+            case '"': b.append('"'); break;
+            case '\'': b.append('\''); break;
+            case '&': break;
+            case 'o': radix = 8; i++; break;
+            case 'x': radix = 16; i++; break;
+            default:
+                if(c >= '0' && c <= '9')
+                    radix = 10;
+                else
+                    throw malformed("\\" + c + " is not a Haskell escape");
+            }
+
+            if(radix != 0) {
+                int start = i;
+                while(i < s.length() && Character.digit(s.charAt(i), radix) >= 0)
+                    i++;
+                if(i == start)
+                    throw malformed("empty numeric escape");
+                b.appendCodePoint(Integer.parseInt(s.substring(start, i), radix));
+                i--;
+            }
+        }
+        return b.toString();
+    }
+
+    /*
+     * Anything left of an unfinished value is not written; that only
+     * happens when the translation failed part way.
+     */
+    public void finish() {
+        target.flush();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * A growable byte buffer that the translator writes its output into.
+ *
+ * The output consists of a great many small fragments, most of them
+ * constant; printing them one at a time through a PrintWriter means a
+ * lock and a trip through the charset encoder for each. Here constant
+ * fragments can be encoded once up front (see ascii()), and strings that
+ * are pure ASCII, which covers nearly all identifiers, are copied in
+ * without an encoder. Anything else is encoded with the charset given,
+ * by default the platform's, exactly as the FileWriter used previously did.
+ *
+ * If a channel is given, the buffer is drained to it whenever it fills;
+ * otherwise it simply keeps growing.
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+public class ByteOutput {
+
+    private static final int FLUSH_SIZE = 1 << 16;
+
+    private byte[] buf;
+    private int len = 0;
+    private long drained = 0;
+    private final WritableByteChannel channel;
+    private final Charset charset;
+
+    public ByteOutput() {
+        this((WritableByteChannel)null);
+    }
+
+    public ByteOutput(WritableByteChannel channel) {
+        this(channel, FLUSH_SIZE);
+    }
+
+    public ByteOutput(Charset charset) {
+        this(null, FLUSH_SIZE, charset);
+    }
+
+    /*
+     * For subclasses that keep their bytes elsewhere, and need no buffer
+     */
+    protected ByteOutput(WritableByteChannel channel, int capacity) {
+        this(channel, capacity, Charset.defaultCharset());
+    }
+
+    private ByteOutput(WritableByteChannel channel, int capacity, Charset charset) {
+        this.channel = channel;
+        this.buf = new byte[capacity];
+        this.charset = charset;
+    }
+
+    public static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for(int i = 0; i < b.length; i++) {
+            char c = s.charAt(i);
+            if(c >= 0x80)
+                throw new IllegalArgumentException("Not an ASCII constant: " + s);
+            b[i] = (byte)c;
+        }
+        return b;
+    }
+
+    private void ensure(int n) {
+        if(len + n <= buf.length)
+            return;
+
+        if(channel != null) {
+            drain();
+            if(n <= buf.length)
+                return;
+        }
+
+        byte[] bigger = new byte[Math.max(buf.length * 2, len + n)];
+        System.arraycopy(buf, 0, bigger, 0, len);
+        buf = bigger;
+    }
+
+    public void write(byte[] b) {
+        ensure(b.length);
+        System.arraycopy(b, 0, buf, len, b.length);
+        len += b.length;
+    }
+
+    public void write(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, buf, this.len, len);
+        this.len += len;
+    }
+
+    public void write(byte b) {
+        ensure(1);
+        buf[len++] = b;
+    }
+
+    public void write(String s) {
+        int n = s.length();
+        ensure(n);
+
+        for(int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if(c >= 0x80) {
+                writeEncoded(s, i);
+                return;
+            }
+            buf[len + i] = (byte)c;
+        }
+        len += n;
+    }
+
+    /*
+     * Slow path: the first "from" characters of s have already been copied
+     * in as ASCII, but not yet counted.
+     */
+    private void writeEncoded(String s, int from) {
+        len += from;
+        write(s.substring(from).getBytes(charset));
+    }
+
+    public int size() {
+        return len;
+    }
+
+    public void reset() {
+        len = 0;
+    }
+
+    public Charset charset() {
+        return charset;
+    }
+
+    /*
+     * How many bytes have been written, counting those drained to the
+     * channel
+     */
+    public long position() {
+        return drained + len;
+    }
+
+    /*
+     * The bytes written since position() was from, or null if some of
+     * them have been drained to the channel since, or reset(), or are kept
+     * elsewhere, as subclasses keep them
+     */
+    public byte[] since(long from) {
+        if(from < drained || from > drained + len)
+            return null;
+        int off = (int)(from - drained);
+        byte[] b = new byte[len - off];
+        System.arraycopy(buf, off, b, 0, b.length);
+        return b;
+    }
+
+    public byte[] toByteArray() {
+        byte[] b = new byte[len];
+        System.arraycopy(buf, 0, b, 0, len);
+        return b;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, len);
+    }
+
+    private void drain() {
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+            while(bb.hasRemaining())
+                channel.write(bb);
+        } catch(IOException e) {
+            throw new ExceptionConverter(e);
+        }
+        drained += len;
+        len = 0;
+    }
+
+    /*
+     * Writes out anything still buffered. Only meaningful when writing to a
+     * channel.
+     */
+    public void flush() {
+        if(channel != null)
+            drain();
+    }
+}
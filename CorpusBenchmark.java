@@ -0,0 +1,257 @@
+/*
+ * Measures batch translation throughput over a whole corpus at a range of
+ * thread counts, for sizing worker pools.
+ *
+ * Usage:
+ *   java -jar javaparser-to-hs.jar --bench [-t threads,...] [-w warmups] [-o outdir]
+ *                                          [-r report] [-c baseline] [-x percent] [-m] [-b | -d] path...
+ *
+ * The paths, -m, -b and -d are as for --batch. The corpus is translated
+ * once per warm-up (1 by default, untimed) and then once per thread count,
+ * by default 1, 2, 4, ... up to the number of processors. For each count a
+ * line is printed with files/s, source and output MB/s, the p50, p95, p99
+ * and max per-file latency, and the speedup over the smallest count.
+ *
+ * Output goes to a scratch directory that is removed afterwards, unless
+ * -o is given. With -r, the results are also written to report as a
+ * properties file; with -c, they are checked against such a file from an
+ * earlier run, and the exit status is 1 if source MB/s at any thread
+ * count in both has dropped by more than percent (10 by default).
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.util.*;
+
+import japa.parser.*;
+
+public class CorpusBenchmark {
+
+    static class Run {
+        final int threads;
+        final int files, failed;
+        final double seconds;
+        final long inBytes, outBytes;
+        final long[] latencies; // sorted, in nanoseconds
+
+        Run(int threads, BatchTranslator.Result[] results, long nanos) {
+            this.threads = threads;
+            this.files = results.length;
+            this.seconds = nanos / 1e9;
+
+            int failed = 0;
+            long inBytes = 0, outBytes = 0;
+            latencies = new long[results.length];
+            for(int i = 0; i < results.length; i++) {
+                BatchTranslator.Result r = results[i];
+                inBytes += r.job.in.length();
+                if(r.succeeded())
+                    outBytes += r.job.out.length();
+                else
+                    failed++;
+                latencies[i] = r.nanos;
+            }
+            Arrays.sort(latencies);
+
+            this.failed = failed;
+            this.inBytes = inBytes;
+            this.outBytes = outBytes;
+        }
+
+        double filesPerSecond() {
+            return files / seconds;
+        }
+
+        double inRate() {
+            return inBytes / 1e6 / seconds;
+        }
+
+        double outRate() {
+            return outBytes / 1e6 / seconds;
+        }
+
+        /*
+         * The latency below which the given fraction of files finished, in ms
+         */
+        double percentile(double p) {
+            if(latencies.length == 0)
+                return 0;
+            int i = (int)Math.ceil(p * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(i, latencies.length - 1))] / 1e6;
+        }
+    }
+
+    static List<Integer> defaultSweep() {
+        int max = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<Integer>();
+        for(int n = 1; n < max; n *= 2)
+            counts.add(n);
+        counts.add(max);
+        return counts;
+    }
+
+    static void delete(File f) {
+        File[] children = f.listFiles();
+        if(children != null) {
+            for(File c : children)
+                delete(c);
+        }
+        f.delete();
+    }
+
+    static void print(List<Run> runs) {
+        System.out.println(String.format("%7s %9s %9s %9s %9s %9s %9s %9s %7s",
+                                         "threads", "files/s", "MB/s in", "MB/s out",
+                                         "p50 ms", "p95 ms", "p99 ms", "max ms", "speedup"));
+        for(Run r : runs) {
+            System.out.println(String.format("%7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f %7.2f",
+                                             r.threads, r.filesPerSecond(), r.inRate(), r.outRate(),
+                                             r.percentile(0.5), r.percentile(0.95), r.percentile(0.99),
+                                             r.percentile(1.0), r.filesPerSecond() / runs.get(0).filesPerSecond()));
+        }
+    }
+
+    static Properties report(List<Run> runs) {
+        Properties p = new Properties();
+        StringBuilder counts = new StringBuilder();
+        for(Run r : runs) {
+            String k = "t" + r.threads + ".";
+            if(counts.length() > 0)
+                counts.append(',');
+            counts.append(r.threads);
+
+            p.setProperty(k + "seconds", String.valueOf(r.seconds));
+            p.setProperty(k + "failed", String.valueOf(r.failed));
+            p.setProperty(k + "files_per_s", String.valueOf(r.filesPerSecond()));
+            p.setProperty(k + "source_mb_per_s", String.valueOf(r.inRate()));
+            p.setProperty(k + "output_mb_per_s", String.valueOf(r.outRate()));
+            p.setProperty(k + "p50_ms", String.valueOf(r.percentile(0.5)));
+            p.setProperty(k + "p95_ms", String.valueOf(r.percentile(0.95)));
+            p.setProperty(k + "p99_ms", String.valueOf(r.percentile(0.99)));
+            p.setProperty(k + "max_ms", String.valueOf(r.percentile(1.0)));
+            p.setProperty(k + "speedup", String.valueOf(r.filesPerSecond() / runs.get(0).filesPerSecond()));
+        }
+        p.setProperty("threads", counts.toString());
+        if(!runs.isEmpty()) {
+            p.setProperty("files", String.valueOf(runs.get(0).files));
+            p.setProperty("source_bytes", String.valueOf(runs.get(0).inBytes));
+        }
+        p.setProperty("processors", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        return p;
+    }
+
+    /*
+     * Prints and counts the thread counts at which source throughput has
+     * dropped by more than the given percentage from the baseline
+     */
+    static int regressions(List<Run> runs, Properties baseline, double percent) {
+        int regressed = 0;
+        for(Run r : runs) {
+            String old = baseline.getProperty("t" + r.threads + ".source_mb_per_s");
+            if(old == null)
+                continue;
+
+            double before = Double.parseDouble(old);
+            double change = (r.inRate() - before) / before * 100;
+            boolean bad = change < -percent;
+            System.out.println(String.format("%s %d threads: %.2f MB/s against %.2f in the baseline (%+.1f%%)",
+                                             bad ? "REGRESSED" : "ok", r.threads, r.inRate(), before, change));
+            if(bad)
+                regressed++;
+        }
+        return regressed;
+    }
+
+    static int run(String[] args) throws IOException {
+        File outRoot = null;
+        File reportFile = null, baselineFile = null;
+        double threshold = 10;
+        int warmups = 1;
+        boolean mapped = false;
+        JavaparserToHS.Format format = JavaparserToHS.Format.TEXT;
+        List<Integer> sweep = defaultSweep();
+        List<String> paths = new ArrayList<String>();
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-o")) {
+                outRoot = new File(args[++i]);
+            } else if(args[i].equals("-r")) {
+                reportFile = new File(args[++i]);
+            } else if(args[i].equals("-c")) {
+                baselineFile = new File(args[++i]);
+            } else if(args[i].equals("-x")) {
+                threshold = Double.parseDouble(args[++i]);
+            } else if(args[i].equals("-w")) {
+                warmups = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("-t")) {
+                sweep = new ArrayList<Integer>();
+                for(String n : args[++i].split(","))
+                    sweep.add(Integer.parseInt(n.trim()));
+            } else if(args[i].equals("-m")) {
+                mapped = true;
+            } else if(args[i].equals("-b")) {
+                format = JavaparserToHS.Format.BINARY;
+            } else if(args[i].equals("-d")) {
+                format = JavaparserToHS.Format.DAG;
+            } else {
+                paths.add(args[i]);
+            }
+        }
+
+        boolean scratch = outRoot == null;
+        if(scratch) {
+            outRoot = File.createTempFile("javaparser-to-hs-bench", "");
+            outRoot.delete();
+        }
+
+        BatchTranslator batch = new BatchTranslator(outRoot, format, mapped);
+        for(String p : paths)
+            batch.addPath(p);
+        List<BatchTranslator.Job> jobs = batch.jobs();
+
+        // JavaParser otherwise shares one parser instance between all callers
+        JavaParser.setCacheParser(false);
+
+        List<Run> runs = new ArrayList<Run>();
+        try {
+            for(int i = 0; i < warmups; i++)
+                BatchTranslator.translateAll(jobs, sweep.get(sweep.size() - 1), false);
+
+            for(int threads : sweep) {
+                long start = System.nanoTime();
+                BatchTranslator.Result[] results = BatchTranslator.translateAll(jobs, threads, false);
+                runs.add(new Run(threads, results, System.nanoTime() - start));
+            }
+        } finally {
+            if(scratch)
+                delete(outRoot);
+        }
+
+        System.out.println(jobs.size() + " files");
+        print(runs);
+
+        Properties report = report(runs);
+        if(reportFile != null) {
+            OutputStream out = new FileOutputStream(reportFile);
+            try {
+                report.store(out, "javaparser-to-hs corpus benchmark");
+            } finally {
+                out.close();
+            }
+        }
+
+        if(baselineFile != null) {
+            Properties baseline = new Properties();
+            InputStream in = new FileInputStream(baselineFile);
+            try {
+                baseline.load(in);
+            } finally {
+                in.close();
+            }
+            if(regressions(runs, baseline, threshold) > 0)
+                return 1;
+        }
+        return 0;
+    }
+}
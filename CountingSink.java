@@ -0,0 +1,93 @@
+/*
+ * A sink that keeps nothing, but counts what passes through it: the
+ * constructors, lists, tuples, strings, characters and numbers.
+ * Translating into one measures the cost of walking the tree without
+ * printing or encoding anything, and gives statistics on a tree alongside
+ * its other outputs (see TeeSink).
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class CountingSink implements AstSink {
+
+    private final Map<String, int[]> constructors = new HashMap<String, int[]>();
+    private long nodes = 0, lists = 0, tuples = 0, strings = 0, characters = 0, numbers = 0;
+
+    public void begin(String constructor) {
+        nodes++;
+        int[] n = constructors.get(constructor);
+        if(n == null) {
+            n = new int[1];
+            constructors.put(constructor, n);
+        }
+        n[0]++;
+    }
+
+    public void end() {
+    }
+
+    public void beginList() {
+        lists++;
+    }
+
+    public void endList() {
+    }
+
+    public void beginTuple() {
+        tuples++;
+    }
+
+    public void endTuple() {
+    }
+
+    public void string(String text) {
+        strings++;
+    }
+
+    public void character(String text) {
+        characters++;
+    }
+
+    public void number(String text) {
+        numbers++;
+    }
+
+    public void number(byte[] digits, int off, int len) {
+        numbers++;
+    }
+
+    public void finish() {
+    }
+
+    public long nodes() {
+        return nodes;
+    }
+
+    public int count(String constructor) {
+        int[] n = constructors.get(constructor);
+        return n == null ? 0 : n[0];
+    }
+
+    /*
+     * Prints the totals, then each constructor with its count, most
+     * frequent first
+     */
+    public void report(PrintStream out) {
+        out.println(nodes + " constructors, " + constructors.size() + " distinct");
+        out.println(lists + " lists, " + tuples + " tuples, " + strings + " strings, " + characters + " characters, " + numbers + " numbers");
+
+        List<Map.Entry<String, int[]>> entries = new ArrayList<Map.Entry<String, int[]>>(constructors.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, int[]>>() {
+            public int compare(Map.Entry<String, int[]> a, Map.Entry<String, int[]> b) {
+                if(a.getValue()[0] != b.getValue()[0])
+                    return b.getValue()[0] - a.getValue()[0];
+                return a.getKey().compareTo(b.getKey());
+            }
+        });
+        for(Map.Entry<String, int[]> e : entries)
+            out.println(String.format("%8d %s", e.getValue()[0], e.getKey()));
+    }
+}
@@ -0,0 +1,69 @@
+{-
+Compares loading translator output with the derived Read instances against
+decoding the binary format (see AstSchema.java), over a whole corpus.
+
+  java -jar javaparser-to-hs.jar --batch -o text testfiles
+  java -jar javaparser-to-hs.jar --batch -b -o bin testfiles
+  java -jar javaparser-to-hs.jar --batch -d -o dag testfiles
+  ./DecodeBench text bin [dag] +RTS -s
+
+Each tree is compared against itself, which forces all of it, so that every
+side is charged for building the whole tree. For the DAG this also walks the
+shared subtrees once per use; its gain in residency shows in +RTS -s.
+-}
+
+import Control.Exception ( ErrorCall, evaluate, try )
+import Control.Monad ( forM, forM_, liftM )
+
+import qualified Data.ByteString as B
+import Data.List ( isSuffixOf )
+import Data.Time.Clock ( diffUTCTime, getCurrentTime )
+
+import Language.Java.Syntax
+
+import System.Directory ( doesDirectoryExist, getDirectoryContents )
+import System.Environment
+import System.FilePath ( dropExtension, (</>) )
+import System.IO
+
+import JavaAstDecoder
+
+--------------------------------------------------------------------------------
+
+textFiles :: FilePath -> FilePath -> IO [FilePath]
+textFiles root rel = do names <- liftM (filter (`notElem` [".", ".."])) $ getDirectoryContents (root </> rel)
+                        liftM concat $ forM names $ \n -> do
+                          let path = if null rel then n else rel </> n
+                          isDir <- doesDirectoryExist (root </> path)
+                          if isDir
+                            then textFiles root path
+                            else return [path | ".hs" `isSuffixOf` n]
+
+timed :: String -> [FilePath] -> (FilePath -> IO Bool) -> IO ()
+timed name files load = do start <- getCurrentTime
+                           oks <- forM files load
+                           end <- getCurrentTime
+                           putStrLn $ name ++ ": " ++ show (length (filter id oks)) ++ " trees in "
+                                      ++ show (diffUTCTime end start)
+
+-- Files the translator failed on are left partly written, and fail to read
+viaRead :: FilePath -> IO Bool
+viaRead path = do s <- readFile path
+                  let tree = read s :: CompilationUnit
+                  res <- try $ evaluate (tree == tree)
+                  return $ either (const False :: ErrorCall -> Bool) id res
+
+viaDecoder :: (B.ByteString -> Either String CompilationUnit) -> FilePath -> IO Bool
+viaDecoder dec path = do b <- B.readFile path
+                         case dec b of
+                           Left err   -> do hPutStrLn stderr $ path ++ ": " ++ err
+                                            return False
+                           Right tree -> evaluate (tree == tree)
+
+main :: IO ()
+main = do textDir : binDir : dagDirs <- getArgs
+          files <- textFiles textDir ""
+          timed "read  " [textDir </> f | f <- files] viaRead
+          timed "binary" [binDir </> dropExtension f ++ ".bin" | f <- files] (viaDecoder decodeCompilationUnit)
+          forM_ dagDirs $ \dagDir ->
+            timed "dag   " [dagDir </> dropExtension f ++ ".dag" | f <- files] (viaDecoder decodeSharedCompilationUnit)
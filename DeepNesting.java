@@ -0,0 +1,216 @@
+/*
+ * Translates syntax trees nested far deeper than javaparser could parse
+ * them, built directly: a left-deep operator chain, a right-nested
+ * parenthesized chain, an else-if ladder, nested blocks, and a mix of
+ * all three, each as deep as asked. Fails if the translation overflows
+ * the stack, or differs from what a separate printer for just these
+ * nodes, which keeps its own stack, says it should be.
+ *
+ * Usage:
+ *   java -Xss256k DeepNesting [depth]
+ *
+ * as deeptest.sh runs it, on a stack small enough that anything
+ * recursing once per level overflows long before the default depth of
+ * 150000.
+ *
+ * @author James Koppel
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import japa.parser.ast.*;
+import japa.parser.ast.body.*;
+import japa.parser.ast.expr.*;
+import japa.parser.ast.stmt.*;
+import japa.parser.ast.type.*;
+
+public class DeepNesting {
+
+    public static final int DEFAULT_DEPTH = 150000;
+
+    //- The trees -----------------------------------------
+
+    static Expression chain(int depth) {
+        Expression e = new NameExpr("a0");
+        for(int i = 1; i < depth; i++)
+            e = new BinaryExpr(e, new NameExpr("a" + (i % 7)), i % 3 == 0 ? BinaryExpr.Operator.plus : BinaryExpr.Operator.times);
+        return e;
+    }
+
+    static Expression rightNested(int depth) {
+        Expression e = new NameExpr("z");
+        for(int i = 0; i < depth; i++)
+            e = new EnclosedExpr(new BinaryExpr(new NameExpr("b"), e, BinaryExpr.Operator.minus));
+        return e;
+    }
+
+    static Statement ladder(int depth) {
+        Statement s = new ExpressionStmt(new NameExpr("last"));
+        for(int i = 0; i < depth; i++)
+            s = new IfStmt(new NameExpr("c" + (i % 5)), new ExpressionStmt(new NameExpr("x")), s);
+        return s;
+    }
+
+    static Statement blocks(int depth) {
+        Statement s = new ExpressionStmt(new NameExpr("inner"));
+        for(int i = 0; i < depth; i++) {
+            List<Statement> stmts = new ArrayList<Statement>();
+            stmts.add(s);
+            if(i % 4 == 0)
+                stmts.add(new IfStmt(new NameExpr("d"), new BlockStmt(new ArrayList<Statement>()), null));
+            s = new BlockStmt(stmts);
+        }
+        return s;
+    }
+
+    static Statement mixed(int depth) {
+        Statement s = new ExpressionStmt(chain(10));
+        for(int i = 0; i < depth; i++) {
+            switch(i % 3) {
+            case 0:
+                s = new IfStmt(chain(3), s, null);
+                break;
+            case 1:
+                List<Statement> stmts = new ArrayList<Statement>();
+                stmts.add(s);
+                s = new BlockStmt(stmts);
+                break;
+            default:
+                s = new IfStmt(new NameExpr("e"), new ExpressionStmt(new NameExpr("y")), s);
+                break;
+            }
+        }
+        return s;
+    }
+
+    static CompilationUnit unit(List<Statement> body) {
+        MethodDeclaration m = new MethodDeclaration(ModifierSet.PUBLIC, new VoidType(), "m");
+        m.setBody(new BlockStmt(body));
+        List<BodyDeclaration> members = new ArrayList<BodyDeclaration>();
+        members.add(m);
+
+        ClassOrInterfaceDeclaration c = new ClassOrInterfaceDeclaration(ModifierSet.PUBLIC, false, "Deep");
+        c.setMembers(members);
+        List<TypeDeclaration> types = new ArrayList<TypeDeclaration>();
+        types.add(c);
+        return new CompilationUnit(null, null, types, null);
+    }
+
+    //- What they should print as -------------------------
+
+    private static String operator(BinaryExpr.Operator op) {
+        switch(op) {
+        case plus: return "Add";
+        case times: return "Mult";
+        case minus: return "Sub";
+        default: throw new IllegalArgumentException("Not generated: " + op);
+        }
+    }
+
+    /*
+     * Prints the statements of a block, as they appear between its
+     * brackets, taking work from a stack of strings and nodes rather than
+     * recursing
+     */
+    static String expected(List<Statement> stmts) {
+        StringBuilder sb = new StringBuilder();
+        Deque<Object> work = new ArrayDeque<Object>();
+        pushStmts(work, stmts);
+
+        while(!work.isEmpty()) {
+            Object o = work.pop();
+            if(o instanceof String) {
+                sb.append((String)o);
+            } else if(o instanceof NameExpr) {
+                sb.append("ExpName (Name [(Ident \"").append(((NameExpr)o).getName()).append("\")])");
+            } else if(o instanceof BinaryExpr) {
+                BinaryExpr e = (BinaryExpr)o;
+                work.push(")");
+                work.push(e.getRight());
+                work.push(") " + operator(e.getOperator()) + " (");
+                work.push(e.getLeft());
+                work.push("BinOp (");
+            } else if(o instanceof EnclosedExpr) {
+                // language-java keeps no parentheses
+                work.push(((EnclosedExpr)o).getInner());
+            } else if(o instanceof ExpressionStmt) {
+                work.push(")");
+                work.push(((ExpressionStmt)o).getExpression());
+                work.push("ExpStmt (");
+            } else if(o instanceof IfStmt) {
+                IfStmt s = (IfStmt)o;
+                work.push(")");
+                if(s.getElseStmt() != null) {
+                    work.push(s.getElseStmt());
+                    work.push(") (");
+                }
+                work.push(s.getThenStmt());
+                work.push(") (");
+                work.push(s.getCondition());
+                work.push(s.getElseStmt() == null ? "IfThen (" : "IfThenElse (");
+            } else if(o instanceof BlockStmt) {
+                work.push("])");
+                pushStmts(work, ((BlockStmt)o).getStmts());
+                work.push("StmtBlock (Block [");
+            } else {
+                throw new IllegalArgumentException("Not generated: " + o.getClass().getSimpleName());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void pushStmts(Deque<Object> work, List<Statement> stmts) {
+        if(stmts == null)
+            return;
+        for(int i = stmts.size() - 1; i >= 0; i--) {
+            work.push("))");
+            work.push(stmts.get(i));
+            work.push(i == 0 ? "(BlockStmt (" : ", (BlockStmt (");
+        }
+    }
+
+    //- Checking ------------------------------------------
+
+    static String translate(CompilationUnit cu) {
+        ByteOutput out = new ByteOutput();
+        JavaparserToHS.translate(cu, out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_DEPTH;
+
+        List<Statement> body = new ArrayList<Statement>();
+        body.add(new ExpressionStmt(chain(depth)));
+        body.add(new ExpressionStmt(rightNested(depth)));
+        body.add(ladder(depth));
+        body.add(blocks(depth));
+        body.add(mixed(depth));
+
+        // the class around the body prints as it does around an empty one
+        String empty = "(MethodBody (Just (Block [])))";
+        String around = translate(unit(new ArrayList<Statement>()));
+        int at = around.indexOf(empty);
+        String expected = around.substring(0, at) + "(MethodBody (Just (Block [" + expected(body) + "])))"
+                          + around.substring(at + empty.length());
+
+        String actual;
+        try {
+            actual = translate(unit(body));
+        } catch(StackOverflowError e) {
+            System.out.println("FAIL: stack overflow at depth " + depth);
+            System.exit(1);
+            return;
+        }
+
+        if(!actual.equals(expected)) {
+            int i = 0;
+            while(i < actual.length() && i < expected.length() && actual.charAt(i) == expected.charAt(i))
+                i++;
+            System.out.println("FAIL: output differs at offset " + i + " of " + expected.length() + ", at depth " + depth);
+            System.exit(1);
+        }
+        System.out.println("ok: depth " + depth + ", " + actual.length() + " characters");
+    }
+}
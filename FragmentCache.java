@@ -0,0 +1,358 @@
+/*
+ * The text printed for declarations, kept by the MD5 of their source
+ * text, so that translating an edited file again only translates the
+ * declarations that changed (see IncrementalDeriveReadVisitor).
+ *
+ * The key is not a hash of the declaration's subtree: it is the MD5 of
+ * the bytes of source the declaration was parsed from, comments and
+ * whitespace included, found from the positions the parser gives it. The
+ * text of a declaration decides its subtree, and its subtree decides its
+ * translation, so two declarations with the same key print the same, as
+ * long as their text is taken from the same position in the grammar; the
+ * key says which. An edit to a comment or to the spacing of a declaration
+ * therefore misses, though its translation is the same. Hashing the text
+ * costs a fraction of printing the tree back out, let alone translating
+ * it, and the parser's tokens are out of reach anyway.
+ *
+ * Fragments are kept in memory, up to a limit in bytes of text, evicting
+ * the least recently used. One cache can be shared between threads and
+ * files.
+ *
+ * Usage:
+ *   java -jar javaparser-to-hs.jar --incremental [-r rounds] infile
+ *
+ * measures edit-to-output latency on infile: for a growing number of
+ * edited methods, the time to parse the edited source, and to translate
+ * it in full or with the fragments of the version before the edit
+ * cached. Each edit adds a statement to the start of a method body, and
+ * each round edits afresh, so the edited methods always miss.
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import japa.parser.*;
+import japa.parser.ast.*;
+import japa.parser.ast.body.*;
+
+public class FragmentCache {
+
+    public static final long DEFAULT_LIMIT = 64L << 20;
+
+    private final long limit;
+    private final LinkedHashMap<ByteBuffer, byte[]> fragments = new LinkedHashMap<ByteBuffer, byte[]>(1024, 0.75f, true);
+    private long size = 0;
+    private long hits = 0, misses = 0;
+
+    public FragmentCache() {
+        this(DEFAULT_LIMIT);
+    }
+
+    public FragmentCache(long limit) {
+        this.limit = limit;
+    }
+
+    //- Hashes --------------------------------------------
+
+    /*
+     * Source as the parser reads it, with positions as the parser counts
+     * them: lines from 1, broken by "\n", "\r" or "\r\n", and columns from
+     * 1, in characters, a tab moving to the column after the next multiple
+     * of 8. Characters are taken to be in UTF-8, or plain ASCII.
+     */
+    static class Text {
+        final byte[] source;
+        final int[] lineStarts;
+        final boolean ascii, escapes;
+
+        Text(byte[] source) {
+            this.source = source;
+            int[] starts = new int[1024];
+            int lines = 2; // starts[0] is unused
+            boolean ascii = true, escapes = false;
+            for(int i = 0; i < source.length; i++) {
+                byte b = source[i];
+                if(b == '\n' || (b == '\r' && (i + 1 == source.length || source[i + 1] != '\n'))) {
+                    if(lines == starts.length)
+                        starts = Arrays.copyOf(starts, lines * 2);
+                    starts[lines++] = i + 1;
+                } else if(b < 0) {
+                    ascii = false;
+                } else if(b == '\\' && i + 1 < source.length && source[i + 1] == 'u') {
+                    escapes = true;
+                }
+            }
+            this.lineStarts = Arrays.copyOf(starts, lines);
+            this.ascii = ascii;
+            this.escapes = escapes;
+        }
+
+        /*
+         * The offset of the first byte of the character at the given
+         * position
+         */
+        int offset(int line, int column) {
+            int i = lineStarts[line];
+            int c = 0;
+            while(true) {
+                int b = source[i] & 0xff;
+                if(b == '\t')
+                    c += 8 - c % 8;
+                else if(b < 0x80 || b >= 0xc0)
+                    c += b >= 0xf0 ? 2 : 1; // beyond the BMP, a character is two chars
+                if(c >= column)
+                    return i;
+                i++;
+            }
+        }
+
+        /*
+         * The offset just after the end of node, which is a type or a
+         * member, and so ends with "}" or ";"; or -1 if the character
+         * there is neither, as in source that is not well-formed UTF-8
+         */
+        int end(Node node) {
+            int i = offset(node.getEndLine(), node.getEndColumn());
+            return source[i] == '}' || source[i] == ';' ? i + 1 : -1;
+        }
+    }
+
+    /*
+     * Hashes the members of the top-level types of cu, given the source it
+     * was parsed from. A member's hash covers the bytes after the member or
+     * type before it, up to its own end, so covers all of its own text, led
+     * by a byte for the way it is printed.
+     *
+     * The hashes of members of classes and enums are put in decls; those of
+     * members of interfaces, which print differently, in memberDecls.
+     *
+     * Nothing is hashed for source the parser would read other than as
+     * UTF-8, or with Unicode escapes, where its columns are not those of
+     * the characters; nor for source that is not ASCII when the output is
+     * encoded in a charset other than UTF-8, so that all the text kept is in
+     * the same charset.
+     */
+    static void hash(CompilationUnit cu, byte[] source, Charset charset, Map<Node, ByteBuffer> decls, Map<Node, ByteBuffer> memberDecls) {
+        if(cu.getTypes() == null)
+            return;
+        Text text = new Text(source);
+        if(text.escapes || (!text.ascii && !(Charset.defaultCharset().equals(StandardCharsets.UTF_8) && charset.equals(StandardCharsets.UTF_8))))
+            return;
+
+        if(!hash(cu, text, decls, memberDecls)) {
+            // the positions are off, so none of the hashes can be trusted
+            decls.clear();
+            memberDecls.clear();
+        }
+    }
+
+    private static boolean hash(CompilationUnit cu, Text text, Map<Node, ByteBuffer> decls, Map<Node, ByteBuffer> memberDecls) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        int from = 0;
+        for(TypeDeclaration type : cu.getTypes()) {
+            boolean isInterface = type instanceof ClassOrInterfaceDeclaration && ((ClassOrInterfaceDeclaration)type).isInterface();
+            if(type.getMembers() != null) {
+                for(BodyDeclaration m : type.getMembers()) {
+                    int to = text.end(m);
+                    if(to < 0)
+                        return false;
+                    md.update((byte)(isInterface ? 'M' : 'D'));
+                    md.update(text.source, from, to - from);
+                    (isInterface ? memberDecls : decls).put(m, ByteBuffer.wrap(md.digest()));
+                    from = to;
+                }
+            }
+
+            from = text.end(type);
+            if(from < 0)
+                return false;
+        }
+        return true;
+    }
+
+    //- Fragments -----------------------------------------
+
+    public synchronized byte[] get(ByteBuffer hash) {
+        byte[] text = fragments.get(hash);
+        if(text == null)
+            misses++;
+        else
+            hits++;
+        return text;
+    }
+
+    public synchronized void put(ByteBuffer hash, byte[] text) {
+        byte[] old = fragments.put(hash, text);
+        if(old != null)
+            size -= old.length;
+        size += text.length;
+
+        Iterator<byte[]> it = fragments.values().iterator();
+        while(size > limit && it.hasNext()) {
+            size -= it.next().length;
+            it.remove();
+        }
+    }
+
+    public synchronized String summary() {
+        return String.format("fragments: %d hits, %d misses, %d kept, %.1f MB", hits, misses, fragments.size(), size / 1e6);
+    }
+
+    //- Benchmark -----------------------------------------
+
+    /*
+     * For each method among the members of the top-level types whose
+     * body's "{" ends its line, the line after that, where a statement can
+     * be put in without touching anything else
+     */
+    private static List<Integer> editableLines(CompilationUnit cu, Text text) {
+        List<Integer> lines = new ArrayList<Integer>();
+        if(cu.getTypes() == null)
+            return lines;
+
+        for(TypeDeclaration type : cu.getTypes()) {
+            if(type.getMembers() == null)
+                continue;
+            for(BodyDeclaration m : type.getMembers()) {
+                // not constructors, whose bodies may have to start with this() or super()
+                Node body = m instanceof MethodDeclaration ? ((MethodDeclaration)m).getBody() : null;
+                if(body == null)
+                    continue;
+
+                byte[] b = text.source;
+                int i = text.offset(body.getBeginLine(), body.getBeginColumn()) + 1;
+                while(i < b.length && (b[i] == ' ' || b[i] == '\t'))
+                    i++;
+                if(i < b.length && (b[i] == '\n' || b[i] == '\r'))
+                    lines.add(body.getBeginLine() + 1);
+            }
+        }
+        return lines;
+    }
+
+    /*
+     * source with "edit = serial;" put at the start of count of the lines,
+     * spread evenly over them
+     */
+    private static byte[] edit(byte[] source, int[] lineStarts, List<Integer> lines, int count, int serial) {
+        int[] at = new int[count];
+        for(int i = 0; i < count; i++)
+            at[i] = lineStarts[lines.get((int)((long)i * lines.size() / count))];
+
+        byte[] statement = ByteOutput.ascii("edit = " + serial + "; ");
+        ByteArrayOutputStream out = new ByteArrayOutputStream(source.length + count * statement.length);
+        int from = 0;
+        for(int offset : at) {
+            out.write(source, from, offset - from);
+            out.write(statement, 0, statement.length);
+            from = offset;
+        }
+        out.write(source, from, source.length - from);
+        return out.toByteArray();
+    }
+
+    private static double median(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2] / 1e6;
+    }
+
+    static int run(String[] args) throws IOException, ParseException {
+        int rounds = 9;
+        String infile = null;
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-r"))
+                rounds = Integer.parseInt(args[++i]);
+            else
+                infile = args[i];
+        }
+        if(infile == null)
+            throw new IllegalArgumentException("Usage: --incremental [-r rounds] infile\n"
+                                               + "  (declarations are cached by the MD5 of their source text, not by a hash of their subtree)");
+
+        byte[] source = Files.readAllBytes(new File(infile).toPath());
+        Text text = new Text(source);
+        List<Integer> lines = editableLines(Prefilter.parse(source), text);
+        if(lines.isEmpty())
+            throw new IllegalArgumentException(infile + " has no method bodies to edit");
+        int[] lineStarts = text.lineStarts;
+
+        List<Integer> counts = new ArrayList<Integer>();
+        counts.add(0);
+        for(int k = 1; k < lines.size(); k *= 4)
+            counts.add(k);
+        counts.add(lines.size());
+
+        FragmentCache cache = new FragmentCache();
+        int serial = 0;
+
+        System.out.println(String.format("%s: %d bytes, %d editable methods; median of %d rounds, in ms",
+                                         infile, source.length, lines.size(), rounds));
+        System.out.println("declarations cached as text, by the MD5 of their source text");
+        System.out.println(String.format("%8s %8s %8s %12s %8s %14s %8s",
+                                         "edited", "parse", "full", "incremental", "speedup", "edit-to-output", "misses"));
+
+        // the first pass over the counts only warms up
+        for(int pass = 0; pass < 2; pass++) {
+            for(int k : counts) {
+                long[] parse = new long[rounds], full = new long[rounds], incremental = new long[rounds];
+                int misses = 0;
+
+                // the version before the first edit
+                JavaparserToHS.translate(edit(source, lineStarts, lines, k, ++serial), new ByteOutput(), cache);
+
+                for(int r = 0; r < rounds; r++) {
+                    byte[] edited = edit(source, lineStarts, lines, k, ++serial);
+
+                    // collect beforehand, so that each time is of its own garbage
+                    System.gc();
+                    long t0 = System.nanoTime();
+                    CompilationUnit cu = Prefilter.parse(edited);
+                    long t1 = System.nanoTime();
+                    parse[r] = t1 - t0;
+
+                    System.gc();
+                    t0 = System.nanoTime();
+                    ByteOutput expected = new ByteOutput();
+                    JavaparserToHS.translate(cu, expected);
+                    t1 = System.nanoTime();
+                    full[r] = t1 - t0;
+
+                    System.gc();
+                    t0 = System.nanoTime();
+                    ByteOutput out = new ByteOutput();
+                    IncrementalDeriveReadVisitor v = new IncrementalDeriveReadVisitor(out, cache, edited);
+                    cu.accept(v, null);
+                    t1 = System.nanoTime();
+                    incremental[r] = t1 - t0;
+                    misses = v.misses();
+
+                    if(!Arrays.equals(expected.toByteArray(), out.toByteArray()))
+                        throw new IllegalStateException("Incremental translation of " + infile + " differs from full translation");
+                }
+
+                if(pass == 1) {
+                    System.out.println(String.format("%8d %8.1f %8.1f %12.1f %7.1fx %14.1f %8d", k, median(parse), median(full),
+                                                     median(incremental), median(full) / median(incremental),
+                                                     median(parse) + median(incremental), misses));
+                }
+            }
+        }
+        System.out.println(cache.summary());
+        return 0;
+    }
+}
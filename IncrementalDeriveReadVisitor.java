@@ -0,0 +1,125 @@
+/*
+ * Translates a compilation unit to text reusing the text printed for the
+ * declarations it shares with trees translated before, as kept in a
+ * FragmentCache.
+ *
+ * The units are the members of the top-level types. What is printed for
+ * one of them depends on nothing but its own subtree, so a member whose
+ * hash (see FragmentCache) is in the cache has the cached text copied
+ * into the output without being visited, and the text of one that is not
+ * is copied out of the output once it is printed, and stored. The cost of
+ * a translation is then that of the members that changed, and of copying
+ * the rest. Everything else, the types themselves and the package and
+ * imports, is little, and is translated every time.
+ *
+ * Members of nested and local classes are not units of their own; they
+ * are part of the member they are declared in.
+ *
+ * Only text is cached: what the binary formats write for a member
+ * depends on what was written before it, a list's count or a shared
+ * node's index, so it cannot be copied into another output as it is.
+ *
+ * @author James Koppel
+ */
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+
+import japa.parser.ast.CompilationUnit;
+import japa.parser.ast.Node;
+import japa.parser.ast.body.*;
+
+public class IncrementalDeriveReadVisitor extends GeneratedDeriveReadVisitor {
+
+    private final FragmentCache cache;
+    private final byte[] source;
+    private final ByteOutput out;
+    private final TextSink text;
+
+    /*
+     * The hash of every unit in the tree being translated: the members
+     * printed by printDecl, as those of classes and enums are, and those
+     * printed by printMemberDecl, as those of interfaces are. The latter is
+     * also called for the former, from printDecl, but must not copy in
+     * their text.
+     */
+    private final IdentityHashMap<Node, ByteBuffer> decls = new IdentityHashMap<Node, ByteBuffer>();
+    private final IdentityHashMap<Node, ByteBuffer> memberDecls = new IdentityHashMap<Node, ByteBuffer>();
+
+    private int hits = 0, misses = 0;
+
+    /*
+     * source is what the tree was parsed from
+     */
+    public IncrementalDeriveReadVisitor(ByteOutput out, FragmentCache cache, byte[] source) {
+        this(new TextSink(out), out, cache, source);
+    }
+
+    private IncrementalDeriveReadVisitor(TextSink text, ByteOutput out, FragmentCache cache, byte[] source) {
+        super(text);
+        this.cache = cache;
+        this.source = source;
+        this.out = out;
+        this.text = text;
+    }
+
+    public int hits() {
+        return hits;
+    }
+
+    public int misses() {
+        return misses;
+    }
+
+    public void visit(CompilationUnit n, Object _) {
+        FragmentCache.hash(n, source, out.charset(), decls, memberDecls);
+        super.visit(n, _);
+    }
+
+    /*
+     * Whether the unit with the given hash was copied in from the cache
+     */
+    private boolean copied(ByteBuffer hash) {
+        byte[] fragment = cache.get(hash);
+        if(fragment == null) {
+            misses++;
+            return false;
+        }
+        hits++;
+        text.value(fragment);
+        return true;
+    }
+
+    /*
+     * Where in the output the text of a unit about to be printed will
+     * start, or -1 if it is not to be stored
+     */
+    private long start(ByteBuffer hash) {
+        int separator = hash == null ? -1 : text.separator();
+        return separator < 0 ? -1 : out.position() + separator;
+    }
+
+    private void printed(ByteBuffer hash, long from) {
+        byte[] fragment = from < 0 ? null : out.since(from);
+        if(fragment != null)
+            cache.put(hash, fragment);
+    }
+
+    public void printDecl(BodyDeclaration n) {
+        ByteBuffer hash = decls.get(n);
+        if(hash != null && copied(hash))
+            return;
+        long from = start(hash);
+        super.printDecl(n);
+        printed(hash, from);
+    }
+
+    public void printMemberDecl(BodyDeclaration n) {
+        ByteBuffer hash = memberDecls.get(n);
+        if(hash != null && copied(hash))
+            return;
+        long from = start(hash);
+        super.printMemberDecl(n);
+        printed(hash, from);
+    }
+}
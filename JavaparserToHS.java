@@ -1,22 +1,279 @@
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.util.Arrays;
 
 import japa.parser.*;
 import japa.parser.ast.*;
 
 public class JavaparserToHS {
+
+    /*
+     * The output formats: derived-Read text, the binary encoding described
+     * in AstSchema, and its shared (DAG) variant.
+     */
+    public enum Format {
+        TEXT, BINARY, DAG;
+
+        AstSink sink(ByteOutput out) {
+            switch(this) {
+            case BINARY: return new BinaryAstOutput(out);
+            case DAG: return new BinaryAstOutput(out, true);
+            default: return new TextSink(out);
+            }
+        }
+    }
+
+    /*
+     * Translates a single file. Throws ParseException if it does not parse,
+     * and UnsupportedNodeException if it uses a construct the translator
+     * does not handle; Prefilter finds most of those before outfile is
+     * even opened. If translation fails, nothing is left at outfile.
+     */
+    public static ToDeriveReadVisitor translate(File infile, File outfile) throws IOException, ParseException {
+        return translate(infile, outfile, Format.TEXT);
+    }
+
+    public static ToDeriveReadVisitor translate(File infile, File outfile, Format format) throws IOException, ParseException {
+        return translate(infile, outfile, format, false);
+    }
+
+    /*
+     * If mapped, the tree is printed twice: once only to count the bytes,
+     * then into outfile mapped at exactly that size (see MappedOutput).
+     * Only a regular file can be mapped; anything else, say /dev/stdout,
+     * is written to as usual.
+     */
+    public static ToDeriveReadVisitor translate(File infile, File outfile, Format format, boolean mapped) throws IOException, ParseException {
+        return translate(Prefilter.parse(Files.readAllBytes(infile.toPath())), outfile, format, mapped);
+    }
+
+    /*
+     * As above, but looks in cache first, and stores the outcome there
+     * unless it was found. Returns null if the output, or the failure, came
+     * from the cache.
+     */
+    public static ToDeriveReadVisitor translate(File infile, File outfile, Format format, boolean mapped,
+                                                TranslationCache cache) throws IOException, ParseException {
+        if(cache == null)
+            return translate(infile, outfile, format, mapped);
+
+        byte[] source = Files.readAllBytes(infile.toPath());
+        String key = TranslationCache.key(source);
+        while(true) {
+            if(cache.fetch(key, format, outfile))
+                return null;
+            if(cache.claim(key))
+                break;
+        }
+
+        try {
+            CompilationUnit cu;
+            ToDeriveReadVisitor v;
+            try {
+                cu = Prefilter.parse(source);
+                v = translate(cu, outfile, format, mapped);
+            } catch(ParseException e) {
+                cache.storeFailure(key, e);
+                throw e;
+            } catch(TokenMgrError e) {
+                cache.storeFailure(key, e);
+                throw e;
+            } catch(UnsupportedOperationException e) {
+                cache.storeFailure(key, e);
+                throw e;
+            }
+            if(Files.isRegularFile(outfile.toPath()))
+                cache.storeOutput(key, format, outfile);
+            return v;
+        } finally {
+            cache.release(key);
+        }
+    }
+
+    private static ToDeriveReadVisitor translate(CompilationUnit cu, File outfile, Format format, boolean mapped) throws IOException {
+        if(mapped && (!outfile.exists() || Files.isRegularFile(outfile.toPath(), LinkOption.NOFOLLOW_LINKS)))
+            return translateMapped(cu, outfile, format);
+
+        FileOutputStream outStream = new FileOutputStream(outfile);
+        AstSink sink = format.sink(new ByteOutput(outStream.getChannel()));
+        boolean done = false;
+
+        try {
+            ToDeriveReadVisitor v = translate(cu, sink);
+            done = true;
+            return v;
+        } finally {
+            if(done)
+                outStream.close();
+            else
+                discard(outStream, outfile);
+        }
+    }
+
+    private static ToDeriveReadVisitor translateMapped(CompilationUnit cu, File outfile, Format format) throws IOException {
+        MappedOutput.Counter counter = new MappedOutput.Counter();
+        translate(cu, format.sink(counter));
+
+        long size = counter.count();
+        if(size > Integer.MAX_VALUE)
+            throw new IOException("Output of " + size + " bytes is too large to map");
+
+        RandomAccessFile file = new RandomAccessFile(outfile, "rw");
+        boolean done = false;
+        try {
+            file.setLength(size);
+            MappedOutput mapping = new MappedOutput(file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+            ToDeriveReadVisitor v = translate(cu, format.sink(mapping));
+            if(mapping.size() != size)
+                throw new IllegalStateException("Counted " + size + " bytes of output, but wrote " + mapping.size());
+            done = true;
+            return v;
+        } finally {
+            file.close();
+            if(!done)
+                outfile.delete();
+        }
+    }
+
+    /*
+     * Throws away the partial output of a failed translation. An ordinary
+     * file is deleted; anything else, say /dev/stdout, is only emptied,
+     * where that is possible.
+     */
+    static void discard(FileOutputStream outStream, File outfile) throws IOException {
+        boolean regular = Files.isRegularFile(outfile.toPath(), LinkOption.NOFOLLOW_LINKS);
+        if(!regular) {
+            try {
+                outStream.getChannel().truncate(0);
+            } catch(IOException e) {
+                // a pipe or a terminal; what was written is gone anyway
+            }
+        }
+
+        outStream.close();
+        if(regular)
+            outfile.delete();
+    }
+
+    public static ToDeriveReadVisitor translate(InputStream in, ByteOutput out) throws ParseException {
+        CompilationUnit cu = JavaParser.parse(in);
+        Prefilter.check(cu);
+        return translate(cu, out);
+    }
+
+    /*
+     * Prints a tree as text into out
+     */
+    public static ToDeriveReadVisitor translate(CompilationUnit cu, ByteOutput out) {
+        return translate(cu, new TextSink(out));
+    }
+
+    /*
+     * Translates source reusing, and adding to, the text of the
+     * declarations kept in cache
+     */
+    public static IncrementalDeriveReadVisitor translate(byte[] source, ByteOutput out, FragmentCache cache) throws ParseException {
+        CompilationUnit cu = Prefilter.parse(source);
+        IncrementalDeriveReadVisitor v = new IncrementalDeriveReadVisitor(out, cache, source);
+        cu.accept(v, null);
+        return v;
+    }
+
+    /*
+     * Translates a tree into a sink, and finishes it
+     */
+    public static ToDeriveReadVisitor translate(CompilationUnit cu, AstSink sink) {
+        ToDeriveReadVisitor v = new GeneratedDeriveReadVisitor(sink);
+        cu.accept(v, null);
+        sink.finish();
+        return v;
+    }
+
     public static void main(String[] args) throws Exception {
+        if(args.length > 0 && args[0].equals("--batch")) {
+            System.exit(BatchTranslator.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        if(args.length > 0 && args[0].equals("--pipeline")) {
+            System.exit(TranslationPipeline.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        if(args.length > 0 && args[0].equals("--watch")) {
+            System.exit(SourceWatcher.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        if(args.length > 0 && args[0].equals("--bench")) {
+            System.exit(CorpusBenchmark.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        if(args.length > 0 && args[0].equals("--server")) {
+            TranslationServer.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        if(args.length > 0 && args[0].equals("--pipe")) {
+            System.exit(TranslationCoprocess.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        if(args.length > 0 && args[0].equals("--reduce")) {
+            System.exit(Reducer.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        if(args.length > 0 && args[0].equals("--triage")) {
+            System.exit(Triage.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        if(args.length > 0 && args[0].equals("--tee")) {
+            System.exit(TeeSink.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        if(args.length > 0 && args[0].equals("--incremental")) {
+            System.exit(FragmentCache.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        if(args.length > 0 && args[0].equals("--prefilter")) {
+            System.exit(Prefilter.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        TranslationCache cache = null;
+        if(args.length > 1 && args[0].equals("--cache")) {
+            cache = new TranslationCache(new File(args[1]), TranslationCache.DEFAULT_LIMIT);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
+        boolean mapped = false;
+        if(args.length > 0 && args[0].equals("--mmap")) {
+            mapped = true;
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+
+        Format format = Format.TEXT;
+        if(args.length > 0 && args[0].equals("--binary"))
+            format = Format.BINARY;
+        else if(args.length > 0 && args[0].equals("--dag"))
+            format = Format.DAG;
+        if(format != Format.TEXT)
+            args = Arrays.copyOfRange(args, 1, args.length);
+
         String infile = args[0];
         String outfile = args[1];
 
-        FileInputStream in = new FileInputStream(infile);
-        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(outfile)));
-        
+        boolean unsupported = false;
         try {
-            CompilationUnit cu = JavaParser.parse(in);
-            cu.accept(new ToDeriveReadVisitor(out), null);
-        } finally {
-            in.close();
-            out.close();
+            ToDeriveReadVisitor v = translate(new File(infile), new File(outfile), format, mapped, cache);
+
+            if(v != null && Boolean.getBoolean("javaparser-to-hs.stats")) {
+                System.err.println(v.dispatches() + " table dispatches, " +
+                                   ToDeriveReadVisitor.planLookups() + " keyed plan lookups");
+            }
+        } catch(UnsupportedOperationException e) {
+            System.err.println(e.getMessage());
+            unsupported = true;
         }
+
+        if(unsupported)
+            System.exit(1);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,112 @@
+/*
+ * Decides the order in which translation jobs start, and how many run at
+ * once.
+ *
+ * The corpus is skewed: a few files are hundreds of times the size of
+ * most. One of them started last keeps a thread busy long after the
+ * others have run out of work; several of them started together can
+ * exhaust the heap. So jobs are started in decreasing order of estimated
+ * cost (longest processing time first), the cost being the size of the
+ * source, which both parsing and translating time follow. And a job only
+ * starts once its estimated heap fits in a budget beside the jobs already
+ * running, in turn, so that a large job is not overtaken indefinitely by
+ * smaller ones; a job estimated at more than the whole budget runs alone.
+ *
+ * @author James Koppel
+ */
+
+import java.util.*;
+
+public class JobScheduler {
+
+    /*
+     * Measured on the largest files of the test corpus: a parsed tree takes
+     * up to 8 bytes of heap per byte of source, and parsing and
+     * translating a file, output aside, fit in 11
+     */
+    static final int HEAP_PER_SOURCE_BYTE = 12;
+
+    /*
+     * Output per byte of source, in each format, with room for the buffer
+     * it is collected in to have grown by doubling
+     */
+    private static final int[] OUTPUT_PER_SOURCE_BYTE = {6, 2, 1};
+
+    /*
+     * The heap a job is estimated to take per byte of its source, if its
+     * output is held in memory or not
+     */
+    static int heapPerByte(JavaparserToHS.Format format, boolean outputHeld) {
+        return HEAP_PER_SOURCE_BYTE + (outputHeld ? OUTPUT_PER_SOURCE_BYTE[format.ordinal()] : 0);
+    }
+
+    /*
+     * Half of the most the heap can grow to, leaving the rest to the
+     * collector and to what the estimates miss
+     */
+    static long defaultBudget() {
+        return Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    private final int[] order;
+    private final long[] heap;
+    private final long budget;
+
+    private long inUse = 0;
+    private int admitted = 0; // the position of the next job to start
+
+    JobScheduler(List<BatchTranslator.Job> jobs, int heapPerByte, long budget) {
+        final long[] size = new long[jobs.size()];
+        Integer[] byCost = new Integer[jobs.size()];
+        for(int i = 0; i < size.length; i++) {
+            size[i] = jobs.get(i).in.length();
+            byCost[i] = i;
+        }
+
+        // a stable sort, so that equal sizes keep the order they were given in
+        Arrays.sort(byCost, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(size[b], size[a]);
+            }
+        });
+
+        this.order = new int[size.length];
+        this.heap = new long[size.length];
+        for(int i = 0; i < size.length; i++) {
+            order[i] = byCost[i];
+            heap[i] = Math.min(budget, size[order[i]] * heapPerByte);
+        }
+        this.budget = budget;
+    }
+
+    int size() {
+        return order.length;
+    }
+
+    /*
+     * The index, in the list given, of the job at position in the order
+     */
+    int job(int position) {
+        return order[position];
+    }
+
+    /*
+     * Waits until the job at position may start: until all the jobs
+     * before it have, and its estimate fits in what is left of the budget
+     */
+    synchronized void admit(int position) throws InterruptedException {
+        while(position != admitted || inUse + heap[position] > budget)
+            wait();
+        inUse += heap[position];
+        admitted++;
+        notifyAll();
+    }
+
+    /*
+     * Gives back the budget of the job at position, which has finished
+     */
+    synchronized void release(int position) {
+        inUse -= heap[position];
+        notifyAll();
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Checks LiteralDecoder against a plain reading of each literal:
+ * BigInteger for int and long literals, taken modulo 2^32 or 2^64 as
+ * Java takes hex and octal ones, and Double.parseDouble for floating
+ * point ones.
+ *
+ * Usage:
+ *   java LiteralCheck <dir> [seed [count]]
+ *       decode every numeric literal in the .java files under dir, then
+ *       count random literals of each kind (1000000 by default), and
+ *       report each that decodes differently; exits 1 if any do
+ *
+ * Every int and long literal must decode. A floating-point literal the
+ * decoder leaves to the visitor is no mismatch, since the visitor reads
+ * it with Double.parseDouble, the same as here.
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import japa.parser.*;
+import japa.parser.ast.*;
+import japa.parser.ast.expr.*;
+import japa.parser.ast.visitor.VoidVisitorAdapter;
+
+public class LiteralCheck {
+
+    private static final int SHOWN = 20;
+
+    private static final String DIGITS = "0123456789";
+    private static final String HEX_DIGITS = "0123456789abcdefABCDEF";
+
+    private final LiteralDecoder decoder = new LiteralDecoder();
+
+    private long checked = 0;
+    private long decoded = 0;
+    private long mismatches = 0;
+
+    /*
+     * What an int or long literal should print as, or null if s is not one
+     */
+    static String expectedInteger(String s, boolean isLong) {
+        int to = s.length();
+        if(isLong && to > 1 && (s.charAt(to - 1) == 'L' || s.charAt(to - 1) == 'l'))
+            to--;
+
+        boolean negative = to > 1 && s.charAt(0) == '-';
+        int from = negative ? 1 : 0;
+        int radix = 10;
+        if(to - from > 2 && s.charAt(from) == '0' && (s.charAt(from + 1) == 'x' || s.charAt(from + 1) == 'X')) {
+            radix = 16;
+            from += 2;
+        } else if(to - from > 1 && s.charAt(from) == '0') {
+            radix = 8;
+            from++;
+        }
+
+        // BigInteger would take a sign of its own
+        String digits = s.substring(from, to);
+        if(digits.isEmpty() || digits.charAt(0) == '-' || digits.charAt(0) == '+')
+            return null;
+
+        BigInteger n;
+        try {
+            n = new BigInteger(digits, radix);
+        } catch(NumberFormatException e) {
+            return null;
+        }
+        if(negative)
+            n = n.negate();
+        return isLong ? Long.toString(n.longValue()) : Integer.toString(n.intValue());
+    }
+
+    /*
+     * What a floating-point literal should print as, or null if s is not one
+     */
+    static String expectedDouble(String s) {
+        try {
+            return Double.toString(Double.parseDouble(s));
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Checks one literal, of kind 'i' (int), 'l' (long) or 'd' (double)
+     */
+    void check(char kind, String s) {
+        checked++;
+
+        int len;
+        String expected;
+        if(kind == 'd') {
+            len = decoder.decodeDouble(s);
+            if(len < 0)
+                return;
+            expected = expectedDouble(s);
+        } else {
+            len = kind == 'l' ? decoder.decodeLong(s) : decoder.decodeInt(s);
+            expected = expectedInteger(s, kind == 'l');
+        }
+
+        String got = null;
+        if(len >= 0) {
+            decoded++;
+            got = new String(decoder.bytes(), 0, len, StandardCharsets.US_ASCII);
+        }
+        if(got == null ? expected != null : !got.equals(expected)) {
+            if(mismatches++ < SHOWN)
+                System.out.println("MISMATCH " + kind + " " + s + ": decoded " + got + ", expected " + expected);
+        }
+    }
+
+    private void report(String what) {
+        System.out.println(what + ": " + checked + " literals, " + decoded + " decoded, " + mismatches + " mismatches");
+    }
+
+    //- The corpus ----------------------------------------
+
+    void checkCorpus(File dir) {
+        List<File> files = new ArrayList<File>();
+        VisitorGenerator.collect(dir, files);
+
+        VoidVisitorAdapter<Object> literals = new VoidVisitorAdapter<Object>() {
+            public void visit(IntegerLiteralExpr n, Object arg) {
+                check('i', n.getValue());
+            }
+
+            public void visit(IntegerLiteralMinValueExpr n, Object arg) {
+                check('i', n.getValue());
+            }
+
+            public void visit(LongLiteralExpr n, Object arg) {
+                check('l', n.getValue());
+            }
+
+            public void visit(LongLiteralMinValueExpr n, Object arg) {
+                check('l', n.getValue());
+            }
+
+            public void visit(DoubleLiteralExpr n, Object arg) {
+                check('d', n.getValue());
+            }
+        };
+
+        for(File f : files) {
+            CompilationUnit cu;
+            try {
+                cu = JavaParser.parse(f);
+            } catch(Throwable e) {
+                // not ours to translate either
+                continue;
+            }
+            cu.accept(literals, null);
+        }
+    }
+
+    //- Random literals -----------------------------------
+
+    private static void digits(Random r, StringBuilder sb, String digits, int radix, int n) {
+        for(int i = 0; i < n; i++)
+            sb.append(digits.charAt(r.nextInt(radix == 16 ? digits.length() : radix)));
+    }
+
+    /*
+     * The digits of an integer literal: decimal, octal or hex, short or
+     * long, near the limits of int and long, and now and then malformed
+     */
+    static String randomInteger(Random r) {
+        StringBuilder sb = new StringBuilder();
+        int len = 1 + r.nextInt(r.nextBoolean() ? 8 : 30);
+
+        switch(r.nextInt(10)) {
+        case 0:
+        case 1:
+            digits(r, sb, DIGITS, 10, len);
+            break;
+        case 2:
+            sb.append('0');
+            digits(r, sb, DIGITS, r.nextInt(10) == 0 ? 10 : 8, len);
+            break;
+        case 3:
+            sb.append(r.nextBoolean() ? "0x" : "0X");
+            digits(r, sb, HEX_DIGITS, 16, len);
+            break;
+        case 4:
+            // all ones, and around the sign bit, in hex and octal
+            long n = (r.nextBoolean() ? -1L : Long.MIN_VALUE) + r.nextInt(5) - 2;
+            if(r.nextBoolean())
+                n >>>= 32;
+            sb.append(r.nextBoolean() ? "0x" + Long.toHexString(n) : "0" + Long.toOctalString(n));
+            break;
+        case 5:
+            sb.append(Math.abs(r.nextLong()));
+            break;
+        case 6:
+            sb.append(r.nextBoolean() ? "-" : "").append(r.nextBoolean() ? Integer.MIN_VALUE : Long.MIN_VALUE);
+            break;
+        case 7:
+            // leading zeros, which change nothing
+            sb.append("0000000000000000000000".substring(r.nextInt(22)));
+            sb.append(Integer.toOctalString(r.nextInt()));
+            break;
+        case 8:
+            sb.append(r.nextBoolean() ? "-" : r.nextBoolean() ? "+" : "0x");
+            digits(r, sb, HEX_DIGITS, r.nextBoolean() ? 16 : 10, r.nextInt(3));
+            break;
+        default:
+            sb.append(Integer.toString(r.nextInt() & 0x7fffffff, r.nextBoolean() ? 10 : 8));
+            break;
+        }
+        return sb.toString();
+    }
+
+    /*
+     * A floating-point literal: plain digits, with and without point and
+     * exponent, as Double.toString prints them, and at the edges of what
+     * the decoder handles
+     */
+    static String randomDouble(Random r) {
+        StringBuilder sb = new StringBuilder();
+        int kind = r.nextInt(6);
+        if(kind < 3) {
+            int intDigits = r.nextInt(kind == 0 ? 3 : 10);
+            int fracDigits = r.nextInt(kind == 0 ? 20 : 12);
+            digits(r, sb, DIGITS, 10, intDigits);
+            if(r.nextInt(10) != 0 || intDigits == 0)
+                sb.append('.');
+            digits(r, sb, DIGITS, 10, fracDigits);
+            if(sb.length() == 0 || sb.toString().equals("."))
+                sb.append('1');
+            if(r.nextInt(8) == 0)
+                sb.append('e').append(r.nextInt(40) - 20);
+        } else if(kind == 3) {
+            sb.append(Double.toString(r.nextDouble() * Math.pow(10, r.nextInt(20) - 8)));
+        } else if(kind == 4) {
+            sb.append(new BigDecimal(r.nextDouble() * 1e6).setScale(r.nextInt(14), RoundingMode.HALF_UP).toPlainString());
+        } else {
+            sb.append("0.").append("000".substring(r.nextInt(4))).append(r.nextInt(1000000));
+        }
+
+        switch(r.nextInt(6)) {
+        case 0: sb.append('f'); break;
+        case 1: sb.append('D'); break;
+        case 2: sb.append('F'); break;
+        }
+        return sb.toString();
+    }
+
+    void checkRandom(long seed, int count) {
+        Random r = new Random(seed);
+        for(int i = 0; i < count; i++) {
+            String s = randomInteger(r);
+            check('i', s);
+            check('l', r.nextBoolean() ? s + (r.nextBoolean() ? "L" : "l") : s);
+            check('d', randomDouble(r));
+        }
+    }
+
+    public static void main(String[] args) {
+        if(args.length < 1 || args.length > 3) {
+            System.err.println("Usage: java LiteralCheck <dir> [seed [count]]");
+            System.exit(2);
+        }
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+
+        // JavaParser otherwise shares one parser instance between all callers
+        JavaParser.setCacheParser(false);
+
+        LiteralCheck corpus = new LiteralCheck();
+        corpus.checkCorpus(new File(args[0]));
+        corpus.report("corpus");
+
+        LiteralCheck random = new LiteralCheck();
+        random.checkRandom(seed, count);
+        random.report("random, seed " + seed);
+
+        System.exit(corpus.mismatches + random.mismatches == 0 ? 0 : 1);
+    }
+}
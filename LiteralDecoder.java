@@ -0,0 +1,199 @@
+/*
+ * Decodes Java numeric literals into the digits the translator prints for
+ * them, without going through BigInteger or an intermediate String.
+ *
+ * Each decode method writes the digits into a scratch buffer, available
+ * from bytes(), and returns their count, or -1 if it does not handle the
+ * literal:
+ *
+ *   int, long   decimal, octal or hex, of any length, with an optional
+ *               minus sign (as the min-value literals have) and for long
+ *               an L suffix; printed as the value modulo 2^32 or 2^64 in
+ *               two's complement, as Java reads hex and octal (so
+ *               0x80000000 and 0xffffffffffffffffL are negative). Only
+ *               text that is no such literal is refused.
+ *   double      digits with an optional point and f/d suffix, no
+ *               exponent, at most 15 significant digits, and zero or at
+ *               least 0.001 and below 10^7; printed as Double.toString
+ *               would, which for these is the literal's own digits. The
+ *               caller reads any other with Double.parseDouble.
+ *
+ * LiteralCheck compares these against BigInteger and Double.parseDouble,
+ * on the literals of a corpus and on random ones.
+ *
+ * A buffer belongs to one decoder, so each visitor has its own.
+ *
+ * @author James Koppel
+ */
+
+public class LiteralDecoder {
+
+    private static final int MAX_LENGTH = 40;
+
+    private final byte[] buf = new byte[MAX_LENGTH];
+
+    public byte[] bytes() {
+        return buf;
+    }
+
+    private static int digit(char c) {
+        return c >= '0' && c <= '9' ? c - '0' : -1;
+    }
+
+    private static int hexDigit(char c) {
+        if(c >= '0' && c <= '9')
+            return c - '0';
+        if(c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if(c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    /*
+     * Whether s[from, to) is a non-empty run of digits in the given radix
+     */
+    private static boolean isDigits(String s, int from, int to, int radix) {
+        if(to <= from)
+            return false;
+
+        for(int i = from; i < to; i++) {
+            int d = radix == 16 ? hexDigit(s.charAt(i)) : digit(s.charAt(i));
+            if(d < 0 || d >= radix)
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * The value of s[from, to), which isDigits has accepted, modulo 2^64
+     */
+    private static long value(String s, int from, int to, int radix) {
+        long n = 0;
+        for(int i = from; i < to; i++)
+            n = n * radix + (radix == 16 ? hexDigit(s.charAt(i)) : digit(s.charAt(i)));
+        return n;
+    }
+
+    private long value; // of the last literal integer() accepted
+
+    /*
+     * Whether s[0, to) is an integer literal, without suffix; if so, its
+     * value modulo 2^64 is left in value. The low 32 bits of that are
+     * the value modulo 2^32, so one reading serves int and long alike.
+     */
+    private boolean integer(String s, int to) {
+        boolean negative = to > 1 && s.charAt(0) == '-';
+        int from = negative ? 1 : 0;
+
+        int radix = 10;
+        if(to - from > 2 && s.charAt(from) == '0' && (s.charAt(from + 1) == 'x' || s.charAt(from + 1) == 'X')) {
+            radix = 16;
+            from += 2;
+        } else if(to - from > 1 && s.charAt(from) == '0') {
+            radix = 8;
+            from++;
+        }
+
+        if(!isDigits(s, from, to, radix))
+            return false;
+        long n = value(s, from, to, radix);
+        value = negative ? -n : n;
+        return true;
+    }
+
+    public int decodeInt(String s) {
+        if(!integer(s, s.length()))
+            return -1;
+        return decimal((int)value);
+    }
+
+    public int decodeLong(String s) {
+        int to = s.length();
+        if(to > 1 && (s.charAt(to - 1) == 'L' || s.charAt(to - 1) == 'l'))
+            to--;
+        if(!integer(s, to))
+            return -1;
+        return decimal(value);
+    }
+
+    private int decimal(long n) {
+        int len = 0;
+        long m = n < 0 ? n : -n; // negative, so that MIN_VALUE needs no special case
+        do {
+            buf[len++] = (byte)('0' - (m % 10));
+            m /= 10;
+        } while(m != 0);
+        if(n < 0)
+            buf[len++] = '-';
+
+        for(int i = 0, j = len - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+        return len;
+    }
+
+    public int decodeDouble(String s) {
+        int end = s.length();
+        if(end > MAX_LENGTH)
+            return -1;
+        char last = s.charAt(end - 1);
+        if(last == 'f' || last == 'F' || last == 'd' || last == 'D')
+            end--;
+
+        int point = s.indexOf('.');
+        if(point < 0 || point >= end)
+            point = end;
+
+        // the integer part without leading zeros, and the fraction without trailing ones
+        int intFrom = 0;
+        while(intFrom < point && s.charAt(intFrom) == '0')
+            intFrom++;
+        int fracTo = end;
+        while(fracTo > point + 1 && s.charAt(fracTo - 1) == '0')
+            fracTo--;
+
+        if(point == 0 && end <= 1)
+            return -1;
+        for(int i = 0; i < end; i++) {
+            if(i != point && digit(s.charAt(i)) < 0)
+                return -1;
+        }
+
+        int intDigits = point - intFrom;
+        int fracDigits = Math.max(0, fracTo - point - 1);
+        if(intDigits > 7)
+            return -1;
+
+        if(intDigits == 0) {
+            // below one, the leading zeros of the fraction are not significant
+            int firstNonZero = point + 1;
+            while(firstNonZero < fracTo && s.charAt(firstNonZero) == '0')
+                firstNonZero++;
+            if(firstNonZero < fracTo && firstNonZero - point > 3)
+                return -1;
+            if(fracTo - firstNonZero > 15)
+                return -1;
+        } else if(intDigits + fracDigits > 15) {
+            return -1;
+        }
+
+        int len = 0;
+        if(intDigits == 0) {
+            buf[len++] = '0';
+        } else {
+            for(int i = intFrom; i < point; i++)
+                buf[len++] = (byte)s.charAt(i);
+        }
+        buf[len++] = '.';
+        if(fracDigits == 0) {
+            buf[len++] = '0';
+        } else {
+            for(int i = point + 1; i < fracTo; i++)
+                buf[len++] = (byte)s.charAt(i);
+        }
+        return len;
+    }
+}
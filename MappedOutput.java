@@ -0,0 +1,128 @@
+/*
+ * Output written straight into a memory-mapped file, for the two-pass
+ * emission of JavaparserToHS.translate(File, File, Format, true).
+ *
+ * The translation of a tree is the same every time it is printed, so the
+ * tree is first printed into a Counter, which keeps nothing but the
+ * number of bytes, and then again into a MappedOutput over a file mapped
+ * at exactly that size. The bytes go into the page cache without a
+ * buffer in between and without write calls, and the file never grows
+ * while it is written. This pays off for large outputs, where the second
+ * tree walk costs less than the copies it saves.
+ *
+ * Strings are encoded with the platform default charset, as ByteOutput
+ * does, so the count and the mapping agree with it byte for byte.
+ *
+ * @author James Koppel
+ */
+
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+
+public class MappedOutput extends ByteOutput {
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    /*
+     * Counts what is written to it, and keeps none of it
+     */
+    public static class Counter extends ByteOutput {
+        private long count = 0;
+
+        public Counter() {
+            super(null, 0);
+        }
+
+        public void write(byte[] b) {
+            count += b.length;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        public void write(byte b) {
+            count++;
+        }
+
+        public void write(String s) {
+            int n = s.length();
+            for(int i = 0; i < n; i++) {
+                if(s.charAt(i) >= 0x80) {
+                    count += i + s.substring(i).getBytes(CHARSET).length;
+                    return;
+                }
+            }
+            count += n;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public int size() {
+            return (int)Math.min(count, Integer.MAX_VALUE);
+        }
+
+        public void reset() {
+            count = 0;
+        }
+
+        public byte[] since(long from) {
+            return null;
+        }
+
+        public void flush() {
+        }
+    }
+
+    private final MappedByteBuffer map;
+
+    public MappedOutput(MappedByteBuffer map) {
+        super(null, 0);
+        this.map = map;
+    }
+
+    public void write(byte[] b) {
+        map.put(b);
+    }
+
+    public void write(byte[] b, int off, int len) {
+        map.put(b, off, len);
+    }
+
+    public void write(byte b) {
+        map.put(b);
+    }
+
+    public void write(String s) {
+        int n = s.length();
+        for(int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if(c >= 0x80) {
+                map.put(s.substring(i).getBytes(CHARSET));
+                return;
+            }
+            map.put((byte)c);
+        }
+    }
+
+    public int size() {
+        return map.position();
+    }
+
+    public void reset() {
+        map.clear();
+    }
+
+    public byte[] since(long from) {
+        return null;
+    }
+
+    /*
+     * The mapping is written back by the operating system; nothing is
+     * buffered here.
+     */
+    public void flush() {
+    }
+}
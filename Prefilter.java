@@ -0,0 +1,345 @@
+/*
+ * Decides, before any output is written, whether the translator can
+ * handle a file, so that one it cannot is turned away without first
+ * emitting the part of its translation that comes before the failure.
+ *
+ * Of the nodes the translator gives up on (the fail() calls in
+ * ToDeriveReadVisitor), most are never visited: annotations on
+ * declarations and comments are skipped, and void and super are only
+ * printed from their parents. What can actually be met is
+ *
+ *   AnnotationDeclaration    an @interface, at the top level or as a member
+ *   EmptyTypeDeclaration     a stray ; between top-level types
+ *   EmptyMemberDeclaration   a stray ; in a class, enum or anonymous class
+ *
+ * There are two stages, and both come after the file has parsed, so that
+ * a file that does not parse is a parse error whatever else it holds.
+ * The scan looks at the source bytes around each ";" and "@" (see
+ * suspects()). An @interface found there is confirmed with the parser's
+ * lexer, and rejects the file without a walk. Only if the scan finds a
+ * place for an empty declaration is the parsed tree walked, for any of
+ * the nodes above; the walk throws the same UnsupportedNodeException the
+ * translator would, at the same node. Other failures, such as a literal
+ * the translator cannot read, are left to the translation.
+ *
+ * Usage:
+ *   java -jar javaparser-to-hs.jar --prefilter [-w warmups] path...
+ *
+ * reports on the files under the paths, given as to --batch, which ones
+ * each stage rejects, what the stages cost, and what translating without
+ * them would have spent on the rejected files before failing.
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import japa.parser.*;
+import japa.parser.ast.*;
+import japa.parser.ast.body.*;
+import japa.parser.ast.visitor.VoidVisitorAdapter;
+
+public class Prefilter {
+
+    // What the scan finds a file may contain
+    static final int ANNOTATION_DECLARATION = 1;
+    static final int EMPTY_DECLARATION = 2;
+
+    private static final byte[] INTERFACE = ByteOutput.ascii("interface");
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    /*
+     * Whether the ";" at s[i] may end an empty declaration: whether it
+     * comes first in the file, or after "{", "}" or another ";". A
+     * comment in between could hide what it comes after, so a ";" after
+     * what may be the end of a block comment, or at the start of a line,
+     * may too.
+     */
+    private static boolean mayEndEmptyDeclaration(byte[] s, int i) {
+        boolean newline = false;
+        int j = i - 1;
+        while(j >= 0 && isSpace(s[j])) {
+            if(s[j] == '\n')
+                newline = true;
+            j--;
+        }
+        if(j < 0)
+            return true;
+
+        byte b = s[j];
+        return b == '{' || b == '}' || b == ';' || b == '/' || newline;
+    }
+
+    /*
+     * Whether the "@" before s[i] may begin an @interface
+     */
+    private static boolean mayBeginAnnotationDeclaration(byte[] s, int i) {
+        while(i < s.length && isSpace(s[i]))
+            i++;
+        if(i < s.length && s[i] == '/')
+            return true;
+        if(s.length - i < INTERFACE.length)
+            return false;
+
+        for(int k = 0; k < INTERFACE.length; k++) {
+            if(s[i + k] != INTERFACE[k])
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * Says which of the rejected constructs source may contain, looking
+     * only at the bytes around each ";" and "@": ANNOTATION_DECLARATION
+     * for an "@" followed by "interface", and EMPTY_DECLARATION for a ";"
+     * where an empty type or member declaration could end. It errs on the
+     * side of suspicion, counting what is in comments and literals, and
+     * anything at all in a file with a unicode escape, which could spell
+     * either. Most files have neither, and need no walk.
+     *
+     * It does not tokenize; that would cost as much as the walk it saves.
+     */
+    static int suspects(byte[] s) {
+        int found = 0;
+
+        for(int i = 0; i < s.length; i++) {
+            byte b = s[i];
+            if(b == ';') {
+                if((found & EMPTY_DECLARATION) == 0 && mayEndEmptyDeclaration(s, i))
+                    found |= EMPTY_DECLARATION;
+            } else if(b == '@') {
+                if(mayBeginAnnotationDeclaration(s, i + 1))
+                    found |= ANNOTATION_DECLARATION;
+            } else if(b == '\\' && i + 1 < s.length && s[i + 1] == 'u') {
+                return ANNOTATION_DECLARATION | EMPTY_DECLARATION;
+            }
+        }
+        return found;
+    }
+
+    /*
+     * The exception for the first "@" "interface" token pair in source,
+     * found with the parser's own lexer, or null if there is none
+     */
+    static UnsupportedNodeException findAnnotationDeclaration(byte[] source) {
+        try {
+            ASTParserTokenManager lexer = new ASTParserTokenManager(new JavaCharStream(new ByteArrayInputStream(source)));
+            Token prev = null;
+            for(Token t = lexer.getNextToken(); t.kind != ASTParserConstants.EOF; t = lexer.getNextToken()) {
+                if(t.kind == ASTParserConstants.INTERFACE && prev != null && prev.kind == ASTParserConstants.AT)
+                    return new UnsupportedNodeException(AnnotationDeclaration.class, prev.beginLine, prev.beginColumn);
+                prev = t;
+            }
+        } catch(TokenMgrError e) {
+            // not once the parser has read the same source
+        }
+        return null;
+    }
+
+    private static class Walker extends VoidVisitorAdapter<Object> {
+        public void visit(AnnotationDeclaration n, Object arg) {
+            throw new UnsupportedNodeException(n);
+        }
+
+        public void visit(EmptyTypeDeclaration n, Object arg) {
+            throw new UnsupportedNodeException(n);
+        }
+
+        public void visit(EmptyMemberDeclaration n, Object arg) {
+            throw new UnsupportedNodeException(n);
+        }
+    }
+
+    // It keeps no state, so one will do for every thread
+    private static final Walker WALKER = new Walker();
+
+    /*
+     * The walk: throws what the translator would if cu has a node it
+     * cannot handle
+     */
+    static void check(CompilationUnit cu) {
+        try {
+            cu.accept(WALKER, null);
+        } catch(StackOverflowError e) {
+            /*
+             * Too deep to walk recursively. The translator only walks
+             * chains of BinaryExpr, EnclosedExpr, IfStmt and BlockStmt
+             * without recursing, and recurses through everything else, so
+             * it may overflow on the same tree; if not, it fails at the
+             * node itself, having written what came before.
+             */
+        }
+    }
+
+    /*
+     * Parses source, then rejects it if the scan confirms an @interface,
+     * and checks the tree if the scan cannot rule out what the walk looks
+     * for
+     */
+    static CompilationUnit parse(byte[] source) throws ParseException {
+        CompilationUnit cu = JavaParser.parse(new ByteArrayInputStream(source));
+
+        int suspects = suspects(source);
+        if((suspects & ANNOTATION_DECLARATION) != 0) {
+            UnsupportedNodeException e = findAnnotationDeclaration(source);
+            if(e != null)
+                throw e;
+        }
+        if(suspects != 0)
+            check(cu);
+        return cu;
+    }
+
+    //- Report ------------------------------------------
+
+    static class Outcome {
+        final File file;
+        String stage;               // "scan" or "walk" if rejected, else null
+        boolean walked;
+        Throwable reason;           // why it was rejected, or why it failed anyway
+        long scanNanos, parseNanos, walkNanos;
+        long translateNanos;        // without the prefilter, up to the end or the failure
+        long wastedBytes;           // output emitted before a failure
+
+        Outcome(File file) {
+            this.file = file;
+        }
+
+        boolean rejected() {
+            return stage != null;
+        }
+    }
+
+    /*
+     * Runs both stages on a file, then translates it as if they did not
+     * exist, into memory
+     */
+    static Outcome measure(File f) throws IOException {
+        Outcome o = new Outcome(f);
+        byte[] source = Files.readAllBytes(f.toPath());
+
+        long t0 = System.nanoTime();
+        CompilationUnit cu;
+        try {
+            cu = JavaParser.parse(new ByteArrayInputStream(source));
+        } catch(ParseException e) {
+            o.reason = e;
+            return o;
+        }
+        long t1 = System.nanoTime();
+        o.parseNanos = t1 - t0;
+
+        int suspects = suspects(source);
+        if((suspects & ANNOTATION_DECLARATION) != 0)
+            o.reason = findAnnotationDeclaration(source);
+        long t2 = System.nanoTime();
+        o.scanNanos = t2 - t1;
+        if(o.reason != null)
+            o.stage = "scan";
+
+        if(o.stage == null && suspects != 0) {
+            o.walked = true;
+            try {
+                check(cu);
+            } catch(UnsupportedNodeException e) {
+                o.stage = "walk";
+                o.reason = e;
+            }
+            o.walkNanos = System.nanoTime() - t2;
+        }
+
+        ByteOutput out = new ByteOutput();
+        long t3 = System.nanoTime();
+        try {
+            JavaparserToHS.translate(cu, out);
+        } catch(RuntimeException e) {
+            o.wastedBytes = out.size();
+            if(o.reason == null)
+                o.reason = e;
+        }
+        o.translateNanos = System.nanoTime() - t3;
+        return o;
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+
+    static int run(String[] args) throws IOException {
+        int warmups = 1;
+        List<String> paths = new ArrayList<String>();
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-w"))
+                warmups = Integer.parseInt(args[++i]);
+            else
+                paths.add(args[i]);
+        }
+
+        BatchTranslator batch = new BatchTranslator(null);
+        for(String p : paths)
+            batch.addPath(p);
+        List<BatchTranslator.Job> jobs = batch.jobs();
+
+        for(int i = 0; i < warmups; i++) {
+            for(BatchTranslator.Job j : jobs)
+                measure(j.in);
+        }
+
+        List<Outcome> outcomes = new ArrayList<Outcome>();
+        for(BatchTranslator.Job j : jobs)
+            outcomes.add(measure(j.in));
+
+        int scanned = 0, walked = 0, unparsed = 0, failedAnyway = 0, unwalked = 0;
+        long scanNanos = 0, walkNanos = 0, acceptedNanos = 0, overhead = 0;
+        long rejectedCost = 0, rejectedSpent = 0, wastedBytes = 0;
+        for(Outcome o : outcomes) {
+            scanNanos += o.scanNanos;
+            walkNanos += o.walkNanos;
+
+            if(o.rejected()) {
+                if(o.stage.equals("scan"))
+                    scanned++;
+                else
+                    walked++;
+                System.out.println("rejected by " + o.stage + " " + o.file + ": " + BatchTranslator.describe(o.reason));
+
+                // without the prefilter: parse, then emit until the failure
+                rejectedCost += o.parseNanos + o.translateNanos;
+                rejectedSpent += o.parseNanos + o.scanNanos + o.walkNanos;
+                wastedBytes += o.wastedBytes;
+            } else if(o.reason instanceof ParseException) {
+                unparsed++;
+            } else {
+                acceptedNanos += o.parseNanos + o.translateNanos;
+                overhead += o.scanNanos + o.walkNanos;
+                if(!o.walked)
+                    unwalked++;
+                if(o.reason != null) {
+                    failedAnyway++;
+                    System.out.println("accepted, but failed " + o.file + ": " + BatchTranslator.describe(o.reason));
+                }
+            }
+        }
+
+        int rejected = scanned + walked;
+        System.out.println(String.format("%d files: %d accepted, %d rejected (%d by the scan, %d by the walk), %d do not parse",
+                                         outcomes.size(), outcomes.size() - rejected - unparsed, rejected,
+                                         scanned, walked, unparsed));
+        System.out.println(unwalked + " accepted files were cleared by the scan alone, without a walk");
+        if(failedAnyway > 0)
+            System.out.println(failedAnyway + " accepted files failed in translation for other reasons");
+        System.out.println(String.format("prefilter: %.1f ms scanning and %.1f ms walking in all; %.1f ms on the accepted files, against %.1f ms parsing and translating them (%.1f%%)",
+                                         ms(scanNanos), ms(walkNanos), ms(overhead), ms(acceptedNanos),
+                                         acceptedNanos == 0 ? 0 : overhead * 100.0 / acceptedNanos));
+        System.out.println(String.format("rejected files: %.1f ms and %d bytes of output before failing without the prefilter, %.1f ms with it",
+                                         ms(rejectedCost), wastedBytes, ms(rejectedSpent)));
+        System.out.println(String.format("net: %.1f ms saved", ms(rejectedCost - rejectedSpent - overhead)));
+        return 0;
+    }
+}
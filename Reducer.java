@@ -0,0 +1,424 @@
+/*
+ * Minimizes a Java file on which the translator fails, by hierarchical
+ * delta debugging over its syntax tree. Replaces running the line-based
+ * Berkeley Delta tool with runtest.sh, which starts three processes for
+ * every candidate.
+ *
+ * Usage:
+ *   java -jar javaparser-to-hs.jar --reduce [-j threads] [-p predicate] infile outfile
+ *
+ * The units of reduction are the elements of the lists in the tree:
+ * imports and type declarations, members, parameters, statements,
+ * arguments, catch clauses, and so on. These are grouped into levels by
+ * how many lists they are nested in, and each level in turn, from the
+ * outside in, is reduced with ddmin to a subset that cannot lose any one
+ * more element. Passes over all the levels are repeated until one
+ * removes nothing.
+ *
+ * A candidate is tested by removing its elements from a freshly parsed
+ * copy of the current source, printing that, checking that the printed
+ * source parses, and translating it. It is kept if the failure predicate
+ * holds for the outcome. The candidates of each ddmin round are tested in
+ * parallel, and the first in ddmin order that is kept wins, so that the
+ * result does not depend on the number of threads.
+ *
+ * The predicates are
+ *   same            the translator fails as on the input file: the same
+ *                   exception with the same message, or for an
+ *                   unsupported node, at a node of the same class
+ *                   wherever it is (the default)
+ *   throws          the translator fails at all
+ *   unsupported:X   the translator reaches fail() for node X
+ *   message:text    the failure's message contains text
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+
+import japa.parser.*;
+import japa.parser.ast.*;
+
+public class Reducer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /*
+     * Decides whether the outcome of translating a candidate is the failure
+     * being minimized. The argument is what the translator threw, or null
+     * if it succeeded.
+     */
+    public interface Predicate {
+        boolean holds(Throwable failure);
+    }
+
+    static Predicate predicate(String spec, final Throwable original) {
+        if((spec == null || spec.equals("same")) && original instanceof UnsupportedNodeException) {
+            // the position moves as the file shrinks
+            final Class<?> node = ((UnsupportedNodeException)original).getNodeClass();
+            return new Predicate() {
+                public boolean holds(Throwable failure) {
+                    return failure instanceof UnsupportedNodeException
+                        && ((UnsupportedNodeException)failure).getNodeClass() == node;
+                }
+            };
+        } else if(spec == null || spec.equals("same")) {
+            final String expected = original == null ? null : BatchTranslator.describe(original);
+            return new Predicate() {
+                public boolean holds(Throwable failure) {
+                    return failure != null && BatchTranslator.describe(failure).equals(expected);
+                }
+            };
+        } else if(spec.equals("throws")) {
+            return new Predicate() {
+                public boolean holds(Throwable failure) {
+                    return failure != null;
+                }
+            };
+        } else if(spec.startsWith("unsupported:")) {
+            final String node = "unsupported node " + spec.substring("unsupported:".length()) + " encountered";
+            return new Predicate() {
+                public boolean holds(Throwable failure) {
+                    return failure instanceof UnsupportedOperationException
+                        && failure.getMessage() != null
+                        && failure.getMessage().contains(node);
+                }
+            };
+        } else if(spec.startsWith("message:")) {
+            final String text = spec.substring("message:".length());
+            return new Predicate() {
+                public boolean holds(Throwable failure) {
+                    return failure != null
+                        && failure.getMessage() != null
+                        && failure.getMessage().contains(text);
+                }
+            };
+        }
+
+        throw new IllegalArgumentException("Unknown predicate " + spec);
+    }
+
+    //- The tree ------------------------------------------
+
+    private static final ConcurrentHashMap<Class<?>, Method[]> getters = new ConcurrentHashMap<Class<?>, Method[]>();
+
+    /*
+     * The public no-argument getters of a node class that return child
+     * nodes or lists of them, in a fixed order
+     */
+    private static Method[] childGetters(Class<?> c) {
+        Method[] ms = getters.get(c);
+        if(ms != null)
+            return ms;
+
+        List<Method> found = new ArrayList<Method>();
+        for(Method m : c.getMethods()) {
+            if(!m.getName().startsWith("get") || m.getParameterTypes().length != 0
+               || Modifier.isStatic(m.getModifiers()))
+                continue;
+            if(Node.class.isAssignableFrom(m.getReturnType()) || List.class.isAssignableFrom(m.getReturnType()))
+                found.add(m);
+        }
+        Collections.sort(found, new Comparator<Method>() {
+            public int compare(Method a, Method b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+
+        ms = found.toArray(new Method[found.size()]);
+        getters.put(c, ms);
+        return ms;
+    }
+
+    private static Object get(Method m, Node n) {
+        try {
+            return m.invoke(n);
+        } catch(Exception e) {
+            throw new ExceptionConverter(e);
+        }
+    }
+
+    /*
+     * An element of a list in the tree, which can be removed from it
+     */
+    private static class Unit {
+        final List<?> list;
+        final Node node;
+
+        Unit(List<?> list, Node node) {
+            this.list = list;
+            this.node = node;
+        }
+
+        void remove() {
+            // by identity; Node.equals may compare structurally
+            for(int i = 0; i < list.size(); i++) {
+                if(list.get(i) == node) {
+                    list.remove(i);
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+     * Collects the list elements nested in exactly level lists, in the
+     * same order every time the same source is parsed
+     */
+    private static void collect(Node n, int depth, int level, List<Unit> units, IdentityHashMap<Object, Object> seen) {
+        if(seen.put(n, n) != null)
+            return;
+
+        for(Method m : childGetters(n.getClass())) {
+            Object child = get(m, n);
+            if(child instanceof Node) {
+                collect((Node)child, depth, level, units, seen);
+            } else if(child instanceof List && seen.put(child, child) == null) {
+                List<?> list = (List<?>)child;
+                for(Object o : list) {
+                    if(!(o instanceof Node))
+                        continue;
+                    if(depth == level)
+                        units.add(new Unit(list, (Node)o));
+                    else
+                        collect((Node)o, depth + 1, level, units, seen);
+                }
+            }
+        }
+    }
+
+    private static List<Unit> units(CompilationUnit cu, int level) {
+        List<Unit> units = new ArrayList<Unit>();
+        collect(cu, 0, level, units, new IdentityHashMap<Object, Object>());
+        return units;
+    }
+
+    private static CompilationUnit parse(String source) throws ParseException {
+        return JavaParser.parse(new ByteArrayInputStream(source.getBytes(UTF8)), "UTF-8");
+    }
+
+    /*
+     * What translating source throws, or null if it succeeds
+     */
+    private static Throwable translate(String source) throws ParseException {
+        CompilationUnit cu = parse(source);
+        try {
+            Prefilter.check(cu);
+            cu.accept(new GeneratedDeriveReadVisitor(new ByteOutput()), null);
+            return null;
+        } catch(Exception e) {
+            return e;
+        } catch(StackOverflowError e) {
+            return e;
+        }
+    }
+
+    //- Reduction -----------------------------------------
+
+    private final Predicate predicate;
+    private final ExecutorService pool;
+    private final int threads;
+    private int tests = 0;
+
+    Reducer(Predicate predicate, int threads) {
+        this.predicate = predicate;
+        this.threads = threads;
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "reducer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /*
+     * The source with only the given units of a level left, or null if
+     * that does not parse or the predicate does not hold for it
+     */
+    private String test(String source, int level, boolean[] keep) throws ParseException {
+        CompilationUnit cu = parse(source);
+        List<Unit> units = units(cu, level);
+        for(int i = 0; i < keep.length; i++) {
+            if(!keep[i])
+                units.get(i).remove();
+        }
+
+        String candidate = cu.toString();
+        try {
+            return predicate.holds(translate(candidate)) ? candidate : null;
+        } catch(ParseException e) {
+            return null;
+        }
+    }
+
+    private static boolean[] mask(int size, List<Integer> kept) {
+        boolean[] keep = new boolean[size];
+        for(int i : kept)
+            keep[i] = true;
+        return keep;
+    }
+
+    /*
+     * Tests the candidates, a batch of as many as there are threads at a
+     * time, and returns the index of the first one kept, or -1. Its
+     * source is left in result[0].
+     */
+    private int first(final String source, final int level, final int size,
+                      List<List<Integer>> candidates, String[] result) throws Exception {
+        for(int from = 0; from < candidates.size(); from += threads) {
+            List<Callable<String>> batch = new ArrayList<Callable<String>>();
+            for(final List<Integer> c : candidates.subList(from, Math.min(from + threads, candidates.size()))) {
+                batch.add(new Callable<String>() {
+                    public String call() throws Exception {
+                        return test(source, level, mask(size, c));
+                    }
+                });
+            }
+
+            List<Future<String>> done = pool.invokeAll(batch);
+            tests += batch.size();
+            for(int i = 0; i < done.size(); i++) {
+                String kept = done.get(i).get();
+                if(kept != null) {
+                    result[0] = kept;
+                    return from + i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Reduces one level with ddmin, and returns the reduced source, or
+     * null if there is nothing at that level
+     */
+    private String reduceLevel(String source, int level) throws Exception {
+        int size = units(parse(source), level).size();
+        if(size == 0)
+            return null;
+
+        List<Integer> current = new ArrayList<Integer>();
+        for(int i = 0; i < size; i++)
+            current.add(i);
+        String[] result = new String[1];
+
+        // the whole level is often removable at once
+        if(first(source, level, size, Collections.singletonList(Collections.<Integer>emptyList()), result) == 0)
+            return result[0];
+
+        String best = source;
+        int n = 2;
+        while(current.size() >= 2) {
+            List<List<Integer>> subsets = new ArrayList<List<Integer>>();
+            List<List<Integer>> candidates = new ArrayList<List<Integer>>();
+            for(int i = 0; i < n; i++) {
+                List<Integer> subset = current.subList(i * current.size() / n, (i + 1) * current.size() / n);
+                subsets.add(subset);
+                candidates.add(subset);
+            }
+            // with two parts, each complement is the other subset
+            if(n > 2) {
+                for(List<Integer> subset : subsets) {
+                    List<Integer> complement = new ArrayList<Integer>(current);
+                    complement.removeAll(subset);
+                    candidates.add(complement);
+                }
+            }
+
+            int found = first(source, level, size, candidates, result);
+            if(found >= 0) {
+                current = new ArrayList<Integer>(candidates.get(found));
+                best = result[0];
+                n = found < n ? 2 : Math.max(n - 1, 2);
+            } else if(n < current.size()) {
+                n = Math.min(n * 2, current.size());
+            } else {
+                break;
+            }
+        }
+
+        return best;
+    }
+
+    String reduce(String source) throws Exception {
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(int level = 0; ; level++) {
+                String reduced = reduceLevel(source, level);
+                if(reduced == null)
+                    break;
+                if(!reduced.equals(source)) {
+                    changed = true;
+                    source = reduced;
+                }
+            }
+        }
+        return source;
+    }
+
+    static String read(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] b = new byte[1 << 16];
+            int n;
+            while((n = in.read(b)) > 0)
+                bytes.write(b, 0, n);
+            return new String(bytes.toByteArray(), UTF8);
+        } finally {
+            in.close();
+        }
+    }
+
+    static int run(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String spec = null;
+        List<String> files = new ArrayList<String>();
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-j"))
+                threads = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-p"))
+                spec = args[++i];
+            else
+                files.add(args[i]);
+        }
+        if(files.size() != 2)
+            throw new IllegalArgumentException("Usage: --reduce [-j threads] [-p predicate] infile outfile");
+
+        // JavaParser otherwise shares one parser instance between all callers
+        JavaParser.setCacheParser(false);
+
+        long start = System.nanoTime();
+        String source = parse(read(new File(files.get(0)))).toString();
+        Throwable original = translate(source);
+        Predicate p = predicate(spec, original);
+        if(!p.holds(original)) {
+            System.err.println("The predicate does not hold for " + files.get(0) + " as printed"
+                               + (original == null ? "" : ", which fails with " + BatchTranslator.describe(original)));
+            return 1;
+        }
+
+        Reducer r = new Reducer(p, threads);
+        String reduced = r.reduce(source);
+
+        Writer w = new OutputStreamWriter(new FileOutputStream(files.get(1)), UTF8);
+        try {
+            w.write(reduced);
+        } finally {
+            w.close();
+        }
+
+        System.out.println(String.format("%d tests in %.2f s: %d to %d bytes, failing with %s",
+                                         r.tests, (System.nanoTime() - start) / 1e9,
+                                         source.length(), reduced.length(),
+                                         BatchTranslator.describe(translate(reduced))));
+        return 0;
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Keeps the outputs for the .java files under some directories up to
+ * date, translating each file again whenever it changes.
+ *
+ * Usage:
+ *   java -jar javaparser-to-hs.jar --watch [-o outdir] [-j threads] [-q millis] [-m]
+ *                                  [-c cachedir [-C megabytes]] [-b | -d] dir...
+ *
+ * Outputs go where --batch would put them with the same options (see
+ * BatchTranslator). On start, every file whose output is missing or older
+ * than it is translated; after that, the directories, and any created
+ * under them, are watched for changes. A file is translated once no event
+ * has come for it for the quiet period given with -q, 200 ms by default,
+ * so that a burst of writes, as an editor saving or a checkout makes,
+ * costs one translation. Translations run on a pool of threads, one per
+ * processor unless -j says otherwise; a file that changes while it is
+ * being translated is translated again afterwards.
+ *
+ * Each output is written to a temporary file beside it, then renamed over
+ * it, so that a reader sees either the old output or the new, never part
+ * of one. A file that fails to translate, or is deleted, has its output
+ * removed. One line is printed per file, as with --batch.
+ *
+ * Between changes, nothing runs but a blocked read of the watch service.
+ * The watcher runs until killed.
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import japa.parser.*;
+
+public class SourceWatcher {
+
+    public static final long DEFAULT_QUIET = 200;
+
+    private static class Pending {
+        final Path root;
+        long due; // in System.nanoTime()
+
+        Pending(Path root, long due) {
+            this.root = root;
+            this.due = due;
+        }
+    }
+
+    private final BatchTranslator batch;
+    private final JavaparserToHS.Format format;
+    private final boolean mapped;
+    private final TranslationCache cache;
+    private final long quiet;
+    private final WatchService watcher;
+    private final ExecutorService workers;
+
+    private final List<Path> roots = new ArrayList<Path>();
+
+    /*
+     * The directory of each key, and the root it was found under
+     */
+    private final Map<WatchKey, Path[]> dirs = new HashMap<WatchKey, Path[]>();
+
+    /*
+     * Files waiting out their quiet period. Only the watching thread
+     * touches these.
+     */
+    private final Map<Path, Pending> pending = new HashMap<Path, Pending>();
+
+    /*
+     * Files being translated
+     */
+    private final Set<Path> running = Collections.synchronizedSet(new HashSet<Path>());
+
+    /*
+     * Outputs being written, to be deleted should the watcher be killed
+     */
+    private final Set<File> temps = Collections.synchronizedSet(new HashSet<File>());
+
+    SourceWatcher(File outRoot, JavaparserToHS.Format format, boolean mapped, TranslationCache cache,
+                  long quiet, int threads) throws IOException {
+        this.batch = new BatchTranslator(outRoot, format, mapped, cache);
+        this.format = format;
+        this.mapped = mapped;
+        this.cache = cache;
+        this.quiet = TimeUnit.MILLISECONDS.toNanos(quiet);
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "watcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                synchronized(temps) {
+                    for(File f : temps)
+                        f.delete();
+                }
+            }
+        });
+    }
+
+    //- Watching ------------------------------------------
+
+    private static boolean isSource(Path file) {
+        return file.getFileName().toString().endsWith(".java");
+    }
+
+    private File outputFor(Path root, Path file) {
+        return batch.outputFor(file.toFile(), root.relativize(file).toString());
+    }
+
+    private void schedule(Path root, Path file) {
+        long due = System.nanoTime() + quiet;
+        Pending p = pending.get(file);
+        if(p == null)
+            pending.put(file, new Pending(root, due));
+        else
+            p.due = due;
+    }
+
+    /*
+     * Watches the directories under root, and schedules the files in them
+     * whose output is missing or older than they are
+     */
+    void watch(Path root) throws IOException {
+        roots.add(root);
+        watch(root, root);
+    }
+
+    /*
+     * As above, for the directories under dir, which is under root
+     */
+    private void watch(final Path root, Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                          StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                dirs.put(key, new Path[] {root, d});
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if(attrs.isRegularFile() && isSource(file)
+                   && outputFor(root, file).lastModified() < attrs.lastModifiedTime().toMillis())
+                    schedule(root, file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // gone already, or unreadable; an event will say if it comes back
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void handle(WatchKey key) throws IOException {
+        Path[] dir = dirs.get(key);
+        List<WatchEvent<?>> events = key.pollEvents();
+        if(dir == null) {
+            key.cancel();
+            return;
+        }
+
+        for(WatchEvent<?> e : events) {
+            if(e.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost; catch up on what can be seen from the files
+                for(Path root : roots)
+                    watch(root, root);
+                continue;
+            }
+
+            Path p = dir[1].resolve((Path)e.context());
+            if(e.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS))
+                watch(dir[0], p);
+            else if(isSource(p))
+                schedule(dir[0], p);
+        }
+
+        if(!key.reset())
+            dirs.remove(key);
+    }
+
+    /*
+     * Hands the files whose quiet period is over to the workers, and
+     * returns how long until the next one's is, in nanoseconds, or -1 if
+     * none is left. A file still being translated waits another period.
+     */
+    private long dispatch() {
+        long now = System.nanoTime();
+        long next = -1;
+
+        Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Path, Pending> e = it.next();
+            final Path file = e.getKey();
+            final Pending p = e.getValue();
+
+            if(p.due - now <= 0) {
+                if(running.add(file)) {
+                    it.remove();
+                    workers.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                update(p.root, file);
+                            } finally {
+                                running.remove(file);
+                            }
+                        }
+                    });
+                    continue;
+                }
+                p.due = now + quiet;
+            }
+
+            if(next < 0 || p.due - now < next)
+                next = p.due - now;
+        }
+        return next;
+    }
+
+    void run() throws IOException, InterruptedException {
+        while(true) {
+            long wait = dispatch();
+            WatchKey key = wait < 0 ? watcher.take() : watcher.poll(wait, TimeUnit.NANOSECONDS);
+            while(key != null) {
+                handle(key);
+                key = watcher.poll();
+            }
+        }
+    }
+
+    //- Translating ---------------------------------------
+
+    /*
+     * Brings the output for file up to date with it
+     */
+    private void update(Path root, Path file) {
+        File in = file.toFile();
+        File out = outputFor(root, file);
+
+        if(!in.isFile()) {
+            if(out.delete()) {
+                synchronized(System.out) {
+                    System.out.println("removed " + out);
+                }
+            }
+            return;
+        }
+
+        File tmp = null;
+        try {
+            File dir = out.getAbsoluteFile().getParentFile();
+            dir.mkdirs();
+            tmp = File.createTempFile("." + out.getName(), ".tmp", dir);
+            temps.add(tmp);
+
+            BatchTranslator.Result r = BatchTranslator.translate(new BatchTranslator.Job(in, tmp, format, mapped, cache));
+            if(r.succeeded())
+                Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            else
+                out.delete();
+            BatchTranslator.report(r);
+        } catch(IOException e) {
+            synchronized(System.out) {
+                System.out.println("FAIL " + in + ": " + BatchTranslator.describe(e));
+            }
+        } finally {
+            if(tmp != null) {
+                tmp.delete();
+                temps.remove(tmp);
+            }
+        }
+    }
+
+    static int run(String[] args) throws IOException, InterruptedException {
+        File outRoot = null;
+        boolean mapped = false;
+        File cacheDir = null;
+        long cacheLimit = TranslationCache.DEFAULT_LIMIT;
+        long quiet = DEFAULT_QUIET;
+        JavaparserToHS.Format format = JavaparserToHS.Format.TEXT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> roots = new ArrayList<String>();
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-o")) {
+                outRoot = new File(args[++i]);
+            } else if(args[i].equals("-m")) {
+                mapped = true;
+            } else if(args[i].equals("-c")) {
+                cacheDir = new File(args[++i]);
+            } else if(args[i].equals("-C")) {
+                cacheLimit = Long.parseLong(args[++i]) << 20;
+            } else if(args[i].equals("-q")) {
+                quiet = Long.parseLong(args[++i]);
+            } else if(args[i].equals("-b")) {
+                format = JavaparserToHS.Format.BINARY;
+            } else if(args[i].equals("-d")) {
+                format = JavaparserToHS.Format.DAG;
+            } else if(args[i].equals("-j")) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                roots.add(args[i]);
+            }
+        }
+        if(roots.isEmpty())
+            throw new IllegalArgumentException("Usage: --watch [-o outdir] [-j threads] [-q millis] [-m] [-c cachedir [-C megabytes]] [-b | -d] dir...");
+
+        TranslationCache cache = cacheDir == null ? null : new TranslationCache(cacheDir, cacheLimit);
+        SourceWatcher w = new SourceWatcher(outRoot, format, mapped, cache, quiet, threads);
+
+        // JavaParser otherwise shares one parser instance between all callers
+        JavaParser.setCacheParser(false);
+
+        for(String root : roots) {
+            Path dir = Paths.get(root);
+            if(!Files.isDirectory(dir))
+                throw new IllegalArgumentException("Not a directory: " + root);
+            w.watch(dir);
+        }
+        System.err.println("watching " + w.dirs.size() + " directories, " + w.pending.size() + " files out of date");
+
+        w.run();
+        return 0;
+    }
+}
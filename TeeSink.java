@@ -0,0 +1,178 @@
+/*
+ * Passes every event on to several sinks, so that one parse and one tree
+ * walk produce several outputs at once.
+ *
+ * Usage:
+ *   java -jar javaparser-to-hs.jar --tee infile output...
+ *
+ * where each output is one of
+ *
+ *   text:path     the derived-Read text
+ *   binary:path   the binary format (see AstSchema)
+ *   dag:path      its shared variant
+ *   stats:path    what CountingSink counts; "stats:-" prints to stdout
+ *
+ * As with a single output, a file that does not translate leaves none of
+ * the outputs behind.
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import japa.parser.ParseException;
+import japa.parser.ast.CompilationUnit;
+
+public class TeeSink implements AstSink {
+
+    private final AstSink[] sinks;
+
+    public TeeSink(AstSink... sinks) {
+        this.sinks = sinks;
+    }
+
+    public void begin(String constructor) {
+        for(AstSink s : sinks)
+            s.begin(constructor);
+    }
+
+    public void end() {
+        for(AstSink s : sinks)
+            s.end();
+    }
+
+    public void beginList() {
+        for(AstSink s : sinks)
+            s.beginList();
+    }
+
+    public void endList() {
+        for(AstSink s : sinks)
+            s.endList();
+    }
+
+    public void beginTuple() {
+        for(AstSink s : sinks)
+            s.beginTuple();
+    }
+
+    public void endTuple() {
+        for(AstSink s : sinks)
+            s.endTuple();
+    }
+
+    public void string(String text) {
+        for(AstSink s : sinks)
+            s.string(text);
+    }
+
+    public void character(String text) {
+        for(AstSink s : sinks)
+            s.character(text);
+    }
+
+    public void number(String text) {
+        for(AstSink s : sinks)
+            s.number(text);
+    }
+
+    public void number(byte[] digits, int off, int len) {
+        for(AstSink s : sinks)
+            s.number(digits, off, len);
+    }
+
+    public void finish() {
+        for(AstSink s : sinks)
+            s.finish();
+    }
+
+    //- command line --------------------------------------
+
+    static int run(String[] args) throws IOException {
+        if(args.length < 2)
+            throw new IllegalArgumentException("Usage: --tee infile text:path|binary:path|dag:path|stats:path...");
+
+        File infile = new File(args[0]);
+        CompilationUnit cu;
+        try {
+            cu = Prefilter.parse(Files.readAllBytes(infile.toPath()));
+        } catch(ParseException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } catch(UnsupportedOperationException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+
+        List<AstSink> sinks = new ArrayList<AstSink>();
+        List<FileOutputStream> streams = new ArrayList<FileOutputStream>();
+        List<File> files = new ArrayList<File>();
+        CountingSink stats = null;
+        File statsFile = null;
+
+        boolean done = false;
+        try {
+            for(int i = 1; i < args.length; i++) {
+                int colon = args[i].indexOf(':');
+                if(colon < 0)
+                    throw new IllegalArgumentException("Expected kind:path, got " + args[i]);
+                String kind = args[i].substring(0, colon);
+                String path = args[i].substring(colon + 1);
+
+                if(kind.equals("stats")) {
+                    if(stats != null)
+                        throw new IllegalArgumentException("Only one stats output is possible");
+                    stats = new CountingSink();
+                    statsFile = path.equals("-") ? null : new File(path);
+                    sinks.add(stats);
+                    continue;
+                }
+
+                ByteOutput out;
+                File outfile = new File(path);
+                FileOutputStream outStream;
+                if(kind.equals("text") || kind.equals("binary") || kind.equals("dag")) {
+                    outStream = new FileOutputStream(outfile);
+                    streams.add(outStream);
+                    files.add(outfile);
+                    out = new ByteOutput(outStream.getChannel());
+                } else {
+                    throw new IllegalArgumentException("Unknown output kind " + kind + "; expected text, binary, dag or stats");
+                }
+
+                if(kind.equals("text"))
+                    sinks.add(new TextSink(out));
+                else
+                    sinks.add(new BinaryAstOutput(out, kind.equals("dag")));
+            }
+
+            JavaparserToHS.translate(cu, new TeeSink(sinks.toArray(new AstSink[sinks.size()])));
+            done = true;
+        } catch(UnsupportedOperationException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } finally {
+            for(int i = 0; i < streams.size(); i++) {
+                if(done)
+                    streams.get(i).close();
+                else
+                    JavaparserToHS.discard(streams.get(i), files.get(i));
+            }
+        }
+
+        if(stats != null) {
+            if(statsFile == null) {
+                stats.report(System.out);
+                System.out.flush();
+            } else {
+                PrintStream out = new PrintStream(new FileOutputStream(statsFile));
+                stats.report(out);
+                out.close();
+            }
+        }
+        return 0;
+    }
+}
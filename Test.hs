@@ -1,8 +1,14 @@
 {-# LANGUAGE StandaloneDeriving #-}
 
-import Control.Monad ( liftM )
+import Control.Concurrent ( forkIO )
+import Control.Monad ( liftM, forM, forM_, replicateM, void, when )
 
+import Data.Bits ( shiftL, shiftR, (.|.) )
+import qualified Data.ByteString as B
 import Data.List ( find )
+import qualified Data.Map as M
+import qualified Data.Text as T
+import qualified Data.Text.Encoding as T
 
 import Language.Java.Syntax
 import Language.Java.Pretty
@@ -11,18 +17,57 @@ import Language.Java.Lexer
 import System.Environment
 import System.Exit
 import System.IO
-import System.IO.Temp
 import System.Process
 
 --------------------------------------------------------------------------------
 
-parse :: FilePath -> IO (Either String CompilationUnit)
-parse path = withSystemTempFile "parse" $ \tmp h -> do
-                         hClose h
-                         exitCode <- system $ "java -jar /Users/jkoppel/tarski/tools/javaparser-to-hs/javaparser-to-hs.jar " ++ (show path) ++ " " ++ (show tmp)
-                         case exitCode of
-                           ExitFailure _ -> return $ Left "parse failed"
-                           ExitSuccess   -> liftM (Right . read) $ readFile tmp
+{-
+The translator runs as a single coprocess ("--pipe"), and files are sent to it
+inline over its standard input. A request is an int32 id, the byte 'S', an
+int32 length and the source; a response is an int32 id, a status byte (0 on
+success), an int32 length and either the translated tree or an error message.
+The translator only takes in a few requests ahead of its responses, so the
+requests are written on a thread of their own while the responses are read.
+-}
+
+data Translator = Translator Handle Handle
+
+startTranslator :: IO Translator
+startTranslator = do (Just hin, Just hout, _, _) <- createProcess (proc "java" ["-jar", "/Users/jkoppel/tarski/tools/javaparser-to-hs/javaparser-to-hs.jar", "--pipe"])
+                                                      { std_in = CreatePipe, std_out = CreatePipe }
+                     hSetBinaryMode hin True
+                     hSetBinaryMode hout True
+                     return $ Translator hin hout
+
+stopTranslator :: Translator -> IO ()
+stopTranslator (Translator hin hout) = hClose hin >> hClose hout
+
+int32 :: Int -> B.ByteString
+int32 n = B.pack [fromIntegral (n `shiftR` s) | s <- [24, 16, 8, 0]]
+
+unInt32 :: B.ByteString -> Int
+unInt32 = B.foldl (\n w -> (n `shiftL` 8) .|. fromIntegral w) 0
+
+sendRequest :: Translator -> Int -> B.ByteString -> IO ()
+sendRequest (Translator hin _) rid src = B.hPut hin $ B.concat [int32 rid, B.singleton 83, int32 (B.length src), src]
+
+flushRequests :: Translator -> IO ()
+flushRequests (Translator hin _) = hFlush hin
+
+recvResponse :: Translator -> IO (Int, Either (Int, String) CompilationUnit)
+recvResponse (Translator _ hout) = do hdr <- B.hGet hout 9
+                                      when (B.length hdr < 9) $ fail "translator exited"
+                                      body <- B.hGet hout (unInt32 (B.drop 5 hdr))
+                                      let text = T.unpack (T.decodeUtf8 body)
+                                      return (unInt32 (B.take 4 hdr), case B.index hdr 4 of
+                                                                        0 -> Right (read text)
+                                                                        s -> Left (fromIntegral s, text))
+
+parseAll :: Translator -> [FilePath] -> IO [Either (Int, String) CompilationUnit]
+parseAll t paths = do void $ forkIO $ do forM_ (zip [0..] paths) $ \(rid, path) -> B.readFile path >>= sendRequest t rid
+                                         flushRequests t
+                      res <- liftM M.fromList $ replicateM (length paths) (recvResponse t)
+                      return [res M.! rid | rid <- [0 .. length paths - 1]]
 
 {-
 Parsing can rearrange modifiers, pretty-printing can insert parens, annotations are dropped. What do we do? Remove them!
@@ -71,15 +116,32 @@ lexicalDifference xs ys = let xs' = [x | x <- removeAnno xs, not (x `elem` unsta
 unL :: L a -> a
 unL (L _ x) = x
 
+-- The status of a response for a file javaparser cannot parse
+parseErrorStatus :: Int
+parseErrorStatus = 1
+
+check :: FilePath -> Either (Int, String) CompilationUnit -> IO Bool
+check fil res = do origStream <- liftM (map unL.lexer) $ readFile fil
+                   case res of
+                        Left _     -> return False
+                        Right tree -> let reread = map unL $ lexer $ show $ pretty tree in
+                                      case lexicalDifference reread origStream of
+                                        Nothing -> return True
+                                        Just x  -> do putStrLn $ fil ++ ": Different: " ++ show x
+--                                                      putStrLn $ show $ pretty tree
+                                                      return False
+
+{-
+Exits with 2 if any file does not parse, so that a caller can tell that apart from a failed
+translation without parsing the file again itself.
+-}
 main :: IO ()
-main = do fil <- liftM head $ getArgs
-          origStream <- liftM (map unL.lexer) $ readFile fil
-          res <- parse fil
-          case res of
-               Left _     -> exitFailure
-               Right tree -> let reread = map unL $ lexer $ show $ pretty tree in
-                             case lexicalDifference reread origStream of
-                               Nothing -> return ()
-                               Just x  -> do putStrLn $ fil ++ ": Different: " ++ show x
---                                             putStrLn $ show $ pretty tree
-                                             exitFailure
+main = do fils <- getArgs
+          t <- startTranslator
+          results <- parseAll t fils
+          stopTranslator t
+          let unparsed = [fil | (fil, Left (status, _)) <- zip fils results, status == parseErrorStatus]
+          forM_ unparsed $ \fil -> putStrLn $ fil ++ ": Does not parse"
+          when (not (null unparsed)) $ exitWith (ExitFailure 2)
+          oks <- forM (zip fils results) $ uncurry check
+          if and oks then return () else exitFailure
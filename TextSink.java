@@ -0,0 +1,172 @@
+/*
+ * Prints the events of an AstSink as the "deriving Read" text, which is
+ * how every text output is produced: applications as "(Name arg arg)",
+ * constructors with no arguments by their bare name, lists as "[a, b]"
+ * and tuples as "(a, b)".
+ *
+ * A constructor's name is only printed once it is known whether any
+ * arguments follow, since that decides whether it gets parentheses.
+ *
+ * @author James Koppel
+ */
+
+public class TextSink implements AstSink {
+
+    private static final byte[] SEP = ByteOutput.ascii(", ");
+
+    private final ByteOutput out;
+
+    /*
+     * Constructor names, encoded as they are printed, by hash; a name is
+     * looked up by identity, since all of them are constants, and encoded
+     * again should it have been displaced by another
+     */
+    private static final int NAME_SLOTS = 1024;
+    private final String[] names = new String[NAME_SLOTS];
+    private final byte[][] encodedNames = new byte[NAME_SLOTS][];
+
+    /*
+     * For each open application, list or tuple, whether its elements are
+     * separated by commas, as those of lists and tuples are, and whether
+     * anything has been printed in it yet; and a constructor that has
+     * begun, but not been printed
+     */
+    private boolean[] lists = new boolean[64];
+    private boolean[] started = new boolean[64];
+    private int depth = 0;
+    private String pending = null;
+
+    public TextSink(ByteOutput out) {
+        this.out = out;
+    }
+
+    private void push(boolean list) {
+        if(depth == lists.length) {
+            boolean[] biggerLists = new boolean[depth * 2];
+            boolean[] biggerStarted = new boolean[depth * 2];
+            System.arraycopy(lists, 0, biggerLists, 0, depth);
+            System.arraycopy(started, 0, biggerStarted, 0, depth);
+            lists = biggerLists;
+            started = biggerStarted;
+        }
+        lists[depth] = list;
+        started[depth] = false;
+        depth++;
+    }
+
+    private void writeName(String name) {
+        int slot = name.hashCode() & (NAME_SLOTS - 1);
+        if(names[slot] != name) {
+            names[slot] = name;
+            encodedNames[slot] = ByteOutput.ascii(name);
+        }
+        out.write(encodedNames[slot]);
+    }
+
+    /*
+     * Prints what comes before a value: the constructor it is the first
+     * argument of, if that is still pending, and the separator
+     */
+    private void beforeValue() {
+        if(pending != null) {
+            out.write((byte)'(');
+            writeName(pending);
+            pending = null;
+            push(false);
+        }
+
+        if(depth > 0) {
+            if(!lists[depth - 1])
+                out.write((byte)' ');
+            else if(started[depth - 1])
+                out.write(SEP);
+            started[depth - 1] = true;
+        }
+    }
+
+    /*
+     * How many bytes beforeValue() would print now, or -1 if a constructor
+     * is pending, in which case what it prints depends on what follows
+     */
+    int separator() {
+        if(pending != null)
+            return -1;
+        if(depth == 0)
+            return 0;
+        return !lists[depth - 1] ? 1 : started[depth - 1] ? SEP.length : 0;
+    }
+
+    /*
+     * Prints a value as another TextSink printed it, without what came
+     * before it (see separator()), as if its events had come here
+     */
+    void value(byte[] text) {
+        beforeValue();
+        out.write(text);
+    }
+
+    public void begin(String constructor) {
+        beforeValue();
+        pending = constructor;
+    }
+
+    public void end() {
+        if(pending != null) {
+            writeName(pending);
+            pending = null;
+        } else {
+            depth--;
+            out.write((byte)')');
+        }
+    }
+
+    public void beginList() {
+        beforeValue();
+        out.write((byte)'[');
+        push(true);
+    }
+
+    public void endList() {
+        depth--;
+        out.write((byte)']');
+    }
+
+    public void beginTuple() {
+        beforeValue();
+        out.write((byte)'(');
+        push(true);
+    }
+
+    public void endTuple() {
+        depth--;
+        out.write((byte)')');
+    }
+
+    public void string(String text) {
+        beforeValue();
+        out.write((byte)'"');
+        out.write(text);
+        out.write((byte)'"');
+    }
+
+    public void character(String text) {
+        beforeValue();
+        out.write((byte)'\'');
+        out.write(text);
+        out.write((byte)'\'');
+    }
+
+    public void number(String text) {
+        beforeValue();
+        out.write(text);
+    }
+
+    public void number(byte[] digits, int off, int len) {
+        beforeValue();
+        out.write(digits, off, len);
+    }
+
+    public void finish() {
+        out.flush();
+    }
+}
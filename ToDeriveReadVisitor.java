@@ -3,6 +3,10 @@
  * the "deriving Read" forma for the Java AST used by the language-java package
  * for Haskell.
  *
+ * The tree is emitted as events on an AstSink: constructors, lists,
+ * tuples, strings and numbers. A TextSink prints them as that text; other
+ * sinks encode or count them instead (see AstSink).
+ *
  * Issues:
  *   Custom annotations unsupported
  *   Empty declarations unspported
@@ -96,12 +100,16 @@
  *   printForInit :: List<Expression> -> ForInit
  */
 
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
-import java.math.BigInteger;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.lang3.math.NumberUtils;
 
 import japa.parser.*;
 import japa.parser.ast.*;
@@ -113,71 +121,180 @@ import japa.parser.ast.visitor.*;
 
 public class ToDeriveReadVisitor implements VoidVisitor {
 
-    private static ToDeriveReadVisitor instance;
-    private PrintWriter out;
-    
-    public ToDeriveReadVisitor(PrintWriter out) {
-        this.out = out;
-        instance = this;
+    /*
+     * Where the tree goes, as events (see AstSink); a subclass may divert
+     * them for a while
+     */
+    protected AstSink sink;
+
+    public ToDeriveReadVisitor(AstSink sink) {
+        this.sink = sink;
     }
 
-    private static ToDeriveReadVisitor getInstance() {
-        return instance;
+    /*
+     * Prints the tree as text into out
+     */
+    public ToDeriveReadVisitor(ByteOutput out) {
+        this(new TextSink(out));
     }
 
-    private static void output(String s) {
-        getInstance().out.print(s);
+    /*
+     * A constructor with no arguments
+     */
+    protected void nullary(String name) {
+        sink.begin(name);
+        sink.end();
     }
     
     private static abstract class NodeField {
         protected abstract Object getValueFrom(Object n); //optional
-        protected abstract void printValue(Object x); //less optional
+        protected abstract void printValue(ToDeriveReadVisitor v, Object x); //less optional
         
-        protected void printValueFor(Object n) {
-            printValue(getValueFrom(n));
+        protected void printValueFor(ToDeriveReadVisitor v, Object n) {
+            printValue(v, getValueFrom(n));
+        }
+
+        /*
+         * Compiled counterparts of the above, used by VisitorGenerator. valueType
+         * and compileGet give the static type of and an expression for getValueFrom;
+         * compileValue and compileValueFor emit code equivalent to printValue and
+         * printValueFor.
+         */
+        protected abstract java.lang.reflect.Type valueType(java.lang.reflect.Type nType);
+        protected abstract String compileGet(String n, java.lang.reflect.Type nType);
+        protected abstract void compileValue(VisitorGenerator.Code c, String x, java.lang.reflect.Type xType);
+
+        protected void compileValueFor(VisitorGenerator.Code c, String n, java.lang.reflect.Type nType) {
+            java.lang.reflect.Type t = valueType(nType);
+            compileValue(c, c.local(t, compileGet(n, nType)), t);
+        }
+
+        /*
+         * Adds to problems each way in which what printValue prints for a
+         * value of type xType is not of the schema type expected, written as
+         * in AstSchema, or null where any type will do; checkFor does the
+         * same for printValueFor and a node of type nType.
+         */
+        protected abstract void check(String expected, java.lang.reflect.Type xType, List<String> problems);
+
+        protected void checkFor(String expected, java.lang.reflect.Type nType, List<String> problems) {
+            check(expected, valueType(nType), problems);
         }
     }
 
+    private interface Getter {
+        Object get(Object n);
+    }
+
     private static class RawField extends NodeField {
         private String fieldName;
-        
-        protected Object getValueFrom(Object n) {
-            Method getter;
+
+        /*
+         * The getter for a field is resolved once per node class and compiled
+         * into a Getter, rather than looked up by name (and, for boolean
+         * fields, by catching the failed "get" lookup) and invoked
+         * reflectively every time a node is printed.
+         */
+        private final ClassValue<Getter> getters = new ClassValue<Getter>() {
+            protected Getter computeValue(Class<?> c) {
+                return compileGetter(c, fieldName);
+            }
+        };
+
+        private static Getter compileGetter(Class<?> c, String fieldName) {
+            Method getter = findGetter(c, fieldName);
+
             try {
-                getter = n.getClass().getMethod("get"+fieldName);
-            } catch(NoSuchMethodException _) {
-                try {
-                  getter = n.getClass().getMethod("is"+fieldName);
-                } catch(NoSuchMethodException e) {
-                    throw new ExceptionConverter(e);
-                }
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                MethodHandle impl = lookup.unreflect(getter);
+                MethodType erased = MethodType.methodType(Object.class, Object.class);
+                return (Getter)LambdaMetafactory.metafactory(lookup, "get", MethodType.methodType(Getter.class),
+                                                             erased, impl, impl.type().wrap())
+                                                .getTarget().invoke();
+            } catch(RuntimeException e) {
+                throw e;
+            } catch(Throwable t) {
+                throw new ExceptionConverter(new Exception(t));
             }
+        }
 
+        private static Method findGetter(Class<?> c, String fieldName) {
+            Method getter;
             try {
-              return getter.invoke(n);
-            } catch(Exception e) {
-                throw new ExceptionConverter(e);
+                getter = c.getMethod("get"+fieldName);
+            } catch(NoSuchMethodException e) {
+                try {
+                    getter = c.getMethod("is"+fieldName);
+                } catch(NoSuchMethodException e2) {
+                    throw new ExceptionConverter(e2);
+                }
             }
+            return getter;
+        }
+        
+        protected Object getValueFrom(Object n) {
+            return getters.get(n.getClass()).get(n);
         }
 
-        protected void printValue(Object val) {
+        protected void printValue(ToDeriveReadVisitor v, Object val) {
             if(val instanceof Boolean) {
-                if(((Boolean)val).booleanValue()) {
-                    output("True");
-                } else {
-                    output("False");
-                }
+                v.nullary(((Boolean)val).booleanValue() ? "True" : "False");
             } else if(val instanceof Integer) {
-                output(Integer.toString(((Integer)val).intValue()));
+                v.sink.number(Integer.toString(((Integer)val).intValue()));
             } else {
-                ((Node)val).accept(getInstance(), null);
+                ((Node)val).accept(v, null);
              }
         }
+
+        protected java.lang.reflect.Type valueType(java.lang.reflect.Type nType) {
+            return findGetter(VisitorGenerator.rawClass(nType), fieldName).getGenericReturnType();
+        }
+
+        protected String compileGet(String n, java.lang.reflect.Type nType) {
+            return n + "." + findGetter(VisitorGenerator.rawClass(nType), fieldName).getName() + "()";
+        }
+
+        protected void compileValue(VisitorGenerator.Code c, String x, java.lang.reflect.Type xType) {
+            Class<?> cls = VisitorGenerator.rawClass(xType);
+            if(cls == boolean.class || cls == Boolean.class) {
+                c.stmt("nullary(" + x + " ? \"True\" : \"False\");");
+            } else if(cls == int.class || cls == Integer.class) {
+                c.stmt("sink.number(Integer.toString(" + x + "));");
+            } else if(Node.class.isAssignableFrom(cls)) {
+                c.stmt(x + ".accept(this, null);");
+            } else {
+                throw new IllegalArgumentException("Cannot compile field " + fieldName + " of type " + xType);
+            }
+        }
+
+        protected void check(String expected, java.lang.reflect.Type xType, List<String> problems) {
+            Class<?> cls = VisitorGenerator.rawClass(xType);
+            String actual;
+            if(cls == boolean.class || cls == Boolean.class)
+                actual = "Bool";
+            else if(cls == int.class || cls == Integer.class)
+                actual = "Int";
+            else
+                actual = visitedType(cls);
+            checkType(expected, actual, "field " + fieldName, problems);
+        }
     }
         
+    /*
+     * RawFields are shared per field name so that their compiled getters
+     * survive the fields built on the fly by the hand-written visit methods.
+     */
+    private static final ConcurrentHashMap<String, RawField> rawFields = new ConcurrentHashMap<String, RawField>();
+        
     protected static RawField f(String name) {
-        RawField f = new RawField();
-        f.fieldName = name;
+        RawField f = rawFields.get(name);
+        if(f == null) {
+            f = new RawField();
+            f.fieldName = name;
+            RawField prev = rawFields.putIfAbsent(name, f);
+            if(prev != null)
+                f = prev;
+        }
         return f;
     }
     
@@ -188,15 +305,37 @@ public class ToDeriveReadVisitor implements VoidVisitor {
             return field.getValueFrom(n);
         }
 
-        protected void printValue(Object x) {
+        protected void printValue(ToDeriveReadVisitor v, Object x) {
             if(x == null) {
-                output("Nothing");
+                v.nullary("Nothing");
             } else {
-                output("(Just ");
-                field.printValue(x);
-                output(")");
+                v.sink.begin("Just");
+                field.printValue(v, x);
+                v.sink.end();
             }
         }
+
+        protected java.lang.reflect.Type valueType(java.lang.reflect.Type nType) {
+            return field.valueType(nType);
+        }
+
+        protected String compileGet(String n, java.lang.reflect.Type nType) {
+            return field.compileGet(n, nType);
+        }
+
+        protected void compileValue(VisitorGenerator.Code c, String x, java.lang.reflect.Type xType) {
+            c.open("if(" + x + " == null)");
+            c.nullary("Nothing");
+            c.orElse();
+            c.begin("Just");
+            field.compileValue(c, x, xType);
+            c.end();
+            c.close();
+        }
+
+        protected void check(String expected, java.lang.reflect.Type xType, List<String> problems) {
+            field.check(elementOf("?", expected, "Maybe", problems), xType, problems);
+        }
     }
 
     private static class ConstField extends NodeField {
@@ -206,8 +345,30 @@ public class ToDeriveReadVisitor implements VoidVisitor {
             return value;
         }
 
-        protected void printValue(Object x) {
-            output((String)x);
+        protected void printValue(ToDeriveReadVisitor v, Object x) {
+            v.nullary((String)x);
+        }
+
+        protected java.lang.reflect.Type valueType(java.lang.reflect.Type nType) {
+            return String.class;
+        }
+
+        protected String compileGet(String n, java.lang.reflect.Type nType) {
+            return VisitorGenerator.literal(value);
+        }
+
+        protected void compileValue(VisitorGenerator.Code c, String x, java.lang.reflect.Type xType) {
+            c.stmt("nullary(" + x + ");");
+        }
+
+        protected void compileValueFor(VisitorGenerator.Code c, String n, java.lang.reflect.Type nType) {
+            c.nullary(value);
+        }
+
+        protected void check(String expected, java.lang.reflect.Type xType, List<String> problems) {
+            AstSchema.Constructor k = checkConstructor(value, expected, problems);
+            if(k != null && k.arity() != 0)
+                problems.add(value + " takes " + k.arity() + " arguments, but is printed with none");
         }
     }
 
@@ -230,16 +391,39 @@ public class ToDeriveReadVisitor implements VoidVisitor {
             return field.getValueFrom(n);
         }
 
-        protected void printValue(Object x) {
+        protected void printValue(ToDeriveReadVisitor v, Object x) {
             List l = (List)x;
             if(l == null || l.isEmpty()) {
-                output("Nothing");
+                v.nullary("Nothing");
             } else {
-                output("(Just ");
-                field.printValue(l.get(0));
-                output(")");
+                v.sink.begin("Just");
+                field.printValue(v, l.get(0));
+                v.sink.end();
             }
         }
+
+        protected java.lang.reflect.Type valueType(java.lang.reflect.Type nType) {
+            return field.valueType(nType);
+        }
+
+        protected String compileGet(String n, java.lang.reflect.Type nType) {
+            return field.compileGet(n, nType);
+        }
+
+        protected void compileValue(VisitorGenerator.Code c, String x, java.lang.reflect.Type xType) {
+            java.lang.reflect.Type elemType = VisitorGenerator.elementType(xType);
+            c.open("if(" + x + " == null || " + x + ".isEmpty())");
+            c.nullary("Nothing");
+            c.orElse();
+            c.begin("Just");
+            field.compileValue(c, c.local(elemType, x + ".get(0)"), elemType);
+            c.end();
+            c.close();
+        }
+
+        protected void check(String expected, java.lang.reflect.Type xType, List<String> problems) {
+            field.check(elementOf("?", expected, "Maybe", problems), VisitorGenerator.elementType(xType), problems);
+        }
     }
     
     protected static MaybeListField maybelist(NodeField f) {
@@ -255,26 +439,42 @@ public class ToDeriveReadVisitor implements VoidVisitor {
             return field.getValueFrom(n);
         }
 
-        protected void printValueFor(Object n) {
+        protected void printValueFor(ToDeriveReadVisitor v, Object n) {
             List l = (List)field.getValueFrom(n);
-            printValue(l);
+            printValue(v, l);
         }
 
-        protected void printValue(Object x) {
-            if(x == null) {
-                output("[]");
-                return;
+        protected void printValue(ToDeriveReadVisitor v, Object x) {
+            v.sink.beginList();
+            if(x != null) {
+                for(Object o : (List)x)
+                    field.printValue(v, o);
             }
-            
-            List l = (List)x;
-            output("[");
-            String sep = "";
-            for(Object o : l) {
-                output(sep);
-                sep = ", ";
-                field.printValue(o);
-            }
-            output("]");
+            v.sink.endList();
+        }
+
+        protected java.lang.reflect.Type valueType(java.lang.reflect.Type nType) {
+            return field.valueType(nType);
+        }
+
+        protected String compileGet(String n, java.lang.reflect.Type nType) {
+            return field.compileGet(n, nType);
+        }
+
+        protected void compileValue(VisitorGenerator.Code c, String x, java.lang.reflect.Type xType) {
+            java.lang.reflect.Type elemType = VisitorGenerator.elementType(xType);
+            c.beginList();
+            c.open("if(" + x + " != null)");
+            String o = c.fresh("o");
+            c.open("for(" + VisitorGenerator.typeName(elemType) + " " + o + " : " + x + ")");
+            field.compileValue(c, o, elemType);
+            c.close();
+            c.close();
+            c.endList();
+        }
+
+        protected void check(String expected, java.lang.reflect.Type xType, List<String> problems) {
+            field.check(elementOf("[", expected, "list", problems), VisitorGenerator.elementType(xType), problems);
         }
     }
         
@@ -291,10 +491,28 @@ public class ToDeriveReadVisitor implements VoidVisitor {
             return field.getValueFrom(n);
         }
 
-        protected void printValue(Object x) {
-            output("[");
-            field.printValue(x);
-            output("]");
+        protected void printValue(ToDeriveReadVisitor v, Object x) {
+            v.sink.beginList();
+            field.printValue(v, x);
+            v.sink.endList();
+        }
+
+        protected java.lang.reflect.Type valueType(java.lang.reflect.Type nType) {
+            return field.valueType(nType);
+        }
+
+        protected String compileGet(String n, java.lang.reflect.Type nType) {
+            return field.compileGet(n, nType);
+        }
+
+        protected void compileValue(VisitorGenerator.Code c, String x, java.lang.reflect.Type xType) {
+            c.beginList();
+            field.compileValue(c, x, xType);
+            c.endList();
+        }
+
+        protected void check(String expected, java.lang.reflect.Type xType, List<String> problems) {
+            field.check(elementOf("[", expected, "list", problems), xType, problems);
         }
     }
 
@@ -312,13 +530,37 @@ public class ToDeriveReadVisitor implements VoidVisitor {
             return field.getValueFrom(n);
         }
 
-        protected void printValue(Object x) {
+        protected void printValue(ToDeriveReadVisitor v, Object x) {
             try {
-                printer.invoke(getInstance(), x);
+                printer.invoke(v, x);
             } catch(Exception e) {
                 throw new ExceptionConverter(e);
             }
         }
+
+        protected java.lang.reflect.Type valueType(java.lang.reflect.Type nType) {
+            return field.valueType(nType);
+        }
+
+        protected String compileGet(String n, java.lang.reflect.Type nType) {
+            return field.compileGet(n, nType);
+        }
+
+        /*
+         * Calls the printer by name, so that javac picks the typed overload
+         * where the static type of x allows it.
+         */
+        protected void compileValue(VisitorGenerator.Code c, String x, java.lang.reflect.Type xType) {
+            c.stmt(printer.getName() + "(" + x + ");");
+        }
+
+        protected void check(String expected, java.lang.reflect.Type xType, List<String> problems) {
+            String printed = PRINTED_TYPES.get(printer.getName());
+            if(printed == null)
+                problems.add("No schema type known for what " + printer.getName() + " prints");
+            else
+                checkType(expected, printed, printer.getName(), problems);
+        }
     }
                 
     protected static SpecialField id(NodeField f) {
@@ -347,27 +589,77 @@ public class ToDeriveReadVisitor implements VoidVisitor {
             return contents.get(0).getValueFrom(n);
         }
 
-        protected void printValueFor(Object n) {
-            output("(");
-            output(name);
+        protected void printValueFor(ToDeriveReadVisitor v, Object n) {
+            v.sink.begin(name);
+            for(NodeField f : contents)
+                f.printValueFor(v, n);
+            v.sink.end();
+        }
 
-            for(NodeField f : contents) {
-                output(" ");
-                f.printValueFor(n);
-            }
-            
-            output(")");
+        protected void printValue(ToDeriveReadVisitor v, Object x) {
+            if(contents.size() > 1)
+                throw new UnsupportedOperationException();
+
+            v.sink.begin(name);
+            contents.get(0).printValue(v, x);
+            v.sink.end();
+        }
+
+        protected java.lang.reflect.Type valueType(java.lang.reflect.Type nType) {
+            if(contents.size() > 1)
+                throw new UnsupportedOperationException();
+
+            return contents.get(0).valueType(nType);
         }
 
-        protected void printValue(Object x) {
+        protected String compileGet(String n, java.lang.reflect.Type nType) {
             if(contents.size() > 1)
                 throw new UnsupportedOperationException();
 
-            output("(");
-            output(name);
-            output(" ");
-            contents.get(0).printValue(x);
-            output(")");
+            return contents.get(0).compileGet(n, nType);
+        }
+
+        protected void compileValueFor(VisitorGenerator.Code c, String n, java.lang.reflect.Type nType) {
+            c.begin(name);
+            for(NodeField f : contents)
+                f.compileValueFor(c, n, nType);
+            c.end();
+        }
+
+        protected void compileValue(VisitorGenerator.Code c, String x, java.lang.reflect.Type xType) {
+            if(contents.size() > 1)
+                throw new UnsupportedOperationException();
+
+            c.begin(name);
+            contents.get(0).compileValue(c, x, xType);
+            c.end();
+        }
+
+        /*
+         * The constructor printed, if it is in the schema with as many
+         * arguments as are printed for it
+         */
+        private AstSchema.Constructor checkArity(String expected, List<String> problems) {
+            AstSchema.Constructor k = checkConstructor(name, expected, problems);
+            if(k != null && k.arity() != contents.size()) {
+                problems.add(name + " takes " + k.arity() + " arguments, but is printed with " + contents.size());
+                return null;
+            }
+            return k;
+        }
+
+        protected void checkFor(String expected, java.lang.reflect.Type nType, List<String> problems) {
+            AstSchema.Constructor k = checkArity(expected, problems);
+            if(k != null) {
+                for(int i = 0; i < contents.size(); i++)
+                    contents.get(i).checkFor(k.argTypes[i], nType, problems);
+            }
+        }
+
+        protected void check(String expected, java.lang.reflect.Type xType, List<String> problems) {
+            AstSchema.Constructor k = checkArity(expected, problems);
+            if(k != null)
+                contents.get(0).check(k.argTypes[0], xType, problems);
         }
     }
     
@@ -417,24 +709,21 @@ public class ToDeriveReadVisitor implements VoidVisitor {
                 put("_ArrayCreateInit", wrap("ArrayCreateInit", special(f("Type"), "printType"), f("ArrayCount"), wrap("ArrayInit", f("Initializer"))));
                 put("ArrayInitializerExpr", list(special(f("Values"), "printVarInit")));
                 put("AssignExpr", wrap("Assign", special(f("Target"), "printLHS"), special(f("Operator"), "printAssignOp"), f("Value")));
-                put("BinaryExpr", wrap("BinOp", f("Left"), special(f("Operator"), "printBinOp"), f("Right")));
                 put("CastExpr", wrap("Cast", special(f("Type"), "printType"), f("Expr")));
                 put("ClassExpr", wrap("ClassLit", special(f("Type"), "printVoidableType")));
                 put("ConditionalExpr", wrap("Cond", f("Condition"), f("ThenExpr"), f("ElseExpr")));
-                put("EnclosedExpr", f("Inner"));
                 put("_PrimaryFieldAccess", wrap("PrimaryFieldAccess", f("Scope"), id(f("Field"))));
                 put("_SuperFieldAccess", wrap("SuperFieldAccess", id(f("Field"))));
                 put("InstanceOfExpr", wrap("InstanceOf", f("Expr"), f("Type")));
                 put("BooleanLiteralExpr", wrap("Lit", wrap("Boolean", f("Value"))));
                 put("_InstanceCreation", wrap("InstanceCreation", list(special(f("TypeArgs"), "printTypeArg")), wrap("TypeDeclSpecifier", f("Type")), list(f("Args")), maybe(wrap("ClassBody", list(special(f("AnonymousClassBody"), "printDecl"))))));
-                put("_QualInstanceCreation", wrap("QualInstanceCreation", f("Scope"), list(special(f("TypeArgs"), "printTypeArg")), special(f("Type"), "printClassTypeID"), list(f("Args")), maybelist(f("AnonymousClassBody"))));
+                put("_QualInstanceCreation", wrap("QualInstanceCreation", f("Scope"), list(special(f("TypeArgs"), "printTypeArg")), special(f("Type"), "printClassTypeID"), list(f("Args")), maybe(wrap("ClassBody", list(special(f("AnonymousClassBody"), "printDecl"))))));
                 put("VariableDeclarationExpr", wrap("LocalVars", special(f("Modifiers"), "printModifiers"), special(f("Type"), "printType"), list(f("Vars"))));
                 put("_ForLocalVars", wrap("ForLocalVars", special(f("Modifiers"), "printModifiers"), special(f("Type"), "printType"), list(f("Vars"))));
                 put("_ThisInvoke", wrap("ThisInvoke", list(f("TypeArgs")), list(f("Args"))));
                 put("_SuperInvoke", wrap("SuperInvoke", list(f("TypeArgs")), list(f("Args"))));
                 put("_PrimarySuperInvoke", wrap("PrimarySuperInvoke", f("Expr"), list(f("TypeArgs")), list(f("Args"))));
                 put("AssertStmt", wrap("Assert", f("Check"), maybe(f("Message"))));
-                put("BlockStmt", wrap("Block", list(special(f("Stmts"), "printBlockStmt"))));
                 put("LabeledStmt", wrap("Labeled", id(f("Label")), special(f("Stmt"), "printStmt")));
                 put("ExpressionStmt", wrap("ExpStmt", f("Expression")));
                 put("SwitchStmt", wrap("Switch", f("Selector"), list(f("Entries"))));
@@ -442,8 +731,6 @@ public class ToDeriveReadVisitor implements VoidVisitor {
                 put("BreakStmt", wrap("Break", maybe(id(f("Id")))));
                 put("ContinueStmt", wrap("Continue", maybe(id(f("Id")))));
                 put("ReturnStmt", wrap("Return", maybe(f("Expr"))));
-                put("_IfThen", wrap("IfThen", f("Condition"), special(f("ThenStmt"), "printStmt")));
-                put("_IfThenElse", wrap("IfThenElse", f("Condition"), special(f("ThenStmt"), "printStmt"), special(f("ElseStmt"), "printStmt")));
                 put("WhileStmt", wrap("While", f("Condition"), special(f("Body"), "printStmt")));
                 put("DoStmt", wrap("Do", special(f("Body"), "printStmt"), f("Condition")));
                 put("ThrowStmt", wrap("Throw", f("Expr")));
@@ -453,53 +740,271 @@ public class ToDeriveReadVisitor implements VoidVisitor {
                 put("CatchClause", wrap("Catch", f("Except"), f("CatchBlock")));
             }};
     }
-    
 
-    private void dispatchVisit(Object n, String key) {
+    /*
+     * The synthetic "_" entries above, which the visit methods dispatch to
+     * explicitly, together with the node class each one prints. All other
+     * entries are named after their node class.
+     */
+    protected enum Variant {
+        InterfaceDeclaration(ClassOrInterfaceDeclaration.class),
+        ClassDeclaration(ClassOrInterfaceDeclaration.class),
+        EnumDeclaration(EnumDeclaration.class),
+        ArrayAccessLhs(ArrayAccessExpr.class),
+        ArrayCreate(ArrayCreationExpr.class),
+        ArrayCreateInit(ArrayCreationExpr.class),
+        PrimaryFieldAccess(FieldAccessExpr.class),
+        SuperFieldAccess(FieldAccessExpr.class),
+        InstanceCreation(ObjectCreationExpr.class),
+        QualInstanceCreation(ObjectCreationExpr.class),
+        ForLocalVars(VariableDeclarationExpr.class),
+        ThisInvoke(ExplicitConstructorInvocationStmt.class),
+        SuperInvoke(ExplicitConstructorInvocationStmt.class),
+        PrimarySuperInvoke(ExplicitConstructorInvocationStmt.class);
+
+        final Class<?> nodeClass;
+
+        Variant(Class<?> nodeClass) {
+            this.nodeClass = nodeClass;
+        }
+
+        String key() {
+            return "_" + name();
+        }
+    }
+
+    /*
+     * metaInf is only consulted by key while building the dispatch tables
+     * below; planLookups counts those lookups, so that a run can check that
+     * none are left on the per-node path.
+     */
+    private static final AtomicLong planLookups = new AtomicLong();
+
+    private static NodeField planFor(String key) {
+        planLookups.incrementAndGet();
         NodeField f = metaInf.get(key);
-        f.printValueFor(n);
+        if(f == null)
+            throw new IllegalArgumentException("No metaInf entry " + key);
+        return f;
     }
-    
-    private void genericVisit(Object n) {
-        String name = n.getClass().getSimpleName();
-        dispatchVisit(n, name);
+
+    private static final NodeField[] variantPlans;
+    private static final IdentityHashMap<Class<?>, NodeField> nodePlans;
+
+    static {
+        variantPlans = new NodeField[Variant.values().length];
+        for(Variant v : Variant.values())
+            variantPlans[v.ordinal()] = planFor(v.key());
+
+        nodePlans = new IdentityHashMap<Class<?>, NodeField>();
+        for(String key : metaInf.keySet()) {
+            if(!key.startsWith("_"))
+                nodePlans.put(nodeClassFor(key), planFor(key));
+        }
+    }
+
+    private static final ClassValue<NodeField> plans = new ClassValue<NodeField>() {
+        protected NodeField computeValue(Class<?> c) {
+            NodeField f = nodePlans.get(c);
+            if(f == null)
+                throw new IllegalArgumentException("No metaInf entry for " + c.getName());
+            return f;
+        }
+    };
+
+    static long planLookups() {
+        return planLookups.get();
+    }
+
+    static SortedSet<String> metaInfKeys() {
+        return new TreeSet<String>(metaInf.keySet());
+    }
+
+    static Class<?> nodeClassFor(String key) {
+        if(key.startsWith("_"))
+            return Variant.valueOf(key.substring(1)).nodeClass;
+
+        for(String pkg : new String[] {"japa.parser.ast.", "japa.parser.ast.body.", "japa.parser.ast.expr.",
+                                       "japa.parser.ast.stmt.", "japa.parser.ast.type."}) {
+            try {
+                return Class.forName(pkg + key);
+            } catch(ClassNotFoundException e) {
+                // try the next package
+            }
+        }
+        throw new IllegalArgumentException("No node class for metaInf entry " + key);
+    }
+
+    static void compileEntry(String key, VisitorGenerator.Code c, String n) {
+        metaInf.get(key).compileValueFor(c, n, nodeClassFor(key));
     }
 
+    //- Checking against the schema -----------------------
 
     /*
-     * NumberUtils.createNumber does most of the work in reading
-     * the many formats integers may be written in in Java. However,
-     * it still fails some cases -- in particular, it errors on 8-digit
-     * hex ints like 0x80000000 instead of returning long or wrapping to negative.
-     *
-     * This was reported in https://issues.apache.org/jira/browse/LANG-747
-     *
-     * Some code adapated from original definition of createNumber
+     * The schema type of what visiting a node of each class prints, the
+     * first class the node is an instance of deciding; see the notes at the
+     * top of this file
      */
-    private Number parseJavaInt(String str) {
-        // Need to deal with all possible hex prefixes here
-        final String[] hex_prefixes = {"0x", "0X", "-0x", "-0X", "#", "-#"};
-        int pfxLen = 0;
-        for(final String pfx : hex_prefixes) {
-            if (str.startsWith(pfx)) {
-                pfxLen += pfx.length();
-                break;
-            }
+    private static final LinkedHashMap<Class<?>, String> VISITED_TYPES = new LinkedHashMap<Class<?>, String>();
+
+    /*
+     * The schema type of what each special printer prints
+     */
+    private static final HashMap<String, String> PRINTED_TYPES = new HashMap<String, String>();
+
+    static {
+        Object[] visited = {
+            CompilationUnit.class, "CompilationUnit", PackageDeclaration.class, "PackageDecl",
+            ImportDeclaration.class, "ImportDecl", TypeParameter.class, "TypeParam", TypeDeclaration.class, "TypeDecl",
+            EnumConstantDeclaration.class, "EnumConstant", InitializerDeclaration.class, "Decl",
+            BodyDeclaration.class, "MemberDecl", VariableDeclarator.class, "VarDecl",
+            VariableDeclaratorId.class, "VarDeclId", Parameter.class, "FormalParam",
+            ClassOrInterfaceType.class, "ClassType", PrimitiveType.class, "Type", ReferenceType.class, "RefType",
+            WildcardType.class, "TypeArgument",
+            // where a reference type is expected, the parser gives a ReferenceType
+            Type.class, "RefType", ArrayInitializerExpr.class, "[VarInit]",
+            VariableDeclarationExpr.class, "BlockStmt", Expression.class, "Exp",
+            BlockStmt.class, "Block", ExplicitConstructorInvocationStmt.class, "ExplConstrInv",
+            TypeDeclarationStmt.class, "BlockStmt", SwitchEntryStmt.class, "SwitchBlock", Statement.class, "Stmt",
+            CatchClause.class, "Catch"
+        };
+        for(int i = 0; i < visited.length; i += 2)
+            VISITED_TYPES.put((Class<?>)visited[i], (String)visited[i + 1]);
+
+        String[] printed = {
+            "printModifiers", "[Modifier]", "printIdent", "Ident", "printName", "Name", "printNameIdent", "Ident",
+            "printMemberDecl", "MemberDecl", "printDecl", "Decl", "printType", "Type", "printVarInit", "VarInit",
+            "printExceptionType", "RefType", "printConstructorBody", "ConstructorBody", "printVoidableType", "?Type",
+            "printPrimitive", "PrimType", "printTypeArg", "TypeArgument", "printLHS", "Lhs", "printAssignOp", "AssignOp",
+            "printClassTypeID", "Ident", "printStmt", "Stmt", "printBlockStmt", "BlockStmt",
+            "printSwitchLabel", "SwitchLabel", "printForInit", "ForInit"
+        };
+        for(int i = 0; i < printed.length; i += 2)
+            PRINTED_TYPES.put(printed[i], printed[i + 1]);
+    }
+
+    private static String visitedType(Class<?> c) {
+        for(Map.Entry<Class<?>, String> e : VISITED_TYPES.entrySet()) {
+            if(e.getKey().isAssignableFrom(c))
+                return e.getValue();
+        }
+        return null;
+    }
+
+    private static void checkType(String expected, String actual, String what, List<String> problems) {
+        if(actual == null)
+            problems.add("No schema type known for " + what);
+        else if(expected != null && !expected.equals(actual)
+                && !(AstSchema.isInteger(expected) && AstSchema.isInteger(actual)))
+            problems.add(what + " prints " + actual + " where " + expected + " is expected");
+    }
+
+    /*
+     * The type of the elements of expected, a list or Maybe type as the
+     * prefix says
+     */
+    private static String elementOf(String prefix, String expected, String what, List<String> problems) {
+        if(expected == null)
+            return null;
+        if(prefix.equals("[") ? expected.startsWith("[") && expected.endsWith("]") : expected.startsWith(prefix))
+            return expected.substring(1, expected.length() - (prefix.equals("[") ? 1 : 0));
+        problems.add("A " + what + " is printed where " + expected + " is expected");
+        return null;
+    }
+
+    /*
+     * The constructor name in the schema, if it is there and of the type
+     * expected
+     */
+    private static AstSchema.Constructor checkConstructor(String name, String expected, List<String> problems) {
+        AstSchema.Constructor k = AstSchema.find(name);
+        if(k == null) {
+            problems.add("No constructor " + name + " in the schema");
+            return null;
+        }
+        String type = expected != null && expected.startsWith("?") ? "Maybe" : expected;
+        if(type != null && !k.type.equals(type)) {
+            problems.add(name + " is a " + k.type + " where " + expected + " is expected");
+            return null;
+        }
+        return k;
+    }
+
+    /*
+     * Every way in which what the metaInf entries and the tables of
+     * constructor names print differs from the binary schema, AstSchema;
+     * empty if they agree. The hand-written visit methods are checked as
+     * they run instead, by BinaryAstOutput.
+     */
+    static List<String> schemaProblems() {
+        List<String> problems = new ArrayList<String>();
+
+        for(String key : metaInfKeys()) {
+            List<String> found = new ArrayList<String>();
+            Class<?> c = nodeClassFor(key);
+            metaInf.get(key).checkFor(key.startsWith("_") ? null : visitedType(c), c, found);
+            for(String p : found)
+                problems.add(key + ": " + p);
         }
-        if (pfxLen > 0) { // we have a hex number
-            String hexDigits = str.substring(pfxLen);
-            return new BigInteger(hexDigits, 16);
+
+        List<String> found = new ArrayList<String>();
+        for(String name : MODIFIER_NAMES)
+            checkConstructor(name, "Modifier", found);
+        for(String name : PRIMITIVES)
+            checkConstructor(name, "PrimType", found);
+        for(String name : ASSIGN_OPS)
+            checkConstructor(name, "AssignOp", found);
+        for(String name : BIN_OPS)
+            checkConstructor(name, "Op", found);
+        for(NodeField op : UNARY_OPS)
+            op.checkFor("Exp", UnaryExpr.class, found);
+        problems.addAll(found);
+
+        return problems;
+    }
+
+    protected long dispatches = 0;
+
+    long dispatches() {
+        return dispatches;
+    }
+
+    protected void dispatchVisit(Object n, Variant v) {
+        dispatches++;
+        variantPlans[v.ordinal()].printValueFor(this, n);
+    }
+    
+    private void genericVisit(Object n) {
+        dispatches++;
+        plans.get(n.getClass()).printValueFor(this, n);
+    }
+
+
+    private void printNodeList(List<? extends Node> l) {
+        sink.beginList();
+        if(l != null) {
+            for(Node x : l)
+                x.accept(this, null);
         }
+        sink.endList();
+    }
 
-        return NumberUtils.createNumber(str);
+    private void printTypeArgs(List<Type> l) {
+        sink.beginList();
+        if(l != null) {
+            for(Type t : l)
+                printTypeArg(t);
+        }
+        sink.endList();
     }
 
     public void printIdent(Object o) { printIdent((String)o); }
     
     public void printIdent(String id) {
-        output("(Ident \"");
-        output(id);
-        output("\")");
+        sink.begin("Ident");
+        sink.string(id);
+        sink.end();
     }
 
     public void printMemberDecl(Object o) { printMemberDecl((BodyDeclaration)o); }
@@ -512,20 +1017,20 @@ public class ToDeriveReadVisitor implements VoidVisitor {
             n.accept(this, null);
         } else if(n instanceof ClassOrInterfaceDeclaration) {
             if(((ClassOrInterfaceDeclaration)n).isInterface()) {
-                output("(MemberInterfaceDecl ");
-                dispatchVisit(n, "_InterfaceDeclaration");
-                output(")");
+                sink.begin("MemberInterfaceDecl");
+                dispatchVisit(n, Variant.InterfaceDeclaration);
+                sink.end();
             } else {
-                output("(MemberClassDecl ");
-                dispatchVisit(n, "_ClassDeclaration");
-                output(")");
+                sink.begin("MemberClassDecl");
+                dispatchVisit(n, Variant.ClassDeclaration);
+                sink.end();
             }
         } else if(n instanceof EnumDeclaration) {
-            output("(MemberClassDecl ");
-            dispatchVisit(n, "_EnumDeclaration");
-            output(")");
+            sink.begin("MemberClassDecl");
+            dispatchVisit(n, Variant.EnumDeclaration);
+            sink.end();
         } else {
-            throw new IllegalArgumentException("Unsupported node passed to printMemberDecl: " + n);
+            throw new UnsupportedNodeException(n);
         }
             
     }
@@ -536,21 +1041,31 @@ public class ToDeriveReadVisitor implements VoidVisitor {
         if(n instanceof InitializerDeclaration) {
             n.accept(this, null);
         } else {
-            output("(MemberDecl ");
+            sink.begin("MemberDecl");
             printMemberDecl(n);
-            output(")");
+            sink.end();
         }
     }
 
     public void printName(Object o) { printName((NameExpr)o); }
 
     public void printName(NameExpr n) {
-        List<NameExpr> l = new LinkedList<NameExpr>();
-        for(NameExpr e = n; e != null; e = e instanceof QualifiedNameExpr ? ((QualifiedNameExpr)e).getQualifier() : null) {
-            l.add(0, e);
-        }
+        sink.begin("Name");
+        sink.beginList();
+        printNameParts(n);
+        sink.endList();
+        sink.end();
+    }
 
-        wrap("Name", list(special(null, "printNameIdent"))).printValue(l);
+    /*
+     * The parts of a qualified name, outermost first. The qualifiers are
+     * linked from the innermost part, so they are printed on the way back
+     * up rather than collected into a list first.
+     */
+    private void printNameParts(NameExpr n) {
+        if(n instanceof QualifiedNameExpr)
+            printNameParts(((QualifiedNameExpr)n).getQualifier());
+        printNameIdent(n);
     }
 
     public void printNameIdent(Object o) { printNameIdent((NameExpr)o); }
@@ -561,56 +1076,26 @@ public class ToDeriveReadVisitor implements VoidVisitor {
 
     public void printModifiers(Object o) { printModifiers(((Integer)o).intValue()); }
 
-    public void printModifiers(int m) {
-        output("[");
-        String sep = "";
+    private static final int[] MODIFIER_FLAGS = {
+        ModifierSet.ABSTRACT, ModifierSet.FINAL, ModifierSet.NATIVE, ModifierSet.PRIVATE,
+        ModifierSet.PROTECTED, ModifierSet.PUBLIC, ModifierSet.STATIC, ModifierSet.STRICTFP,
+        ModifierSet.SYNCHRONIZED, ModifierSet.TRANSIENT, ModifierSet.VOLATILE
+    };
 
-        if(ModifierSet.isAbstract(m)) {
-            output(sep); sep = ", ";
-            output("Abstract");
-        }
-        if(ModifierSet.isFinal(m)) {
-            output(sep); sep = ", ";
-            output("Final");
-        }
-        if(ModifierSet.isNative(m)) {
-            output(sep); sep = ", ";
-            output("Native");
-        }
-        if(ModifierSet.isPrivate(m)) {
-            output(sep); sep = ", ";
-            output("Private");
-        }
-        if(ModifierSet.isProtected(m)) {
-            output(sep); sep = ", ";
-            output("Protected");
-        }
-        if(ModifierSet.isPublic(m)) {
-            output(sep); sep = ", ";
-            output("Public");
-        }
-        if(ModifierSet.isStatic(m)) {
-            output(sep); sep = ", ";
-            output("Static");
-        }
-        if(ModifierSet.isStrictfp(m)) {
-            output(sep); sep = ", ";
-            output("StrictFP");
-        }
-        if(ModifierSet.isSynchronized(m)) {
-            output(sep); sep = ", ";
-            output("Synchronized_"); // "Synchronized" refers to the type of statement
-        }
-        if(ModifierSet.isTransient(m)) {
-            output(sep); sep = ", ";
-            output("Transient");
-        }
-        if(ModifierSet.isVolatile(m)) {
-            output(sep); sep = ", ";
-            output("Volatile");
-        }
+    private static final String[] MODIFIER_NAMES = {
+        "Abstract", "Final", "Native", "Private",
+        "Protected", "Public", "Static", "StrictFP",
+        "Synchronized_", // "Synchronized" refers to the type of statement
+        "Transient", "Volatile"
+    };
 
-        output("]");
+    public void printModifiers(int m) {
+        sink.beginList();
+        for(int i = 0; i < MODIFIER_FLAGS.length; i++) {
+            if((m & MODIFIER_FLAGS[i]) != 0)
+                nullary(MODIFIER_NAMES[i]);
+        }
+        sink.endList();
     }
     
     public void printType(Object o) { printType((Type)o); }
@@ -619,13 +1104,15 @@ public class ToDeriveReadVisitor implements VoidVisitor {
         if(n instanceof PrimitiveType) {
             n.accept(this, null);
         } else if(n instanceof ClassOrInterfaceType) {
-            output("(RefType (ClassRefType ");
+            sink.begin("RefType");
+            sink.begin("ClassRefType");
             n.accept(this, null);
-            output("))");
+            sink.end();
+            sink.end();
         } else if(n instanceof ReferenceType) {
-            output("(RefType ");
+            sink.begin("RefType");
             n.accept(this, null);
-            output(")");
+            sink.end();
         } else {
             throw new IllegalArgumentException("Illegal node passed to printType");
         }
@@ -634,70 +1121,64 @@ public class ToDeriveReadVisitor implements VoidVisitor {
     public void printExceptionType(Object o) { printExceptionType((NameExpr)o); }
 
     public void printExceptionType(NameExpr n) {
-        List<NameExpr> l = new LinkedList<NameExpr>();
-        for(NameExpr e = n; e != null; e = e instanceof QualifiedNameExpr ? ((QualifiedNameExpr)e).getQualifier() : null) {
-            l.add(0, e);
-        }
-
-        output("(ClassRefType (ClassType [");
-
-        String sep = "";
-        for(NameExpr e : l) {
-            output(sep);
-            sep = ", ";
-            output("(");
-            printIdent(e.getName());
-            output(", [])");
-        }
-        
-        output("]))");
-        
+        sink.begin("ClassRefType");
+        sink.begin("ClassType");
+        sink.beginList();
+        printExceptionTypeParts(n);
+        sink.endList();
+        sink.end();
+        sink.end();
+    }
+
+    private void printExceptionTypeParts(NameExpr n) {
+        if(n instanceof QualifiedNameExpr)
+            printExceptionTypeParts(((QualifiedNameExpr)n).getQualifier());
+        sink.beginTuple();
+        printIdent(n.getName());
+        sink.beginList();
+        sink.endList();
+        sink.endTuple();
     }
-    
 
     public void printVoidableType(Object o) { printVoidableType((Type)o); }
 
     public void printVoidableType(Type n) {
         if(n instanceof VoidType) {
-            output("Nothing");
+            nullary("Nothing");
         } else {
-            output("(Just ");
+            sink.begin("Just");
             printType(n);
-            output(")");
+            sink.end();
         }
     }
 
     public void printPrimitive(Object o) { printPrimitive((PrimitiveType.Primitive)o); }
 
-    public void printPrimitive(PrimitiveType.Primitive p) {
-        switch(p) {
-        case Boolean:
-            output("BooleanT");
-            break;
-        case Byte:
-            output("ByteT");
-            break;
-        case Char:
-            output("CharT");
-            break;
-        case Double:
-            output("DoubleT");
-            break;
-        case Float:
-            output("FloatT");
-            break;
-        case Int:
-            output("IntT");
-            break;
-        case Long:
-            output("LongT");
-            break;
-        case Short:
-            output("ShortT");
-            break;
+    private static String primitiveName(PrimitiveType.Primitive o) {
+        switch(o) {
+        case Boolean: return "BooleanT";
+        case Byte: return "ByteT";
+        case Char: return "CharT";
+        case Double: return "DoubleT";
+        case Float: return "FloatT";
+        case Int: return "IntT";
+        case Long: return "LongT";
+        case Short: return "ShortT";
+        default: throw new IllegalArgumentException("Unknown primitive type " + o);
         }
     }
 
+    private static final String[] PRIMITIVES = new String[PrimitiveType.Primitive.values().length];
+
+    static {
+        for(PrimitiveType.Primitive o : PrimitiveType.Primitive.values())
+            PRIMITIVES[o.ordinal()] = primitiveName(o);
+    }
+
+    public void printPrimitive(PrimitiveType.Primitive p) {
+        nullary(PRIMITIVES[p.ordinal()]);
+    }
+
     public void printConstructorBody(Object o) { printConstructorBody((BlockStmt)o); }
 
     public void printConstructorBody(BlockStmt n) {
@@ -706,61 +1187,49 @@ public class ToDeriveReadVisitor implements VoidVisitor {
             l = new ArrayList<Statement>();
         List<Statement> lNormalized;
 
-        output("(ConstructorBody ");
+        sink.begin("ConstructorBody");
         
         if(l.size() > 0 && l.get(0) instanceof ExplicitConstructorInvocationStmt) {
-            output("(Just ");
+            sink.begin("Just");
             l.get(0).accept(this, null);
-            output(") ");
+            sink.end();
             
             lNormalized = new ArrayList(l);
             lNormalized.remove(0);
         } else {
-            output("Nothing ");
+            nullary("Nothing");
             lNormalized = l;
         }
 
-        list(special(null, "printBlockStmt")).printValue(lNormalized);
+        sink.beginList();
+        for(Statement s : lNormalized)
+            printBlockStmt(s);
+        sink.endList();
 
-        output(")");
+        sink.end();
     }
 
     public void printStmt(Object o) { printStmt((Statement)o); }
 
     public void printStmt(Statement n) {
-        if(n instanceof BlockStmt) {
-            output("(StmtBlock ");
-            n.accept(this, null);
-            output(")");
-        } else {
-            n.accept(this, null);
-        }
+        run(STMT, n);
     }
 
     public void printBlockStmt(Object o) { printBlockStmt((Statement)o); }
 
     public void printBlockStmt(Statement n) {
-        if(n instanceof ExpressionStmt &&
-           ((ExpressionStmt)n).getExpression() instanceof VariableDeclarationExpr) {
-            ((ExpressionStmt)n).getExpression().accept(this, null);
-        } else if(n instanceof TypeDeclarationStmt) {
-            n.accept(this, null);
-        } else {
-            output("(BlockStmt ");
-            printStmt(n);
-            output(")");
-        }
+        run(BLOCK_STMT, n);
     }
 
     public void printSwitchLabel(Object o) { printSwitchLabel((Expression)o); }
 
     public void printSwitchLabel(Expression n) {
         if(n == null) {
-            output("Default");
+            nullary("Default");
         } else {
-            output("(SwitchCase ");
+            sink.begin("SwitchCase");
             n.accept(this, null);
-            output(")");
+            sink.end();
         }
     }
 
@@ -768,9 +1237,11 @@ public class ToDeriveReadVisitor implements VoidVisitor {
 
     public void printForInit(List<Expression> l) {
         if(l.size() == 1 && l.get(0) instanceof VariableDeclarationExpr) {
-            dispatchVisit(l.get(0), "_ForLocalVars");
+            dispatchVisit(l.get(0), Variant.ForLocalVars);
         } else {
-            wrap("ForInitExps", list(f("Init"))).printValueFor(new ForStmt(l, null, null, null));
+            sink.begin("ForInitExps");
+            printNodeList(l);
+            sink.end();
         }
     }
 
@@ -778,13 +1249,15 @@ public class ToDeriveReadVisitor implements VoidVisitor {
     
     public void printVarInit(Expression n) {
         if(n instanceof ArrayInitializerExpr) {
-            output("(InitArray (ArrayInit ");
+            sink.begin("InitArray");
+            sink.begin("ArrayInit");
             n.accept(this, null);
-            output("))");
+            sink.end();
+            sink.end();
         } else {
-            output("(InitExp ");
+            sink.begin("InitExp");
             n.accept(this, null);
-            output(")");
+            sink.end();
         }
     }
 
@@ -794,9 +1267,9 @@ public class ToDeriveReadVisitor implements VoidVisitor {
         if(n instanceof WildcardType) {
             n.accept(this, null);
         } else if(n instanceof ReferenceType) {
-            output("(ActualType ");
+            sink.begin("ActualType");
             n.accept(this, null);
-            output(")");
+            sink.end();
         } else {
             throw new IllegalArgumentException("Illegal node passed to printTypeArg");
         }
@@ -807,16 +1280,15 @@ public class ToDeriveReadVisitor implements VoidVisitor {
     public void printFieldAccess(FieldAccessExpr n) {
         if(n.getScope() instanceof SuperExpr) {
             if(((SuperExpr)n.getScope()).getClassExpr() == null) {
-                dispatchVisit(n, "_SuperFieldAccess");
+                dispatchVisit(n, Variant.SuperFieldAccess);
             } else {
-                output("(ClassFieldAccess ");
+                sink.begin("ClassFieldAccess");
                 printName(((SuperExpr)n.getScope()).getClassExpr());
-                output(" ");
                 printIdent(n.getField());
-                output(")");
+                sink.end();
             }
         } else {
-            dispatchVisit(n, "_PrimaryFieldAccess");
+            dispatchVisit(n, Variant.PrimaryFieldAccess);
         }
     }
     
@@ -824,15 +1296,15 @@ public class ToDeriveReadVisitor implements VoidVisitor {
 
     public void printLHS(Expression n) {
         if(n instanceof NameExpr) {
-            output("(NameLhs ");
+            sink.begin("NameLhs");
             printName(n);
-            output(")");
+            sink.end();
         } else if(n instanceof FieldAccessExpr) {
-            output("(FieldLhs ");
+            sink.begin("FieldLhs");
             printFieldAccess(n);
-            output(")");
+            sink.end();
         } else if(n instanceof ArrayAccessExpr) {
-            dispatchVisit(n, "_ArrayAccessLhs");
+            dispatchVisit(n, Variant.ArrayAccessLhs);
         } else {
             throw new IllegalArgumentException("Illegal node passed to printLHS");
         }
@@ -846,114 +1318,206 @@ public class ToDeriveReadVisitor implements VoidVisitor {
 
     public void printAssignOp(Object o) { printAssignOp((AssignExpr.Operator)o); }
 
-    public void printAssignOp(AssignExpr.Operator o) {
+    private static String assignOpName(AssignExpr.Operator o) {
         switch(o) {
-        case and:
-            output("AndA");
-            break;
-        case assign:
-            output("EqualA");
-            break;
-        case lShift:
-            output("LShiftA");
-            break;
-        case minus:
-            output("SubA");
-            break;
-        case or:
-            output("OrA");
-            break;
-        case plus:
-            output("AddA");
-            break;
-        case rem:
-            output("RemA");
-            break;
-        case rSignedShift:
-            output("RShiftA");
-            break;
-        case rUnsignedShift:
-            output("RRShiftA");
-            break;
-        case slash:
-            output("DivA");
-            break;
-        case star:
-            output("MultA");
-            break;
-        case xor:
-            output("XorA");
-            break;
+        case and: return "AndA";
+        case assign: return "EqualA";
+        case lShift: return "LShiftA";
+        case minus: return "SubA";
+        case or: return "OrA";
+        case plus: return "AddA";
+        case rem: return "RemA";
+        case rSignedShift: return "RShiftA";
+        case rUnsignedShift: return "RRShiftA";
+        case slash: return "DivA";
+        case star: return "MultA";
+        case xor: return "XorA";
+        default: throw new IllegalArgumentException("Unknown assignment operator " + o);
         }
     }
 
+    private static final String[] ASSIGN_OPS = new String[AssignExpr.Operator.values().length];
+
+    static {
+        for(AssignExpr.Operator o : AssignExpr.Operator.values())
+            ASSIGN_OPS[o.ordinal()] = assignOpName(o);
+    }
+
+    public void printAssignOp(AssignExpr.Operator o) {
+        nullary(ASSIGN_OPS[o.ordinal()]);
+    }
+
     public void printBinOp(Object o) { printBinOp((BinaryExpr.Operator)o); }
 
-    public void printBinOp(BinaryExpr.Operator o) {
+    private static String binOpName(BinaryExpr.Operator o) {
         switch(o) {
-        case and:
-            output("CAnd");
-            break;
-        case binAnd:
-            output("And");
-            break;
-        case binOr:
-            output("Or");
-            break;
-        case divide:
-            output("Div");
-            break;
-        case equals:
-            output("Equal");
-            break;
-        case greater:
-            output("GThan");
-            break;
-        case greaterEquals:
-            output("GThanE");
-            break;
-        case less:
-            output("LThan");
-            break;
-        case lessEquals:
-            output("LThanE");
-            break;
-        case lShift:
-            output("LShift");
-            break;
-        case minus:
-            output("Sub");
-            break;
-        case notEquals:
-            output("NotEq");
-            break;
-        case or:
-            output("COr");
-            break;
-        case plus:
-            output("Add");
-            break;
-        case remainder:
-            output("Rem");
-            break;
-        case rSignedShift:
-            output("RShift");
-            break;
-        case rUnsignedShift:
-            output("RRShift");
-            break;
-        case times:
-            output("Mult");
-            break;
-        case xor:
-            output("Xor");
-            break;
-        }
-    }
-
-    private void fail(String name) {
-        System.err.println("javaparser-to-hs failed because unsupported node " + name + " encountered.");
-        System.exit(1);
+        case and: return "CAnd";
+        case binAnd: return "And";
+        case binOr: return "Or";
+        case divide: return "Div";
+        case equals: return "Equal";
+        case greater: return "GThan";
+        case greaterEquals: return "GThanE";
+        case less: return "LThan";
+        case lessEquals: return "LThanE";
+        case lShift: return "LShift";
+        case minus: return "Sub";
+        case notEquals: return "NotEq";
+        case or: return "COr";
+        case plus: return "Add";
+        case remainder: return "Rem";
+        case rSignedShift: return "RShift";
+        case rUnsignedShift: return "RRShift";
+        case times: return "Mult";
+        case xor: return "Xor";
+        default: throw new IllegalArgumentException("Unknown binary operator " + o);
+        }
+    }
+
+    private static final String[] BIN_OPS = new String[BinaryExpr.Operator.values().length];
+
+    static {
+        for(BinaryExpr.Operator o : BinaryExpr.Operator.values())
+            BIN_OPS[o.ordinal()] = binOpName(o);
+    }
+
+    public void printBinOp(BinaryExpr.Operator o) {
+        nullary(BIN_OPS[o.ordinal()]);
+    }
+
+    private void fail(Node n) {
+        throw new UnsupportedNodeException(n);
+    }
+
+    //- Nesting -------------------------------------------
+
+    /*
+     * Binary operator chains, parentheses, if-else ladders and nested
+     * blocks can be nested arbitrarily deep, and generated code nests them
+     * tens of thousands deep; printing them by recursion through accept()
+     * takes several stack frames per level. Instead they are expanded on
+     * an explicit work stack: expanding one emits what comes before its
+     * children, and pushes the children and the events after them, in
+     * reverse order. Any other node is printed with accept(), which comes
+     * back here for the next of these constructs under it, so the Java
+     * stack only grows where these constructs and others alternate.
+     *
+     * The work stack is shared by nested runs; each runs until the stack
+     * is back to where it started.
+     */
+
+    // work items: a node to print as with accept(), a statement to print
+    // as with printStmt() or printBlockStmt(), a constructor with no
+    // arguments, or the end of a constructor or of a list
+    private static final int NODE = 0, STMT = 1, BLOCK_STMT = 2, NULLARY = 3, END = 4, END_LIST = 5;
+
+    private int[] workKinds = new int[64];
+    private Object[] workItems = new Object[64];
+    private int work = 0;
+
+    private void push(int kind, Object item) {
+        if(work == workKinds.length) {
+            workKinds = Arrays.copyOf(workKinds, work * 2);
+            workItems = Arrays.copyOf(workItems, work * 2);
+        }
+        workKinds[work] = kind;
+        workItems[work] = item;
+        work++;
+    }
+
+    private void run(int kind, Object item) {
+        int base = work;
+        push(kind, item);
+
+        try {
+            while(work > base) {
+                work--;
+                Object x = workItems[work];
+                workItems[work] = null;
+
+                switch(workKinds[work]) {
+                case NODE:
+                    expand((Node)x);
+                    break;
+                case STMT:
+                    expandStmt((Statement)x);
+                    break;
+                case BLOCK_STMT:
+                    expandBlockStmt((Statement)x);
+                    break;
+                case NULLARY:
+                    nullary((String)x);
+                    break;
+                case END:
+                    sink.end();
+                    break;
+                case END_LIST:
+                    sink.endList();
+                    break;
+                }
+            }
+        } finally {
+            while(work > base)
+                workItems[--work] = null;
+        }
+    }
+
+    private void expand(Node n) {
+        if(n instanceof BinaryExpr) {
+            BinaryExpr b = (BinaryExpr)n;
+            dispatches++;
+            sink.begin("BinOp");
+            push(END, null);
+            push(NODE, b.getRight());
+            push(NULLARY, BIN_OPS[b.getOperator().ordinal()]);
+            push(NODE, b.getLeft());
+        } else if(n instanceof EnclosedExpr) {
+            dispatches++;
+            push(NODE, ((EnclosedExpr)n).getInner());
+        } else if(n instanceof BlockStmt) {
+            List<Statement> stmts = ((BlockStmt)n).getStmts();
+            dispatches++;
+            sink.begin("Block");
+            push(END, null);
+            sink.beginList();
+            push(END_LIST, null);
+            if(stmts != null) {
+                for(ListIterator<Statement> i = stmts.listIterator(stmts.size()); i.hasPrevious(); )
+                    push(BLOCK_STMT, i.previous());
+            }
+        } else if(n instanceof IfStmt) {
+            IfStmt i = (IfStmt)n;
+            dispatches++;
+            sink.begin(i.getElseStmt() == null ? "IfThen" : "IfThenElse");
+            push(END, null);
+            if(i.getElseStmt() != null)
+                push(STMT, i.getElseStmt());
+            push(STMT, i.getThenStmt());
+            push(NODE, i.getCondition());
+        } else {
+            n.accept(this, null);
+        }
+    }
+
+    private void expandStmt(Statement n) {
+        if(n instanceof BlockStmt) {
+            sink.begin("StmtBlock");
+            push(END, null);
+        }
+        push(NODE, n);
+    }
+
+    private void expandBlockStmt(Statement n) {
+        if(n instanceof ExpressionStmt &&
+           ((ExpressionStmt)n).getExpression() instanceof VariableDeclarationExpr) {
+            push(NODE, ((ExpressionStmt)n).getExpression());
+        } else if(n instanceof TypeDeclarationStmt) {
+            push(NODE, n);
+        } else {
+            sink.begin("BlockStmt");
+            push(END, null);
+            push(STMT, n);
+        }
     }
 
     
@@ -967,37 +1531,37 @@ public class ToDeriveReadVisitor implements VoidVisitor {
 
     public void visit(TypeParameter n, Object _) { genericVisit(n); }
 
-    public void visit(LineComment n, Object _) { fail("LineComment"); }
+    public void visit(LineComment n, Object _) { fail(n); }
 
-    public void visit(BlockComment n, Object _) { fail("BlockComment"); }
+    public void visit(BlockComment n, Object _) { fail(n); }
 
     //- Body ----------------------------------------------
 
     public void visit(ClassOrInterfaceDeclaration n, Object _) {
         if(n.isInterface()) {
-            output("(InterfaceTypeDecl ");
-            dispatchVisit(n, "_InterfaceDeclaration");
-            output(")");
+            sink.begin("InterfaceTypeDecl");
+            dispatchVisit(n, Variant.InterfaceDeclaration);
+            sink.end();
         } else {
-            output("(ClassTypeDecl ");
-            dispatchVisit(n, "_ClassDeclaration");
-            output(")");
+            sink.begin("ClassTypeDecl");
+            dispatchVisit(n, Variant.ClassDeclaration);
+            sink.end();
         }
     }
 
     public void visit(EnumDeclaration n, Object _) {
-        output("(ClassTypeDecl ");
-        dispatchVisit(n, "_EnumDeclaration");
-        output(")");
+        sink.begin("ClassTypeDecl");
+        dispatchVisit(n, Variant.EnumDeclaration);
+        sink.end();
     }
 
-    public void visit(EmptyTypeDeclaration n, Object _) { fail("EmptyTypeDeclaration"); }
+    public void visit(EmptyTypeDeclaration n, Object _) { fail(n); }
 
     public void visit(EnumConstantDeclaration n, Object _) { genericVisit(n); }
 
-    public void visit(AnnotationDeclaration n, Object _) { fail("AnnotationDeclaration"); }
+    public void visit(AnnotationDeclaration n, Object _) { fail(n); }
 
-    public void visit(AnnotationMemberDeclaration n, Object _) { fail("AnnotationDeclaration"); }
+    public void visit(AnnotationMemberDeclaration n, Object _) { fail(n); }
 
     public void visit(FieldDeclaration n, Object _) { genericVisit(n); }
 
@@ -1006,15 +1570,15 @@ public class ToDeriveReadVisitor implements VoidVisitor {
     
     public void visit(VariableDeclaratorId n, Object _) {
         for(int i = 0; i < n.getArrayCount(); i++) {
-            output("(VarDeclArray ");
+            sink.begin("VarDeclArray");
         }
 
-        output("(VarId ");
+        sink.begin("VarId");
         printIdent(n.getName());
-        output(")");
+        sink.end();
         
         for(int i = 0; i < n.getArrayCount(); i++) {
-            output(")");
+            sink.end();
         }
     }
 
@@ -1024,96 +1588,99 @@ public class ToDeriveReadVisitor implements VoidVisitor {
 
     public void visit(Parameter n, Object _) { genericVisit(n); }
 
-    public void visit(EmptyMemberDeclaration n, Object _) { fail("EmptyMemberDeclaration"); }
+    public void visit(EmptyMemberDeclaration n, Object _) { fail(n); }
 
     public void visit(InitializerDeclaration n, Object _) { genericVisit(n); }
 
-    public void visit(JavadocComment n, Object _) { fail("JavadocComment"); }
+    public void visit(JavadocComment n, Object _) { fail(n); }
 
     //- Type ----------------------------------------------
 
     public void visit(ClassOrInterfaceType n, Object _) {
-        List<ClassOrInterfaceType> qualifiers = new LinkedList<ClassOrInterfaceType>();
-        for(ClassOrInterfaceType c = n; c != null; c = c.getScope()) {
-            qualifiers.add(0, c);
-        }
-
-        output("(ClassType [");
+        sink.begin("ClassType");
+        sink.beginList();
+        printClassTypeParts(n);
+        sink.endList();
+        sink.end();
+    }
 
+    /*
+     * Prints the qualifiers of a class type outermost first, as
+     * printNameParts does, and returns the type arguments of the last one
+     * printed.
+     */
+    private List<Type> printClassTypeParts(ClassOrInterfaceType c) {
         List<Type> prevTypeArgs = null;
-        
-        String sep = "";
-        for(ClassOrInterfaceType c : qualifiers) {
-            output(sep);
-            sep = ", ";
-            output("(");
-            printIdent(c.getName());
-            output(", ");
-
-            /*
-             * javaparser misparses "A<T>.B" as "A<T>.B<T>". However,
-             * in that case, it reuses the same type argument list for both
-             * A and B. We can thus hack around this by checking for address-equality
-             * of the lists.
-             */
-            if(c.getTypeArgs() == prevTypeArgs) {
-                output("[]");
-            } else {
-                list(special(f("TypeArgs"), "printTypeArg")).printValueFor(c);
-            }
+        if(c.getScope() != null)
+            prevTypeArgs = printClassTypeParts(c.getScope());
 
-            prevTypeArgs = c.getTypeArgs();
-            
-            output(")");
+        sink.beginTuple();
+        printIdent(c.getName());
+
+        /*
+         * javaparser misparses "A<T>.B" as "A<T>.B<T>". However,
+         * in that case, it reuses the same type argument list for both
+         * A and B. We can thus hack around this by checking for address-equality
+         * of the lists.
+         */
+        if(c.getTypeArgs() == prevTypeArgs) {
+            sink.beginList();
+            sink.endList();
+        } else {
+            printTypeArgs(c.getTypeArgs());
         }
 
-        output("])");
+        sink.endTuple();
+        return c.getTypeArgs();
     }
 
     public void visit(PrimitiveType n, Object _) { genericVisit(n); }
 
     public void visit(ReferenceType n, Object _) {
         if(n.getArrayCount() == 0) {
-            output("(ClassRefType ");
+            sink.begin("ClassRefType");
             n.getType().accept(this, null);
-            output(")");
+            sink.end();
         } else {
-            String sep = "";
+            // an array type is a RefType, and its element type a Type
             for(int i = 0; i < n.getArrayCount(); i++) {
-                output(sep);
-                sep = "(RefType ";
-                output("(ArrayType ");
+                if(i > 0)
+                    sink.begin("RefType");
+                sink.begin("ArrayType");
             }
 
             printType(n.getType());
 
-            sep = "";
             for(int i = 0; i < n.getArrayCount(); i++) {
-                output(sep);
-                sep = ")";
-                output(")");
+                if(i > 0)
+                    sink.end();
+                sink.end();
             }
         }
     }
 
-    public void visit(VoidType n, Object _) { fail("VoidType"); } // Should always be handled by printVoidableType
+    public void visit(VoidType n, Object _) { fail(n); } // Should always be handled by printVoidableType
 
     public void visit(WildcardType n, Object _) {
-        output("(Wildcard ");
+        sink.begin("Wildcard");
 
         if(n.getExtends() != null) {
-            output("(Just (ExtendsBound ");
+            sink.begin("Just");
+            sink.begin("ExtendsBound");
             n.getExtends().accept(this, null);
-            output("))");
+            sink.end();
+            sink.end();
         } else if(n.getSuper() != null) {
-            output("(Just (SuperBound ");
+            sink.begin("Just");
+            sink.begin("SuperBound");
             n.getExtends().accept(this, null);
-            output("))");
+            sink.end();
+            sink.end();
         } else {
-            output("Nothing");
+            nullary("Nothing");
         }
         
-        output(")");
+        sink.end();
     }
 
     //- Expression ----------------------------------------
@@ -1122,9 +1689,9 @@ public class ToDeriveReadVisitor implements VoidVisitor {
 
     public void visit(ArrayCreationExpr n, Object _) {
         if(n.getInitializer() == null) {
-            dispatchVisit(n, "_ArrayCreate");
+            dispatchVisit(n, Variant.ArrayCreate);
         } else {
-            dispatchVisit(n, "_ArrayCreateInit");
+            dispatchVisit(n, Variant.ArrayCreateInit);
         }
     }
 
@@ -1132,7 +1699,7 @@ public class ToDeriveReadVisitor implements VoidVisitor {
 
     public void visit(AssignExpr n, Object _) { genericVisit(n); }
 
-    public void visit(BinaryExpr n, Object _) { genericVisit(n); }
+    public void visit(BinaryExpr n, Object _) { run(NODE, n); }
 
     public void visit(CastExpr n, Object _) { genericVisit(n); }
 
@@ -1140,227 +1707,255 @@ public class ToDeriveReadVisitor implements VoidVisitor {
 
     public void visit(ConditionalExpr n, Object _) { genericVisit(n); }
 
-    public void visit(EnclosedExpr n, Object _) { genericVisit(n); }
+    public void visit(EnclosedExpr n, Object _) { run(NODE, n); }
 
     public void visit(FieldAccessExpr n, Object _) {
-        output("(FieldAccess ");
+        sink.begin("FieldAccess");
         printFieldAccess(n);
-        output(")");
+        sink.end();
     }
 
     public void visit(InstanceOfExpr n, Object _) { genericVisit(n); }
 
     public void visit(StringLiteralExpr n, Object _) {
-        output("(Lit (String \"");
-        output(n.getValue());
-        output("\"))");
+        sink.begin("Lit");
+        sink.begin("String");
+        sink.string(n.getValue());
+        sink.end();
+        sink.end();
+    }
+
+    private final LiteralDecoder literals = new LiteralDecoder();
+
+    /*
+     * Begins and ends a literal of the given kind, whose value is emitted
+     * in between
+     */
+    private void beginLiteral(String kind) {
+        sink.begin("Lit");
+        sink.begin(kind);
+    }
+
+    private void endLiteral() {
+        sink.end();
+        sink.end();
+    }
+
+    /*
+     * Emits the digits of a literal that decoded to len of them
+     */
+    private void number(int len, String literal) {
+        if(len < 0)
+            throw new NumberFormatException(literal + " is not a valid number.");
+        sink.number(literals.bytes(), 0, len);
     }
 
     public void visit(IntegerLiteralExpr n, Object _) {
-        output("(Lit (Int ");
-        output(Integer.toString(parseJavaInt(n.getValue()).intValue()));
-        output("))");
+        beginLiteral("Int");
+        number(literals.decodeInt(n.getValue()), n.getValue());
+        endLiteral();
     }
 
     public void visit(LongLiteralExpr n, Object _) {
-        output("(Lit (Word ");
-        output(Long.toString(parseJavaInt(n.getValue()).longValue()));
-        output("))");
+        beginLiteral("Word");
+        number(literals.decodeLong(n.getValue()), n.getValue());
+        endLiteral();
     }
 
     public void visit(IntegerLiteralMinValueExpr n, Object _) {
-        output("(Lit (Int ");
-        output(NumberUtils.createNumber(n.getValue()).toString());
-        output("))");
+        beginLiteral("Int");
+        number(literals.decodeInt(n.getValue()), n.getValue());
+        endLiteral();
     }
 
     public void visit(LongLiteralMinValueExpr n, Object _) {
-        output("(Lit (Word ");
-        output(NumberUtils.createNumber(n.getValue()).toString());
-        output("))");
+        beginLiteral("Word");
+        number(literals.decodeLong(n.getValue()), n.getValue());
+        endLiteral();
     }
 
     public void visit(CharLiteralExpr n, Object _) {
-        output("(Lit (Char '");
-        output(n.getValue());
-        output("'))");
+        beginLiteral("Char");
+        sink.character(n.getValue());
+        endLiteral();
     }
 
     public void visit(DoubleLiteralExpr n, Object _) {
-        Number num;
+        int len = literals.decodeDouble(n.getValue());
+        String text = null;
 
-        /*
-         * createNumber still incorrectly returns floats at times,
-         * losing precision
-         */
-        try {
-            num = Double.parseDouble(n.getValue());
-        } catch(NumberFormatException e) {
-            num = NumberUtils.createNumber(n.getValue());
+        if(len < 0) {
+            // reads every floating-point literal form, hex and exponents included
+            try {
+                text = Double.toString(Double.parseDouble(n.getValue()));
+            } catch(NumberFormatException e) {
+                throw new NumberFormatException(n.getValue() + " is not a valid number.");
+            }
         }
 
-        output("(Lit ");
         if(n.getValue().endsWith("f") || n.getValue().endsWith("F")) {
-            output("(Float ");
+            beginLiteral("Float");
         } else {
-            output("(Double ");
+            beginLiteral("Double");
         }
-        output(num.toString());
-        output("))");
+        if(text == null)
+            sink.number(literals.bytes(), 0, len);
+        else
+            sink.number(text);
+        endLiteral();
     }
 
     public void visit(BooleanLiteralExpr n, Object _) { genericVisit(n); }
 
     public void visit(NullLiteralExpr n, Object _) {
-        output("(Lit Null)");
+        sink.begin("Lit");
+        nullary("Null");
+        sink.end();
     }
 
     public void visit(MethodCallExpr n, Object _) {
-        output("(MethodInv ");
+        sink.begin("MethodInv");
         /* Some confusion over the meaning of the different kinds
            of method calls in language-java */
         if(n.getScope() == null) {
-            output("(MethodCall (Name [");
+            sink.begin("MethodCall");
+            sink.begin("Name");
+            sink.beginList();
             printIdent(n.getName());
-            output("]) ");
-            list(f("Args")).printValueFor(n);
-            output(")");
+            sink.endList();
+            sink.end();
+            printNodeList(n.getArgs());
+            sink.end();
         } else if(n.getScope() instanceof SuperExpr) {
             SuperExpr s = (SuperExpr)n.getScope();
             if(s.getClassExpr() == null) {
-                output("(SuperMethodCall ");
-                list(f("TypeArgs")).printValueFor(n);
-                output(" ");
+                sink.begin("SuperMethodCall");
+                printNodeList(n.getTypeArgs());
                 printIdent(n.getName());
-                output(" ");
-                list(f("Args")).printValueFor(n);
-                output(")");
+                printNodeList(n.getArgs());
+                sink.end();
             } else {
-                output("(ClassMethodCall ");
+                sink.begin("ClassMethodCall");
                 printName(s.getClassExpr());
-                output(" ");
-                list(f("TypeArgs")).printValueFor(n);
-                output(" ");
+                printNodeList(n.getTypeArgs());
                 printIdent(n.getName());
-                output(" ");
-                list(f("Args")).printValueFor(n);
-                output(")");
+                printNodeList(n.getArgs());
+                sink.end();
             }
         } else {
-            output("(PrimaryMethodCall ");
+            sink.begin("PrimaryMethodCall");
             n.getScope().accept(this, null);
-            output(" ");
-            list(f("TypeArgs")).printValueFor(n);
-            output(" ");
+            printNodeList(n.getTypeArgs());
             printIdent(n.getName());
-            output(" ");
-            list(f("Args")).printValueFor(n);
-            output(")");
+            printNodeList(n.getArgs());
+            sink.end();
         }
 
-        output(")");
+        sink.end();
     }
 
     public void visit(NameExpr n, Object _) {
-        output("(ExpName ");
+        sink.begin("ExpName");
         printName(n);
-        output(")");
+        sink.end();
     }
 
     public void visit(ObjectCreationExpr n, Object _) {
         if(n.getScope() == null) {
-            dispatchVisit(n, "_InstanceCreation");
+            dispatchVisit(n, Variant.InstanceCreation);
         } else {
-            dispatchVisit(n, "_QualInstanceCreation");
+            dispatchVisit(n, Variant.QualInstanceCreation);
         }
     }
 
     public void visit(QualifiedNameExpr n, Object _) {
-        output("(ExpName ");
+        sink.begin("ExpName");
         printName(n);
-        output(")");
+        sink.end();
     }
 
     public void visit(ThisExpr n, Object _) {
         if(n.getClassExpr() == null) {
-            output("This");
+            nullary("This");
         } else {
-            output("(ThisClass ");
+            sink.begin("ThisClass");
             printName(n.getClassExpr());
-            output(")");
+            sink.end();
         }
     }
 
-    public void visit(SuperExpr n, Object _) { fail("SuperExpr"); }
+    public void visit(SuperExpr n, Object _) { fail(n); }
 
-    public void visit(UnaryExpr n, Object _) {
-        switch(n.getOperator()) {
-        case inverse:
-            wrap("PreBitCompl", f("Expr")).printValueFor(n);
-            break;
-        case negative:
-            wrap("PreMinus", f("Expr")).printValueFor(n);
-            break;
-        case not:
-            wrap("PreNot", f("Expr")).printValueFor(n);
-            break;
-        case posDecrement:
-            wrap("PostDecrement", f("Expr")).printValueFor(n);
-            break;
-        case posIncrement:
-            wrap("PostIncrement", f("Expr")).printValueFor(n);
-            break;
-        case positive:
-            wrap("PrePlus", f("Expr")).printValueFor(n);
-            break;
-        case preDecrement:
-            wrap("PreDecrement", f("Expr")).printValueFor(n);
-            break;
-        case preIncrement:
-            wrap("PreIncrement", f("Expr")).printValueFor(n);
-            break;
+    private static String unaryOpName(UnaryExpr.Operator o) {
+        switch(o) {
+        case inverse: return "PreBitCompl";
+        case negative: return "PreMinus";
+        case not: return "PreNot";
+        case posDecrement: return "PostDecrement";
+        case posIncrement: return "PostIncrement";
+        case positive: return "PrePlus";
+        case preDecrement: return "PreDecrement";
+        case preIncrement: return "PreIncrement";
+        default: throw new IllegalArgumentException("Unknown unary operator " + o);
         }
     }
 
+    /*
+     * The printer for each operator, indexed by ordinal
+     */
+    private static final NodeField[] UNARY_OPS;
+
+    static {
+        NodeField operand = f("Expr");
+        UnaryExpr.Operator[] ops = UnaryExpr.Operator.values();
+        UNARY_OPS = new NodeField[ops.length];
+        for(UnaryExpr.Operator o : ops)
+            UNARY_OPS[o.ordinal()] = wrap(unaryOpName(o), operand);
+    }
+
+    public void visit(UnaryExpr n, Object _) {
+        UNARY_OPS[n.getOperator().ordinal()].printValueFor(this, n);
+    }
+
     public void visit(VariableDeclarationExpr n, Object _) { genericVisit(n); }
 
 
-    public void visit(MarkerAnnotationExpr n, Object _) { fail("MarkerAnnotationExpr"); }
+    public void visit(MarkerAnnotationExpr n, Object _) { fail(n); }
 
-    public void visit(SingleMemberAnnotationExpr n, Object _) { fail("SingleMemberAnnotationExpr"); }
+    public void visit(SingleMemberAnnotationExpr n, Object _) { fail(n); }
 
-    public void visit(NormalAnnotationExpr n, Object _) { fail("NormalAnnotationExpr"); }
+    public void visit(NormalAnnotationExpr n, Object _) { fail(n); }
 
-    public void visit(MemberValuePair n, Object _) { fail("MemberValuePair"); }
+    public void visit(MemberValuePair n, Object _) { fail(n); }
 
     //- Statements ----------------------------------------
 
     public void visit(ExplicitConstructorInvocationStmt n, Object _) {
         if(n.isThis()) {
-            dispatchVisit(n, "_ThisInvoke");
+            dispatchVisit(n, Variant.ThisInvoke);
         } else {
             if(n.getExpr() == null) {
-                dispatchVisit(n, "_SuperInvoke");
+                dispatchVisit(n, Variant.SuperInvoke);
             } else {
-                dispatchVisit(n, "_PrimarySuperInvoke");
+                dispatchVisit(n, Variant.PrimarySuperInvoke);
             }
         }
     }
 
     public void visit(TypeDeclarationStmt n, Object _) {
-        output("(LocalClass ");
-        dispatchVisit(n.getTypeDeclaration(), "_ClassDeclaration");
-        output(")");
+        sink.begin("LocalClass");
+        dispatchVisit(n.getTypeDeclaration(), Variant.ClassDeclaration);
+        sink.end();
     }
 
     public void visit(AssertStmt n, Object _) { genericVisit(n); }
 
-    public void visit(BlockStmt n, Object _) { genericVisit(n); }
+    public void visit(BlockStmt n, Object _) { run(NODE, n); }
 
     public void visit(LabeledStmt n, Object _) { genericVisit(n); }
 
     public void visit(EmptyStmt n, Object _) {
-        output("Empty");
+        nullary("Empty");
     }
 
     public void visit(ExpressionStmt n, Object _) { genericVisit(n); }
@@ -1373,13 +1968,7 @@ public class ToDeriveReadVisitor implements VoidVisitor {
 
     public void visit(ReturnStmt n, Object _) { genericVisit(n); }
 
-    public void visit(IfStmt n, Object _) {
-        if(n.getElseStmt() == null) {
-            dispatchVisit(n, "_IfThen");
-        } else {
-            dispatchVisit(n, "_IfThenElse");
-        }
-    }
+    public void visit(IfStmt n, Object _) { run(NODE, n); }
 
     public void visit(WhileStmt n, Object _) { genericVisit(n); }
 
@@ -1388,17 +1977,13 @@ public class ToDeriveReadVisitor implements VoidVisitor {
     public void visit(DoStmt n, Object _) { genericVisit(n); }
 
     public void visit(ForeachStmt n, Object _) {
-        output("(EnhancedFor ");
+        sink.begin("EnhancedFor");
         printModifiers(n.getVariable().getModifiers());
-        output(" ");
         printType(n.getVariable().getType());
-        output(" ");
         printIdent(n.getVariable().getVars().get(0).getId().getName());
-        output(" ");
         n.getIterable().accept(this, null);
-        output(" ");
         printStmt(n.getBody());
-        output(")");
+        sink.end();
     }
 
     public void visit(ForStmt n, Object _) { genericVisit(n); }
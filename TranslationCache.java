@@ -0,0 +1,442 @@
+/*
+ * A content-addressed cache of translations on disk, so that translating
+ * a mostly unchanged tree again only translates what changed.
+ *
+ * An entry is keyed by the SHA-256 of the translator's fingerprint and the
+ * source bytes, and is either the output of one format (".hs", ".bin" or
+ * ".dag") or the verdict that the source does not translate (".fail").
+ * The fingerprint covers the metaInf keys and the bytecode of the classes
+ * that decide the output, javaparser's included, so a rebuilt translator
+ * that prints anything differently starts with a cache of its own; the
+ * old entries age out. Only verdicts that depend on nothing but the
+ * source are kept: parse errors and unsupported nodes, not I/O errors.
+ *
+ * Files with the same content have the same key, so a file duplicated
+ * across trees is translated once and served from one entry after that,
+ * even when the copies are translated at the same time (see claim()).
+ *
+ * Entries live in dir/xx/key.ext, where xx are the first two hex digits of
+ * the key, and are written to a temporary file and renamed into place, so
+ * that other processes sharing the directory never see half an entry.
+ * The total size is kept under a limit by evicting the least recently
+ * used entries; using an entry touches its modification time, so the
+ * order survives from one run to the next.
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import japa.parser.*;
+import japa.parser.ast.Node;
+
+public class TranslationCache {
+
+    public static final long DEFAULT_LIMIT = 512L << 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String FAILURE = ".fail";
+    private static final String[] EXTENSIONS = {".hs", ".bin", ".dag"};
+
+    /*
+     * The classes whose code decides what is printed for a given source
+     */
+    private static final Class<?>[] TRANSLATOR = {
+        JavaParser.class, Prefilter.class, ToDeriveReadVisitor.class, GeneratedDeriveReadVisitor.class,
+        LiteralDecoder.class, ByteOutput.class, TextSink.class, BinaryAstOutput.class, AstSchema.class
+    };
+
+    private static byte[] fingerprint;
+
+    private final File dir;
+    private final long limit;
+
+    /*
+     * Every entry, least recently used first, with its size
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(1024, 0.75f, true);
+    private long size = 0;
+
+    /*
+     * The keys being translated right now, and the keys stored since the
+     * cache was opened
+     */
+    private final ConcurrentHashMap<String, CountDownLatch> pending = new ConcurrentHashMap<String, CountDownLatch>();
+    private final Set<String> stored = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private int hits, misses, duplicates, evictions, unstored;
+
+    /*
+     * Opens the cache in dir, creating it if need be, and trims it to limit
+     * bytes
+     */
+    public TranslationCache(File dir, long limit) throws IOException {
+        this.dir = dir;
+        this.limit = limit;
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create cache directory " + dir);
+        load();
+        synchronized(this) {
+            evict();
+        }
+    }
+
+    private void load() {
+        List<File> files = new ArrayList<File>();
+        File[] shards = dir.listFiles();
+        if(shards != null) {
+            for(File shard : shards) {
+                File[] children = shard.isDirectory() ? shard.listFiles() : null;
+                if(children == null)
+                    continue;
+                for(File f : children) {
+                    if(f.getName().startsWith("."))
+                        f.delete(); // left over from a run that died while storing
+                    else
+                        files.add(f);
+                }
+            }
+        }
+
+        final Map<File, Long> times = new HashMap<File, Long>();
+        for(File f : files)
+            times.put(f, f.lastModified());
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(times.get(a), times.get(b));
+            }
+        });
+
+        for(File f : files) {
+            long n = f.length();
+            entries.put(f.getName(), n);
+            size += n;
+        }
+    }
+
+    //- Keys ----------------------------------------------
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static synchronized byte[] fingerprint() throws IOException {
+        if(fingerprint != null)
+            return fingerprint;
+
+        MessageDigest md = sha256();
+        for(String key : ToDeriveReadVisitor.metaInfKeys())
+            md.update((key + "\n").getBytes(UTF8));
+
+        byte[] buf = new byte[8192];
+        for(Class<?> c : TRANSLATOR) {
+            InputStream in = c.getResourceAsStream(c.getSimpleName() + ".class");
+            if(in == null)
+                throw new IOException("Cannot read the class file of " + c.getName());
+            try {
+                int n;
+                while((n = in.read(buf)) > 0)
+                    md.update(buf, 0, n);
+            } finally {
+                in.close();
+            }
+        }
+
+        fingerprint = md.digest();
+        return fingerprint;
+    }
+
+    /*
+     * The key of a source file
+     */
+    public static String key(byte[] source) throws IOException {
+        MessageDigest md = sha256();
+        md.update(fingerprint());
+        md.update(source);
+
+        StringBuilder sb = new StringBuilder(64);
+        for(byte b : md.digest())
+            sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+
+    private File file(String name) {
+        return new File(new File(dir, name.substring(0, 2)), name);
+    }
+
+    private static String outputName(String key, JavaparserToHS.Format format) {
+        return key + EXTENSIONS[format.ordinal()];
+    }
+
+    //- Lookup --------------------------------------------
+
+    /*
+     * Whether there is an entry called name, which is then the most
+     * recently used. Another process sharing the directory may have added
+     * or evicted it since the cache was opened.
+     */
+    private synchronized boolean use(String name) {
+        File f = file(name);
+        Long n = entries.get(name);
+        if(!f.exists()) {
+            if(n != null)
+                size -= entries.remove(name);
+            return false;
+        }
+
+        if(n == null) {
+            entries.put(name, f.length());
+            size += f.length();
+        }
+        f.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    private synchronized void counted(String key, boolean hit) {
+        if(!hit) {
+            misses++;
+        } else {
+            hits++;
+            if(stored.contains(key))
+                duplicates++;
+        }
+    }
+
+    /*
+     * Looks up the translation of the source with the given key into
+     * format. If there is a stored output, copies it to outfile and
+     * returns true; if there is a stored failure, throws it again; and
+     * otherwise returns false.
+     */
+    public boolean fetch(String key, JavaparserToHS.Format format, File outfile) throws IOException, ParseException {
+        String name = outputName(key, format);
+        if(use(name)) {
+            try {
+                // not Files.copy to the path, which would replace, say, /dev/stdout
+                FileOutputStream out = new FileOutputStream(outfile);
+                try {
+                    Files.copy(file(name).toPath(), out);
+                } finally {
+                    out.close();
+                }
+                counted(key, true);
+                return true;
+            } catch(NoSuchFileException e) {
+                // evicted by another process after all
+                synchronized(this) {
+                    Long n = entries.remove(name);
+                    if(n != null)
+                        size -= n;
+                }
+            }
+        }
+
+        if(use(key + FAILURE)) {
+            String[] verdict;
+            try {
+                verdict = new String(Files.readAllBytes(file(key + FAILURE).toPath()), UTF8).split("\t", 5);
+            } catch(NoSuchFileException e) {
+                counted(key, false);
+                return false;
+            }
+            counted(key, true);
+            throw failure(verdict);
+        }
+
+        counted(key, false);
+        return false;
+    }
+
+    /*
+     * Claims the translation of key for the calling thread. Returns true if
+     * it is now the caller's to translate and then release(); if another
+     * thread is translating the same content, waits for it to finish and
+     * returns false, and the caller should fetch() again.
+     */
+    public boolean claim(String key) {
+        CountDownLatch mine = new CountDownLatch(1);
+        CountDownLatch theirs = pending.putIfAbsent(key, mine);
+        if(theirs == null)
+            return true;
+
+        boolean interrupted = false;
+        while(true) {
+            try {
+                theirs.await();
+                break;
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        return false;
+    }
+
+    public void release(String key) {
+        CountDownLatch latch = pending.remove(key);
+        if(latch != null)
+            latch.countDown();
+    }
+
+    //- Storing -------------------------------------------
+
+    /*
+     * Stores content, or else the contents of from, as the entry called
+     * name. A cache that cannot be written to only costs the time it would
+     * have saved, so this does not throw; it returns whether it succeeded.
+     */
+    private boolean store(String name, byte[] content, File from) {
+        File f = file(name);
+        try {
+            f.getParentFile().mkdirs();
+            File tmp = File.createTempFile(".tmp", null, f.getParentFile());
+            try {
+                if(content != null)
+                    Files.write(tmp.toPath(), content);
+                else
+                    Files.copy(from.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmp.delete();
+            }
+        } catch(IOException e) {
+            synchronized(this) {
+                unstored++;
+            }
+            return false;
+        }
+
+        synchronized(this) {
+            Long old = entries.put(name, f.length());
+            if(old != null)
+                size -= old;
+            size += f.length();
+            evict();
+        }
+        return true;
+    }
+
+    /*
+     * Stores outfile as the translation of key into format
+     */
+    public boolean storeOutput(String key, JavaparserToHS.Format format, File outfile) {
+        if(!store(outputName(key, format), null, outfile))
+            return false;
+        stored.add(key);
+        return true;
+    }
+
+    /*
+     * Stores a failure as the verdict for key, if it is one that only
+     * depends on the source. Returns whether it was stored.
+     */
+    public boolean storeFailure(String key, Throwable t) {
+        String verdict = verdict(t);
+        if(verdict == null || !store(key + FAILURE, verdict.getBytes(UTF8), null))
+            return false;
+        stored.add(key);
+        return true;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while(size > limit && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            file(e.getKey()).delete();
+            size -= e.getValue();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    //- Verdicts ------------------------------------------
+
+    /*
+     * A failure as one line of tab-separated fields: its class, the class
+     * of the unsupported node, the line and column where it was found, and
+     * its message, which may span lines. Null for failures that do not
+     * depend on the source alone.
+     */
+    private static String verdict(Throwable t) {
+        String node = "", line = "", column = "";
+        if(t instanceof UnsupportedNodeException) {
+            UnsupportedNodeException u = (UnsupportedNodeException)t;
+            node = u.getNodeClass().getName();
+            line = String.valueOf(u.getLine());
+            column = String.valueOf(u.getColumn());
+        } else if(t instanceof ParseException) {
+            ParseException p = (ParseException)t;
+            if(p.currentToken != null && p.currentToken.next != null) {
+                line = String.valueOf(p.currentToken.next.beginLine);
+                column = String.valueOf(p.currentToken.next.beginColumn);
+            }
+        } else if(!(t instanceof TokenMgrError)) {
+            return null;
+        }
+
+        String message = t.getMessage() == null ? "" : t.getMessage();
+        return t.getClass().getName() + "\t" + node + "\t" + line + "\t" + column + "\t" + message;
+    }
+
+    /*
+     * The failure a verdict records, rebuilt well enough that
+     * BatchTranslator.record() describes it as it did the original
+     */
+    @SuppressWarnings("unchecked")
+    private static RuntimeException failure(String[] verdict) throws ParseException {
+        if(verdict.length != 5)
+            throw new IllegalStateException("Corrupt cache entry");
+
+        String cls = verdict[0];
+        if(cls.equals(UnsupportedNodeException.class.getName())) {
+            Class<? extends Node> node;
+            try {
+                node = (Class<? extends Node>)Class.forName(verdict[1]);
+            } catch(ClassNotFoundException e) {
+                throw new IllegalStateException("Corrupt cache entry: no node class " + verdict[1]);
+            }
+            return new UnsupportedNodeException(node, Integer.parseInt(verdict[2]), Integer.parseInt(verdict[3]));
+        }
+
+        if(cls.equals(ParseException.class.getName())) {
+            ParseException p = new ParseException(verdict[4]);
+            if(!verdict[2].isEmpty()) {
+                p.currentToken = new Token();
+                p.currentToken.next = new Token();
+                p.currentToken.next.beginLine = Integer.parseInt(verdict[2]);
+                p.currentToken.next.beginColumn = Integer.parseInt(verdict[3]);
+            }
+            throw p;
+        }
+
+        if(cls.equals(TokenMgrError.class.getName()))
+            throw new TokenMgrError(verdict[4], 0); // a lexical error
+
+        throw new IllegalStateException("Corrupt cache entry: unknown failure " + cls);
+    }
+
+    //- Statistics ----------------------------------------
+
+    /*
+     * Hits, misses, hits on entries stored since the cache was opened (the
+     * duplicates among the files translated), entries evicted, and
+     * outcomes that could not be stored
+     */
+    public synchronized String summary() {
+        return String.format("cache: %d hits (%d duplicates), %d misses, %d evicted, %d not stored, %d entries, %.1f MB",
+                             hits, duplicates, misses, evictions, unstored, entries.size(), size / 1e6);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Runs the translator as a coprocess: requests arrive on standard input
+ * and responses leave on standard output, framed as described in
+ * TranslationProtocol. This lets a client start one JVM and keep it for
+ * its whole run, without temp files.
+ *
+ * Usage:
+ *   java -jar javaparser-to-hs.jar --pipe [-j threads]
+ *
+ * Requests may be pipelined: standard input is read on its own thread,
+ * independently of how far the responses have got. With one thread (the
+ * default) responses come back in request order; with more they come
+ * back in the order they finish, and are matched up by their ids. At most
+ * as many requests as there are threads are held at once; past that,
+ * standard input is not read until one has been answered, so that a
+ * client writing faster than it is answered fills the pipe, not the heap.
+ * A client that writes many requests must therefore read the responses
+ * as it goes, not only once it has written them all. Responses are in
+ * UTF-8, whatever the platform's charset. The process exits once standard
+ * input is closed, or a request cannot be read, and every request has
+ * been answered.
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import japa.parser.*;
+
+public class TranslationCoprocess {
+
+    private final DataOutputStream out;
+
+    TranslationCoprocess(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    }
+
+    void respond(TranslationProtocol.Response r) {
+        synchronized(out) {
+            try {
+                TranslationProtocol.writeResponse(out, r);
+                out.flush();
+            } catch(IOException e) {
+                // the client has gone away; nobody is left to answer
+                System.err.println("cannot write response: " + BatchTranslator.describe(e));
+                System.exit(1);
+            }
+        }
+    }
+
+    void serve(InputStream input, int threads) throws IOException, InterruptedException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        final Semaphore inFlight = new Semaphore(threads);
+
+        try {
+            TranslationProtocol.Request r;
+            while(true) {
+                inFlight.acquire();
+                if((r = TranslationProtocol.readRequest(in)) == null)
+                    break;
+                final TranslationProtocol.Request req = r;
+                workers.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                respond(TranslationProtocol.handle(req));
+                            } finally {
+                                inFlight.release();
+                            }
+                        }
+                    });
+            }
+        } catch(TranslationProtocol.BadFrameException e) {
+            // nothing after it can be read; answer it, and what came before
+            respond(e.response());
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+    }
+
+    static int run(String[] args) throws IOException, InterruptedException {
+        int threads = 1;
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-j"))
+                threads = Integer.parseInt(args[++i]);
+            else
+                throw new IllegalArgumentException("Unknown pipe option " + args[i]);
+        }
+
+        // JavaParser otherwise shares one parser instance between all callers
+        JavaParser.setCacheParser(false);
+
+        new TranslationCoprocess(new FileOutputStream(FileDescriptor.out)).serve(new FileInputStream(FileDescriptor.in), threads);
+        return 0;
+    }
+}
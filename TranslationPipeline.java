@@ -0,0 +1,453 @@
+/*
+ * Translates many files in a pipeline of stages joined by bounded queues:
+ * reading, parsing, translating and writing, each with threads of its
+ * own, so that disk I/O overlaps with parsing and translating.
+ *
+ * Usage:
+ *   java -jar javaparser-to-hs.jar --pipeline [-o outdir] [-e errors] [-b | -d]
+ *                                  [-p parsers] [-t translators] [-w writers] [-q depth]
+ *                                  [-H megabytes] path...
+ *
+ * The paths, -o, -e, -b and -d are as for --batch (see BatchTranslator),
+ * and so are the lines printed and the exit status. Reads are
+ * asynchronous; there are as many parser and translator threads as half
+ * the processors, at least one each, and one writer, unless -p, -t and -w
+ * say otherwise. Each queue holds up to depth files, 8 by default. A
+ * stage whose next queue is full waits, and no read is started until
+ * there is room in the parse queue for what it reads, so that only a few
+ * files are held at each stage however many there are in all. Files are
+ * read largest first, and only while the heap they are estimated to take,
+ * output included, is within the budget of --batch (see JobScheduler and
+ * BatchTranslator), which -H sets here too.
+ *
+ * At the end, a line is printed per stage: its threads, the time they
+ * spent working, waiting for input ("starved") and waiting for room in
+ * the next queue ("blocked"), the share of its threads' time spent
+ * working, and the mean and largest number of files sampled in its input
+ * queue. For reading, the threads are the reads that may be outstanding
+ * at once, working is waiting for a read to complete, and the queue is
+ * the reads outstanding. The busiest stage is the one holding the others
+ * up.
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import japa.parser.*;
+import japa.parser.ast.CompilationUnit;
+
+public class TranslationPipeline {
+
+    public static final int DEFAULT_DEPTH = 8;
+
+    private static final long SAMPLE_MILLIS = 5;
+
+    /*
+     * A file on its way through the stages. Once something fails, the
+     * remaining stages pass it on untouched.
+     */
+    static class Item {
+        final int index, position; // in the list of jobs, and in the scheduler's order
+        final BatchTranslator.Job job;
+        final long start;
+        byte[] source;
+        CompilationUnit cu;
+        ByteOutput out;
+        Throwable failure;
+
+        Item(int index, int position, BatchTranslator.Job job) {
+            this.index = index;
+            this.position = position;
+            this.job = job;
+            this.start = System.nanoTime();
+        }
+    }
+
+    // Tells a stage's thread that nothing more is coming
+    private static final Item END = new Item(-1, -1, null);
+
+    static class Stats {
+        final String name;
+        final int threads;
+        final AtomicLong items = new AtomicLong(), busy = new AtomicLong(), starved = new AtomicLong(), blocked = new AtomicLong();
+        long depthSum = 0, depthSamples = 0;
+        int maxDepth = 0;
+
+        Stats(String name, int threads) {
+            this.name = name;
+            this.threads = threads;
+        }
+
+        void sample(int depth) {
+            depthSum += depth;
+            depthSamples++;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        double utilization(long nanos) {
+            return (double)busy.get() / ((double)threads * nanos);
+        }
+
+        String report(long nanos) {
+            return String.format("%-10s %7d %7d %8.2f %9.2f %9.2f %5.0f%% %7.1f %4d",
+                                 name, threads, items.get(), busy.get() / 1e9, starved.get() / 1e9, blocked.get() / 1e9,
+                                 100 * utilization(nanos), depthSamples == 0 ? 0.0 : (double)depthSum / depthSamples, maxDepth);
+        }
+    }
+
+    /*
+     * A stage run by threads of its own, taking files from its queue and
+     * putting them on the next stage's, if there is a next stage
+     */
+    abstract class Stage {
+        final Stats stats;
+        final BlockingQueue<Item> in;
+        final Stage next; // null for the last
+        private final AtomicInteger running;
+
+        Stage(String name, int threads, Stage next) {
+            this.stats = new Stats(name, threads);
+            this.in = new ArrayBlockingQueue<Item>(depth);
+            this.next = next;
+            this.running = new AtomicInteger(threads);
+        }
+
+        abstract void process(Item item) throws Exception;
+
+        /*
+         * Called as each file is taken from in
+         */
+        void taken() {
+        }
+
+        void start() {
+            for(int i = 0; i < stats.threads; i++) {
+                Thread t = new Thread(stats.name) {
+                    public void run() {
+                        work();
+                    }
+                };
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+
+        private void work() {
+            try {
+                while(true) {
+                    long t0 = System.nanoTime();
+                    Item item = in.take();
+                    long t1 = System.nanoTime();
+                    stats.starved.addAndGet(t1 - t0);
+                    if(item == END)
+                        break;
+                    taken();
+
+                    if(item.failure == null) {
+                        // anything, down to running out of memory, fails the
+                        // file; a thread that died would leave run() waiting
+                        try {
+                            process(item);
+                        } catch(Throwable e) {
+                            item.failure = e;
+                        }
+                        stats.items.incrementAndGet();
+                    }
+                    long t2 = System.nanoTime();
+                    stats.busy.addAndGet(t2 - t1);
+
+                    if(next == null) {
+                        finished(item);
+                    } else {
+                        next.in.put(item);
+                        stats.blocked.addAndGet(System.nanoTime() - t2);
+                    }
+                }
+
+                if(running.decrementAndGet() == 0) {
+                    if(next == null)
+                        done.countDown();
+                    else
+                        next.end();
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /*
+         * Puts one END on the queue for each thread
+         */
+        void end() throws InterruptedException {
+            for(int i = 0; i < stats.threads; i++)
+                in.put(END);
+        }
+    }
+
+    private final List<BatchTranslator.Job> jobs;
+    private final JavaparserToHS.Format format;
+    private final int depth;
+    private final boolean verbose;
+    private final BatchTranslator.Result[] results;
+    private final JobScheduler scheduler;
+
+    private final Stats read;
+    private final Stage parse, translate, write;
+
+    /*
+     * Room in the parse queue not yet taken by a read, started or done
+     */
+    private final Semaphore readSlots;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    TranslationPipeline(List<BatchTranslator.Job> jobs, JavaparserToHS.Format format,
+                        int parsers, int translators, int writers, int depth, long budget, boolean verbose) {
+        this.jobs = jobs;
+        this.format = format;
+        this.depth = depth;
+        this.verbose = verbose;
+        this.results = new BatchTranslator.Result[jobs.size()];
+        this.scheduler = new JobScheduler(jobs, JobScheduler.heapPerByte(format, true), budget);
+
+        read = new Stats("read", depth);
+        readSlots = new Semaphore(depth);
+
+        write = new Stage("write", writers, null) {
+            void process(Item item) throws IOException {
+                File dir = item.job.out.getAbsoluteFile().getParentFile();
+                if(dir != null)
+                    dir.mkdirs();
+                FileOutputStream out = new FileOutputStream(item.job.out);
+                try {
+                    item.out.writeTo(out);
+                } finally {
+                    out.close();
+                }
+                item.out = null;
+            }
+        };
+
+        translate = new Stage("translate", translators, write) {
+            void process(Item item) {
+                ByteOutput buf = new ByteOutput();
+                JavaparserToHS.translate(item.cu, TranslationPipeline.this.format.sink(buf));
+                item.cu = null;
+                item.out = buf;
+            }
+        };
+
+        parse = new Stage("parse", parsers, translate) {
+            void process(Item item) throws ParseException {
+                item.cu = Prefilter.parse(item.source);
+                item.source = null;
+            }
+
+            void taken() {
+                readSlots.release();
+            }
+        };
+    }
+
+    private void finished(Item item) {
+        BatchTranslator.Result r = new BatchTranslator.Result(item.job, item.failure, System.nanoTime() - item.start);
+        results[item.index] = r;
+        scheduler.release(item.position);
+        if(verbose)
+            BatchTranslator.report(r);
+    }
+
+    //- Reading -------------------------------------------
+
+    /*
+     * Reads the file of item, then puts it on the parse queue, where a
+     * slot has been kept for it
+     */
+    private void read(final Item item) {
+        final long start = System.nanoTime();
+        AsynchronousFileChannel opened = null;
+        final ByteBuffer buf;
+        try {
+            opened = AsynchronousFileChannel.open(item.job.in.toPath(), StandardOpenOption.READ);
+            long size = opened.size();
+            if(size > Integer.MAX_VALUE)
+                throw new IOException(item.job.in + " is too large to read");
+            buf = ByteBuffer.allocate((int)size);
+        } catch(Throwable e) {
+            if(opened != null) {
+                try {
+                    opened.close();
+                } catch(IOException closing) {
+                    // failed already
+                }
+            }
+            item.failure = e;
+            parse.in.add(item);
+            return;
+        }
+        final AsynchronousFileChannel channel = opened;
+
+        CompletionHandler<Integer, Void> handler = new CompletionHandler<Integer, Void>() {
+            public void completed(Integer n, Void attachment) {
+                if(n >= 0 && buf.hasRemaining()) {
+                    channel.read(buf, buf.position(), null, this);
+                    return;
+                }
+                item.source = buf.array();
+                finish(null);
+            }
+
+            public void failed(Throwable e, Void attachment) {
+                finish(e);
+            }
+
+            private void finish(Throwable e) {
+                try {
+                    channel.close();
+                } catch(IOException closing) {
+                    // the file was read, or has failed already
+                }
+                if(e != null)
+                    item.failure = e;
+                read.items.incrementAndGet();
+                read.busy.addAndGet(System.nanoTime() - start);
+                parse.in.add(item);
+            }
+        };
+
+        if(buf.hasRemaining())
+            channel.read(buf, 0, null, handler);
+        else
+            handler.completed(0, null);
+    }
+
+    //- Running -------------------------------------------
+
+    /*
+     * Samples the queues until the pipeline is done
+     */
+    private void sample() throws InterruptedException {
+        while(!done.await(SAMPLE_MILLIS, TimeUnit.MILLISECONDS)) {
+            int queued = parse.in.size();
+            read.sample(Math.max(0, depth - readSlots.availablePermits() - queued));
+            parse.stats.sample(queued);
+            translate.stats.sample(translate.in.size());
+            write.stats.sample(write.in.size());
+        }
+    }
+
+    BatchTranslator.Result[] run() throws InterruptedException {
+        write.start();
+        translate.start();
+        parse.start();
+
+        Thread reader = new Thread("read") {
+            public void run() {
+                try {
+                    for(int position = 0; position < scheduler.size(); position++) {
+                        long t0 = System.nanoTime();
+                        scheduler.admit(position);
+                        readSlots.acquire();
+                        read.blocked.addAndGet(System.nanoTime() - t0);
+                        int i = scheduler.job(position);
+                        read(new Item(i, position, jobs.get(i)));
+                    }
+                    // every read has put its file in the queue once all slots are back
+                    readSlots.acquire(depth);
+                    readSlots.release(depth);
+                    parse.end();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+
+        sample();
+        return results;
+    }
+
+    void report(long nanos) {
+        System.out.println(String.format("%-10s %7s %7s %8s %9s %9s %6s %7s %4s",
+                                         "stage", "threads", "files", "busy s", "starved s", "blocked s", "util", "queue", "max"));
+        Stats[] all = {read, parse.stats, translate.stats, write.stats};
+        Stats busiest = null;
+        for(Stats s : all) {
+            System.out.println(s.report(nanos));
+            if(s != read && (busiest == null || s.utilization(nanos) > busiest.utilization(nanos)))
+                busiest = s;
+        }
+        System.out.println(String.format("busiest stage: %s, %.0f%% of its threads' time", busiest.name, 100 * busiest.utilization(nanos)));
+    }
+
+    static int run(String[] args) throws IOException, InterruptedException {
+        File outRoot = null;
+        File errors = null;
+        JavaparserToHS.Format format = JavaparserToHS.Format.TEXT;
+        int half = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        int parsers = half, translators = half, writers = 1;
+        int depth = DEFAULT_DEPTH;
+        long budget = JobScheduler.defaultBudget();
+        List<String> paths = new ArrayList<String>();
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-o")) {
+                outRoot = new File(args[++i]);
+            } else if(args[i].equals("-e")) {
+                errors = new File(args[++i]);
+            } else if(args[i].equals("-b")) {
+                format = JavaparserToHS.Format.BINARY;
+            } else if(args[i].equals("-d")) {
+                format = JavaparserToHS.Format.DAG;
+            } else if(args[i].equals("-p")) {
+                parsers = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("-t")) {
+                translators = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("-w")) {
+                writers = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("-q")) {
+                depth = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("-H")) {
+                budget = Long.parseLong(args[++i]) << 20;
+            } else {
+                paths.add(args[i]);
+            }
+        }
+
+        BatchTranslator batch = new BatchTranslator(outRoot, format);
+        for(String p : paths)
+            batch.addPath(p);
+
+        // JavaParser otherwise shares one parser instance between all callers
+        JavaParser.setCacheParser(false);
+
+        long start = System.nanoTime();
+        TranslationPipeline pipeline = new TranslationPipeline(batch.jobs(), format, parsers, translators, writers, depth, budget, true);
+        BatchTranslator.Result[] results = pipeline.run();
+        long nanos = System.nanoTime() - start;
+
+        BatchTranslator.summarize(results, nanos);
+        pipeline.report(nanos);
+        if(errors != null)
+            BatchTranslator.writeRecords(results, errors);
+
+        for(BatchTranslator.Result r : results) {
+            if(!r.succeeded())
+                return 1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * The request/response framing used when the translator runs as a
+ * long-lived process, and the translation of a single request.
+ *
+ * A request is
+ *   int32 id, byte kind, int32 length, length bytes
+ * where kind is PATH (the bytes are a UTF-8 path to a source file) or
+ * SOURCE (the bytes are the source itself). A response is
+ *   int32 id, byte status, int32 length, length bytes
+ * where status is OK, and the bytes are the translated AST, as text in
+ * UTF-8 whatever the platform's charset, or one of the error statuses,
+ * and the bytes are a UTF-8 message. Integers are
+ * big-endian. The id of a response is that of its request.
+ *
+ * No frame is longer than MAX_FRAME bytes. A request whose length is
+ * negative or longer is answered with ERROR, and nothing more is read
+ * from where it came from, since where the next request starts is lost;
+ * a translation that would be longer is answered with ERROR as well.
+ *
+ * Where a request comes from a process other than the one that started
+ * the translator, as with TranslationServer, PATH requests are only
+ * served for files under the roots given to handle().
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import japa.parser.*;
+
+public class TranslationProtocol {
+
+    public static final byte PATH = 'P';
+    public static final byte SOURCE = 'S';
+
+    public static final byte OK = 0;
+    public static final byte PARSE_ERROR = 1;
+    public static final byte UNSUPPORTED = 2;
+    public static final byte ERROR = 3;
+
+    public static final int MAX_FRAME = 256 << 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /*
+     * A request whose length is out of bounds; it has not been read past
+     * its length
+     */
+    public static class BadFrameException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final int id;
+
+        BadFrameException(int id, String message) {
+            super(message);
+            this.id = id;
+        }
+
+        public Response response() {
+            return new Response(id, ERROR, getMessage());
+        }
+    }
+
+    public static class Request {
+        public final int id;
+        public final byte kind;
+        public final byte[] payload;
+
+        public Request(int id, byte kind, byte[] payload) {
+            this.id = id;
+            this.kind = kind;
+            this.payload = payload;
+        }
+    }
+
+    public static class Response {
+        public final int id;
+        public final byte status;
+        public final byte[] payload;
+
+        public Response(int id, byte status, byte[] payload) {
+            this.id = id;
+            this.status = status;
+            this.payload = payload;
+        }
+
+        Response(int id, byte status, String message) {
+            this(id, status, message.getBytes(UTF8));
+        }
+    }
+
+    /*
+     * Returns null if the stream ends cleanly before a new request.
+     */
+    public static Request readRequest(DataInputStream in) throws IOException {
+        int id;
+        try {
+            id = in.readInt();
+        } catch(EOFException e) {
+            return null;
+        }
+
+        byte kind = in.readByte();
+        int length = in.readInt();
+        if(length < 0 || length > MAX_FRAME)
+            throw new BadFrameException(id, "request of " + length + " bytes, where at most " + MAX_FRAME + " are allowed");
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Request(id, kind, payload);
+    }
+
+    public static void writeRequest(DataOutputStream out, Request r) throws IOException {
+        out.writeInt(r.id);
+        out.writeByte(r.kind);
+        out.writeInt(r.payload.length);
+        out.write(r.payload);
+    }
+
+    public static Response readResponse(DataInputStream in) throws IOException {
+        int id;
+        try {
+            id = in.readInt();
+        } catch(EOFException e) {
+            return null;
+        }
+
+        byte status = in.readByte();
+        int length = in.readInt();
+        if(length < 0 || length > MAX_FRAME)
+            throw new IOException("response of " + length + " bytes, where at most " + MAX_FRAME + " are allowed");
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Response(id, status, payload);
+    }
+
+    public static void writeResponse(DataOutputStream out, Response r) throws IOException {
+        out.writeInt(r.id);
+        out.writeByte(r.status);
+        out.writeInt(r.payload.length);
+        out.write(r.payload);
+    }
+
+    /*
+     * Serves a request from the process that started the translator, which
+     * may read any file it names
+     */
+    public static Response handle(Request r) {
+        return handle(r, null);
+    }
+
+    /*
+     * Whether file is under one of roots; both are canonical
+     */
+    private static boolean isUnder(File file, List<File> roots) {
+        String path = file.getPath();
+        for(File root : roots) {
+            String prefix = root.getPath().endsWith(File.separator) ? root.getPath() : root.getPath() + File.separator;
+            if(path.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * Serves a request, reading for PATH requests only files under roots,
+     * canonical directories, if roots is not null
+     */
+    public static Response handle(Request r, List<File> roots) {
+        InputStream in;
+        try {
+            if(r.kind == PATH) {
+                // the file opened is the one checked, links and all resolved
+                File file = new File(new String(r.payload, UTF8)).getCanonicalFile();
+                if(roots != null && !isUnder(file, roots))
+                    return new Response(r.id, ERROR, "not under a directory this translator serves: " + file);
+                in = new FileInputStream(file);
+            } else if(r.kind == SOURCE) {
+                in = new ByteArrayInputStream(r.payload);
+            } else {
+                return new Response(r.id, ERROR, "unknown request kind " + r.kind);
+            }
+        } catch(IOException e) {
+            return new Response(r.id, ERROR, BatchTranslator.describe(e));
+        }
+
+        ByteOutput out = new ByteOutput(UTF8);
+        try {
+            JavaparserToHS.translate(in, out);
+            if(out.size() > MAX_FRAME)
+                return new Response(r.id, ERROR, "translation of " + out.size() + " bytes, where at most " + MAX_FRAME + " are allowed");
+            return new Response(r.id, OK, out.toByteArray());
+        } catch(ParseException e) {
+            return new Response(r.id, PARSE_ERROR, BatchTranslator.describe(e));
+        } catch(TokenMgrError e) {
+            return new Response(r.id, PARSE_ERROR, BatchTranslator.describe(e));
+        } catch(UnsupportedOperationException e) {
+            return new Response(r.id, UNSUPPORTED, BatchTranslator.describe(e));
+        } catch(Throwable e) {
+            // anything else, down to running out of memory, fails the request alone
+            return new Response(r.id, ERROR, BatchTranslator.describe(e));
+        } finally {
+            try {
+                in.close();
+            } catch(IOException e) {
+                // nothing left to report it to
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Runs the translator as a long-lived local server, so that clients pay
+ * for JVM start-up and JIT warm-up once rather than per file.
+ *
+ * Usage:
+ *   java -jar javaparser-to-hs.jar --server [-p port] [-w dir] [-r dir]...
+ *
+ * The server listens on the loopback interface only; port 0 (the default)
+ * picks a free port, which is printed on standard error. Requests and
+ * responses are framed as described in TranslationProtocol. Every
+ * connection is served by its own thread, and may send any number of
+ * requests. With -w, a sample of the .java files under dir is translated
+ * before the server starts listening, so that the first requests already
+ * run compiled code.
+ *
+ * Any local user can connect, so PATH requests are only served for files
+ * under the directories given with -r, and refused without one; SOURCE
+ * requests are always served. A request that fails to translate, for
+ * whatever reason, is answered with its error, and the connection goes
+ * on; one that cannot be read ends the connection.
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import japa.parser.*;
+
+public class TranslationServer {
+
+    private static final int WARMUP_FILES = 200;
+
+    /*
+     * Translates up to WARMUP_FILES files spread evenly over the corpus,
+     * discarding the results.
+     */
+    static void warmUp(File dir) throws IOException {
+        BatchTranslator batch = new BatchTranslator(null);
+        batch.addPath(dir.getPath());
+        List<BatchTranslator.Job> jobs = batch.jobs();
+        if(jobs.isEmpty())
+            return;
+
+        int step = Math.max(1, jobs.size() / WARMUP_FILES);
+        long start = System.nanoTime();
+        int n = 0;
+        ByteOutput out = new ByteOutput();
+        for(int i = 0; i < jobs.size(); i += step) {
+            InputStream in = new FileInputStream(jobs.get(i).in);
+            try {
+                JavaparserToHS.translate(in, out);
+            } catch(Exception e) {
+                // failures warm up the same code
+            } finally {
+                in.close();
+                out.reset();
+            }
+            n++;
+        }
+        System.err.println(String.format("warmed up on %d files in %.2f s", n, (System.nanoTime() - start) / 1e9));
+    }
+
+    /*
+     * Serves the requests on s, reading files only under roots
+     */
+    static void serve(Socket s, List<File> roots) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+            try {
+                TranslationProtocol.Request r;
+                while((r = TranslationProtocol.readRequest(in)) != null) {
+                    TranslationProtocol.writeResponse(out, TranslationProtocol.handle(r, roots));
+                    out.flush();
+                }
+            } catch(TranslationProtocol.BadFrameException e) {
+                TranslationProtocol.writeResponse(out, e.response());
+                out.flush();
+                System.err.println("connection dropped: " + BatchTranslator.describe(e));
+            }
+        } catch(IOException e) {
+            System.err.println("connection dropped: " + BatchTranslator.describe(e));
+        } catch(Throwable e) {
+            // as running out of memory for a request; the server goes on
+            System.err.println("connection dropped: " + BatchTranslator.describe(e));
+        } finally {
+            try {
+                s.close();
+            } catch(IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    static void run(String[] args) throws IOException {
+        int port = 0;
+        File warmup = null;
+        final List<File> roots = new ArrayList<File>();
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-p")) {
+                port = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("-w")) {
+                warmup = new File(args[++i]);
+            } else if(args[i].equals("-r")) {
+                File root = new File(args[++i]).getCanonicalFile();
+                if(!root.isDirectory())
+                    throw new IllegalArgumentException("Not a directory: " + root);
+                roots.add(root);
+            } else {
+                throw new IllegalArgumentException("Unknown server option " + args[i]);
+            }
+        }
+
+        // JavaParser otherwise shares one parser instance between all callers
+        JavaParser.setCacheParser(false);
+
+        if(warmup != null)
+            warmUp(warmup);
+
+        ExecutorService connections = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "javaparser-to-hs connection");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        System.err.println("listening on " + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort());
+
+        try {
+            while(true) {
+                final Socket s = server.accept();
+                connections.execute(new Runnable() {
+                        public void run() {
+                            serve(s, roots);
+                        }
+                    });
+            }
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Sorts files by what the translator makes of them, parsing each once:
+ *
+ *   translated    the output was written
+ *   parse         javaparser rejects the file
+ *   unsupported   it uses a construct the translator does not handle
+ *   error         the translator failed in some other way
+ *
+ * Checking a file with CheckParses and then translating it parses it
+ * twice, in two JVMs; here the parse that decides whether a file parses
+ * is the one that is then translated.
+ *
+ * Usage:
+ *   java -jar javaparser-to-hs.jar --triage [-o outdir] [-j threads] [-t table] [-x kinds] [-b | -d] path...
+ *
+ * The paths, outputs and options are as for --batch, and the files are
+ * translated in parallel the same way. At the end, a table is printed
+ * with the number and share of files of each kind, and of unsupported
+ * files by the node that stopped them. With -t, a line for every file is
+ * written to table, as BatchTranslator.record() describes, in the order
+ * the files were found.
+ *
+ * The exit status is 1 if any file was not translated; with -x, it is
+ * 1 if any file is not of one of the given kinds, a comma-separated
+ * list, so that, say, "-x unsupported,error" picks out files that parse
+ * but do not translate.
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.util.*;
+
+import japa.parser.*;
+
+public class Triage {
+
+    static final String[] KINDS = {"translated", "parse", "unsupported", "error"};
+
+    static void summarize(BatchTranslator.Result[] results, long nanos) {
+        Map<String, Integer> kinds = new HashMap<String, Integer>();
+        Map<String, Integer> nodes = new TreeMap<String, Integer>();
+        for(BatchTranslator.Result r : results) {
+            String kind = BatchTranslator.kind(r.failure);
+            kinds.put(kind, count(kinds, kind) + 1);
+
+            if(r.failure instanceof UnsupportedNodeException) {
+                String node = ((UnsupportedNodeException)r.failure).getNodeClass().getSimpleName();
+                nodes.put(node, count(nodes, node) + 1);
+            }
+        }
+
+        System.out.println(String.format("%-28s %7s %7s", "kind", "files", "share"));
+        for(String kind : KINDS) {
+            int n = count(kinds, kind);
+            System.out.println(String.format("%-28s %7d %6.1f%%", kind, n, share(n, results.length)));
+
+            if(kind.equals("unsupported")) {
+                for(Map.Entry<String, Integer> e : nodes.entrySet())
+                    System.out.println(String.format("  %-26s %7d %6.1f%%", e.getKey(), e.getValue(), share(e.getValue(), results.length)));
+            }
+        }
+        System.out.println(String.format("%d files in %.2f s", results.length, nanos / 1e9));
+    }
+
+    private static int count(Map<String, Integer> m, String k) {
+        Integer n = m.get(k);
+        return n == null ? 0 : n;
+    }
+
+    private static double share(int n, int total) {
+        return total == 0 ? 0 : n * 100.0 / total;
+    }
+
+    static void writeTable(BatchTranslator.Result[] results, File f) throws IOException {
+        PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(f)));
+        try {
+            for(BatchTranslator.Result r : results)
+                w.println(BatchTranslator.record(r));
+        } finally {
+            w.close();
+        }
+    }
+
+    static int run(String[] args) throws IOException {
+        File outRoot = null;
+        File table = null;
+        Set<String> expected = null;
+        JavaparserToHS.Format format = JavaparserToHS.Format.TEXT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> paths = new ArrayList<String>();
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-o")) {
+                outRoot = new File(args[++i]);
+            } else if(args[i].equals("-t")) {
+                table = new File(args[++i]);
+            } else if(args[i].equals("-x")) {
+                expected = new HashSet<String>(Arrays.asList(args[++i].split(",")));
+                for(String k : expected) {
+                    if(!Arrays.asList(KINDS).contains(k))
+                        throw new IllegalArgumentException("Unknown kind " + k + "; expected one of " + Arrays.toString(KINDS));
+                }
+            } else if(args[i].equals("-b")) {
+                format = JavaparserToHS.Format.BINARY;
+            } else if(args[i].equals("-d")) {
+                format = JavaparserToHS.Format.DAG;
+            } else if(args[i].equals("-j")) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                paths.add(args[i]);
+            }
+        }
+
+        BatchTranslator batch = new BatchTranslator(outRoot, format);
+        for(String p : paths)
+            batch.addPath(p);
+
+        // JavaParser otherwise shares one parser instance between all callers
+        JavaParser.setCacheParser(false);
+
+        long start = System.nanoTime();
+        BatchTranslator.Result[] results = BatchTranslator.translateAll(batch.jobs(), threads, false);
+        summarize(results, System.nanoTime() - start);
+        if(table != null)
+            writeTable(results, table);
+
+        if(expected == null)
+            expected = Collections.singleton("translated");
+        for(BatchTranslator.Result r : results) {
+            if(!expected.contains(BatchTranslator.kind(r.failure)))
+                return 1;
+        }
+        return 0;
+    }
+}
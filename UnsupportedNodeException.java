@@ -0,0 +1,54 @@
+/*
+ * Thrown when the translator meets a node that has no counterpart in the
+ * language-java AST, such as an annotation, a comment or an empty
+ * declaration. Carries the node's class and where it starts in the
+ * source, so that callers translating many files can record the failure
+ * and go on with the next file.
+ *
+ * It is an UnsupportedOperationException so that one catch covers it and
+ * the plain UnsupportedOperationExceptions ToDeriveReadVisitor still
+ * throws, where a wrapper of several fields is asked for a single value:
+ * the entry points (JavaparserToHS, BatchTranslator, TranslationProtocol,
+ * TeeSink, Reducer) report either as unsupported.
+ *
+ * @author James Koppel
+ */
+
+import japa.parser.ast.Node;
+
+public class UnsupportedNodeException extends UnsupportedOperationException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Class<? extends Node> nodeClass;
+    private final int line;
+    private final int column;
+
+    public UnsupportedNodeException(Node n) {
+        this(n.getClass(), n.getBeginLine(), n.getBeginColumn());
+    }
+
+    /*
+     * For a node known to be in the source at the given position without
+     * having been parsed, as Prefilter finds some
+     */
+    public UnsupportedNodeException(Class<? extends Node> nodeClass, int line, int column) {
+        super("javaparser-to-hs failed because unsupported node " + nodeClass.getSimpleName()
+              + " encountered at line " + line + ", column " + column + ".");
+        this.nodeClass = nodeClass;
+        this.line = line;
+        this.column = column;
+    }
+
+    public Class<? extends Node> getNodeClass() {
+        return nodeClass;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Compiles the metaInf table of ToDeriveReadVisitor into plain Java.
+ *
+ * Each metaInf entry becomes a method of GeneratedDeriveReadVisitor
+ * with direct getter calls and the events it emits spelled out, so the
+ * generated visitor does no reflection and no table lookups for the
+ * sorts described by metaInf. Everything else is inherited from
+ * ToDeriveReadVisitor.
+ *
+ * Usage:
+ *   java VisitorGenerator GeneratedDeriveReadVisitor.java
+ *       write the generated visitor
+ *   java VisitorGenerator --conformance <dir>
+ *       translate every .java file under dir with both the interpreter
+ *       and the generated visitor, and report any output that differs
+ *
+ * @author James Koppel
+ */
+
+import java.io.*;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.*;
+
+import japa.parser.*;
+import japa.parser.ast.*;
+
+public class VisitorGenerator {
+
+    static final String GENERATED_CLASS = "GeneratedDeriveReadVisitor";
+
+    /*
+     * A method body under construction
+     */
+    static class Code {
+        private StringBuilder buf = new StringBuilder();
+        private int indent = 2;
+        private int nextVar = 0;
+
+        /*
+         * The events on the visitor's sink; see AstSink
+         */
+        void begin(String constructor) {
+            line("sink.begin(" + literal(constructor) + ");");
+        }
+
+        void end() {
+            line("sink.end();");
+        }
+
+        void nullary(String constructor) {
+            line("nullary(" + literal(constructor) + ");");
+        }
+
+        void beginList() {
+            line("sink.beginList();");
+        }
+
+        void endList() {
+            line("sink.endList();");
+        }
+
+        private void line(String s) {
+            for(int i = 0; i < indent; i++)
+                buf.append("    ");
+            buf.append(s).append('\n');
+        }
+
+        void stmt(String s) {
+            line(s);
+        }
+
+        void open(String header) {
+            line(header + " {");
+            indent++;
+        }
+
+        void orElse() {
+            indent--;
+            line("} else {");
+            indent++;
+        }
+
+        void close() {
+            indent--;
+            line("}");
+        }
+
+        String fresh(String prefix) {
+            return prefix + (nextVar++);
+        }
+
+        String local(Type t, String expr) {
+            String v = fresh("v");
+            stmt(typeName(t) + " " + v + " = " + expr + ";");
+            return v;
+        }
+
+        String finish() {
+            return buf.toString();
+        }
+    }
+
+    static Class<?> rawClass(Type t) {
+        if(t instanceof Class)
+            return (Class<?>)t;
+        if(t instanceof ParameterizedType)
+            return rawClass(((ParameterizedType)t).getRawType());
+        if(t instanceof GenericArrayType)
+            return java.lang.reflect.Array.newInstance(rawClass(((GenericArrayType)t).getGenericComponentType()), 0).getClass();
+        return Object.class;
+    }
+
+    static Type elementType(Type listType) {
+        if(listType instanceof ParameterizedType) {
+            Type arg = ((ParameterizedType)listType).getActualTypeArguments()[0];
+            if(arg instanceof WildcardType)
+                return ((WildcardType)arg).getUpperBounds()[0];
+            return arg;
+        }
+        return Object.class;
+    }
+
+    static String typeName(Type t) {
+        if(t instanceof Class)
+            return ((Class<?>)t).getCanonicalName();
+
+        if(t instanceof ParameterizedType) {
+            StringBuilder sb = new StringBuilder(typeName(((ParameterizedType)t).getRawType()));
+            sb.append('<');
+            String sep = "";
+            for(Type arg : ((ParameterizedType)t).getActualTypeArguments()) {
+                sb.append(sep);
+                sep = ", ";
+                sb.append(typeName(arg instanceof WildcardType ? elementType(t) : arg));
+            }
+            sb.append('>');
+            return sb.toString();
+        }
+
+        return typeName(rawClass(t));
+    }
+
+    static String literal(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for(char ch : s.toCharArray()) {
+            switch(ch) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            default:
+                sb.append(ch);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    static String methodName(String key) {
+        return "emit" + key;
+    }
+
+    static String generate() throws Exception {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("/*\n");
+        sb.append(" * Generated by VisitorGenerator from the metaInf table of ToDeriveReadVisitor.\n");
+        sb.append(" * Do not edit; rerun build.sh instead.\n");
+        sb.append(" */\n\n");
+        sb.append("public class " + GENERATED_CLASS + " extends ToDeriveReadVisitor {\n\n");
+        sb.append("    public " + GENERATED_CLASS + "(AstSink sink) {\n");
+        sb.append("        super(sink);\n");
+        sb.append("    }\n\n");
+        sb.append("    public " + GENERATED_CLASS + "(ByteOutput out) {\n");
+        sb.append("        super(out);\n");
+        sb.append("    }\n\n");
+
+        List<String> variants = new ArrayList<String>();
+        for(String key : ToDeriveReadVisitor.metaInfKeys()) {
+            if(key.startsWith("_")) {
+                variants.add(key);
+            } else {
+                String cls = ToDeriveReadVisitor.nodeClassFor(key).getCanonicalName();
+                ToDeriveReadVisitor.class.getMethod("visit", ToDeriveReadVisitor.nodeClassFor(key), Object.class);
+
+                sb.append("    public void visit(" + cls + " n, Object arg) {\n");
+                sb.append("        " + methodName(key) + "(n);\n");
+                sb.append("    }\n\n");
+            }
+        }
+
+        sb.append("    protected void dispatchVisit(Object n, Variant v) {\n");
+        sb.append("        switch(v) {\n");
+        for(String key : variants) {
+            sb.append("        case " + key.substring(1) + ":\n");
+            sb.append("            " + methodName(key) + "((" + ToDeriveReadVisitor.nodeClassFor(key).getCanonicalName() + ")n);\n");
+            sb.append("            break;\n");
+        }
+        sb.append("        default:\n");
+        sb.append("            super.dispatchVisit(n, v);\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+
+        for(String key : ToDeriveReadVisitor.metaInfKeys()) {
+            Code c = new Code();
+            c.stmt("dispatches++;");
+            ToDeriveReadVisitor.compileEntry(key, c, "n");
+
+            sb.append("\n");
+            sb.append("    private void " + methodName(key) + "(" + ToDeriveReadVisitor.nodeClassFor(key).getCanonicalName() + " n) {\n");
+            sb.append(c.finish());
+            sb.append("    }\n");
+        }
+
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static String translate(File f, ToDeriveReadVisitor v, ByteOutput out) throws Exception {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            CompilationUnit cu = JavaParser.parse(in);
+            cu.accept(v, null);
+        } catch(Exception e) {
+            return "exception " + rootCause(e);
+        } finally {
+            in.close();
+        }
+        return new String(out.toByteArray(), "ISO-8859-1");
+    }
+
+    /*
+     * The interpreter reports errors from special printers wrapped in
+     * reflection exceptions, which the generated visitor does not.
+     */
+    private static Throwable rootCause(Throwable t) {
+        if(t instanceof ExceptionConverter)
+            return rootCause(((ExceptionConverter)t).getException());
+        if(t instanceof java.lang.reflect.InvocationTargetException)
+            return rootCause(t.getCause());
+        return t;
+    }
+
+    static void collect(File f, List<File> files) {
+        if(f.isDirectory()) {
+            File[] children = f.listFiles();
+            Arrays.sort(children);
+            for(File child : children)
+                collect(child, files);
+        } else if(f.getName().endsWith(".java")) {
+            files.add(f);
+        }
+    }
+
+    /*
+     * The generated class is loaded reflectively, since it does not exist
+     * yet when this class is first compiled.
+     */
+    static int conformance(File dir) throws Exception {
+        java.lang.reflect.Constructor<?> generated =
+            Class.forName(GENERATED_CLASS).getConstructor(ByteOutput.class);
+
+        List<File> files = new ArrayList<File>();
+        collect(dir, files);
+
+        int mismatches = 0;
+        for(File f : files) {
+            ByteOutput expected = new ByteOutput();
+            String interpreted = translate(f, new ToDeriveReadVisitor(expected), expected);
+
+            ByteOutput actual = new ByteOutput();
+            String compiled = translate(f, (ToDeriveReadVisitor)generated.newInstance(actual), actual);
+
+            if(!interpreted.equals(compiled)) {
+                mismatches++;
+                System.out.println("MISMATCH " + f);
+            }
+        }
+
+        System.out.println(files.size() + " files, " + mismatches + " mismatches");
+        return mismatches;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length == 2 && args[0].equals("--conformance")) {
+            System.exit(conformance(new File(args[1])) == 0 ? 0 : 1);
+        }
+
+        Writer out = new BufferedWriter(new FileWriter(args[0]));
+        try {
+            out.write(generate());
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * JMH benchmarks for the phases of a translation, on a few representative
+ * files from testfiles/: a small one (10th percentile by size), the
+ * median one, PHPParser.java and Server.java.
+ *
+ *   parse      JavaParser.parse on the source, held in memory
+ *   translate  the visitor over an already parsed tree, into a sink that
+ *              discards its bytes, so that only the tree walk and the
+ *              formatting are measured
+ *   convert    file to file, as JavaparserToHS.translate(File, File)
+ *
+ * Build and run with bench/build.sh and bench/run.sh; run.sh passes its
+ * arguments on to JMH, and adds the GC profiler for allocation rates.
+ *
+ * JMH does not accept benchmarks in the default package, and classes in
+ * it cannot be named from any other, so the translator's classes are
+ * reached through method handles looked up once per trial.
+ *
+ * @author James Koppel
+ */
+
+package bench;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import japa.parser.JavaParser;
+import japa.parser.ast.CompilationUnit;
+import japa.parser.ast.visitor.VoidVisitor;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TranslatorBenchmark {
+
+    @Param({"RenamePackageDialog.java", "InfoAction.java", "PHPParser.java", "Server.java"})
+    public String file;
+
+    @Param("testfiles")
+    public String dir;
+
+    private byte[] source;
+    private CompilationUnit tree;
+    private File in;
+    private File out;
+
+    private MethodHandle newByteOutput;
+    private MethodHandle newVisitor;
+    private MethodHandle flush;
+    private MethodHandle convert;
+
+    /*
+     * Counts what is written to it, so that the writes cannot be elided
+     */
+    private static class NullChannel implements WritableByteChannel {
+        long written = 0;
+
+        public int write(ByteBuffer b) {
+            int n = b.remaining();
+            b.position(b.limit());
+            written += n;
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        in = new File(dir, file);
+        source = new byte[(int)in.length()];
+        DataInputStream s = new DataInputStream(new FileInputStream(in));
+        try {
+            s.readFully(source);
+        } finally {
+            s.close();
+        }
+        tree = JavaParser.parse(new ByteArrayInputStream(source));
+
+        out = File.createTempFile("bench", ".hs");
+        out.deleteOnExit();
+
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        Class<?> byteOutput = Class.forName("ByteOutput");
+        Class<?> visitor = Class.forName("GeneratedDeriveReadVisitor");
+        newByteOutput = lookup.findConstructor(byteOutput, MethodType.methodType(void.class, WritableByteChannel.class));
+        newVisitor = lookup.findConstructor(visitor, MethodType.methodType(void.class, byteOutput));
+        flush = lookup.findVirtual(byteOutput, "flush", MethodType.methodType(void.class));
+        convert = lookup.findStatic(Class.forName("JavaparserToHS"), "translate",
+                                    MethodType.methodType(Class.forName("ToDeriveReadVisitor"), File.class, File.class));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        out.delete();
+    }
+
+    @Benchmark
+    public CompilationUnit parse() throws Exception {
+        return JavaParser.parse(new ByteArrayInputStream(source));
+    }
+
+    @Benchmark
+    public long translate() throws Throwable {
+        NullChannel sink = new NullChannel();
+        Object bytes = newByteOutput.invoke(sink);
+        tree.accept((VoidVisitor)newVisitor.invoke(bytes), null);
+        flush.invoke(bytes);
+        return sink.written;
+    }
+
+    @Benchmark
+    public Object convert() throws Throwable {
+        return convert.invoke(in, out);
+    }
+}
@@ -0,0 +1,21 @@
+#!/bin/bash
+
+# Runs EmitBenchmark under the GC profiler and fails if the tree walk
+# allocates more than LIMIT bytes per generated method (97 nodes), 256 by
+# default, just above the 243 measured. Build first with bench/build.sh.
+
+cd "$(dirname "$0")/.."
+
+JMH_CP=$(echo $JMH_LIB/*.jar | tr ' ' ':')
+CP=javaparser-1.0.8.jar:commons-lang3-3.1.jar
+LIMIT=${LIMIT:-256}
+METHODS=200
+CSV=bench/allocgate.csv
+
+java -cp bench/classes:$CP:$JMH_CP org.openjdk.jmh.Main -prof gc -p methods=$METHODS \
+     -rf csv -rff $CSV 'bench.EmitBenchmark.emit$' || exit 1
+
+# the score of the gc.alloc.rate.norm row, in bytes per op
+NORM=$(grep 'gc.alloc.rate.norm' $CSV | head -1 | awk -F, '{ print $5 }')
+echo "$NORM bytes per op, limit $((LIMIT * METHODS))"
+awk -v n="$NORM" -v max=$((LIMIT * METHODS)) 'BEGIN { exit !(n <= max) }'
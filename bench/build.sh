@@ -0,0 +1,20 @@
+#!/bin/bash
+
+# Builds the JMH benchmarks into bench/classes. JMH_LIB must name a
+# directory holding the JMH jars: jmh-core, jmh-generator-annprocess,
+# jopt-simple and commons-math3.
+
+set -e
+
+cd "$(dirname "$0")/.."
+
+JMH_CP=$(echo $JMH_LIB/*.jar | tr ' ' ':')
+CP=javaparser-1.0.8.jar:commons-lang3-3.1.jar
+
+rm -rf bench/classes
+mkdir -p bench/classes
+
+javac --release 8 -cp $CP -sourcepath . -d bench/classes VisitorGenerator.java
+java -cp $CP:bench/classes VisitorGenerator GeneratedDeriveReadVisitor.java
+javac --release 8 -cp $CP -d bench/classes *.java
+javac --release 8 -cp $CP:$JMH_CP:bench/classes -processor org.openjdk.jmh.generators.BenchmarkProcessor -d bench/classes bench/*.java
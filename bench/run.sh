@@ -0,0 +1,12 @@
+#!/bin/bash
+
+# Runs the benchmarks built by build.sh, with allocation rates from the GC
+# profiler. Any arguments go to JMH, e.g. a benchmark regex, or
+# "-p file=Server.java" to run on one file only.
+
+cd "$(dirname "$0")/.."
+
+JMH_CP=$(echo $JMH_LIB/*.jar | tr ' ' ':')
+CP=javaparser-1.0.8.jar:commons-lang3-3.1.jar
+
+java -cp bench/classes:$CP:$JMH_CP org.openjdk.jmh.Main -prof gc "$@"
@@ -1,9 +1,16 @@
 #!/bin/bash
 
-javac -cp javaparser-1.0.8.jar:commons-lang3-3.1.jar:. *.java
+CP=javaparser-1.0.8.jar:commons-lang3-3.1.jar:.
+
+javac -cp $CP VisitorGenerator.java
+java -cp $CP VisitorGenerator GeneratedDeriveReadVisitor.java
+javac -cp $CP *.java
+java -cp $CP AstSchema JavaAstDecoder.hs || exit 1
+java -cp $CP LiteralCheck testfiles || exit 1
 ./makejar.sh
 ghc Test.hs
+ghc DecodeBench.hs
 
 rm *.class
 rm *.hi
-rm *.o
\ No newline at end of file
+rm *.o
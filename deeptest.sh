@@ -0,0 +1,11 @@
+#!/bin/bash
+
+#Translates syntax trees nested deeper than 100000 levels, built directly since javaparser
+#itself would overflow parsing them, on a 256 KB stack. Exits 1 if translation overflows
+#or its output is not what it should be. Takes the depth as an optional argument.
+
+cd "$(dirname "$0")"
+
+CP=javaparser-to-hs.jar:javaparser-1.0.8.jar:commons-lang3-3.1.jar
+
+java -Xss256k -cp $CP DeepNesting $1
@@ -1,6 +1,8 @@
 #!/bin/bash
 
 #This file is intended for use with the Berkeley Delta Debugging tool
+#A file is interesting if it parses but does not survive the round trip. Test exits with 2
+#if it does not parse, which the translator finds out in the one parse it does anyway.
 
-CLASSPATH=/Users/jkoppel/tarski/tools/javaparser-to-hs/javaparser-1.0.8.jar:/Users/jkoppel/tarski/tools/javaparser-to-hs/commons-lang3-3.1.jar:/Users/jkoppel/tarski/tools/javaparser-to-hs/javaparser-to-hs.jar:/Users/jkoppel/tarski/tools/javaparser-to-hs
-java -cp ../..:../../javaparser-1.0.8.jar CheckParses $1 && ! /Users/jkoppel/tarski/tools/javaparser-to-hs/Test $1
+/Users/jkoppel/tarski/tools/javaparser-to-hs/Test $1
+[ $? -eq 1 ]
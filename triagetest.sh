@@ -0,0 +1,31 @@
+#!/bin/bash
+
+#Checks that --triage files small sources under the kind each belongs to. A file that does
+#not parse is a parse error even if it holds an @interface, which the translator would
+#otherwise report as unsupported. Exits 1 if any file is misfiled.
+
+cd "$(dirname "$0")"
+
+CP=javaparser-to-hs.jar:javaparser-1.0.8.jar:commons-lang3-3.1.jar
+
+DIR=$(mktemp -d)
+trap 'rm -rf "$DIR"' EXIT
+STATUS=0
+
+expect() {
+    echo "$3" > "$DIR/$2.java"
+    if ! java -cp $CP JavaparserToHS --triage -o "$DIR/out" -x $1 "$DIR/$2.java" > /dev/null; then
+        echo "FAIL: $2 is not $1"
+        STATUS=1
+    fi
+}
+
+expect parse MalformedAnnotationDeclaration 'public @interface Foo { int x( }'
+expect parse MalformedAnnotationDeclarationMember 'class Foo { @interface Bar {} int y( }'
+expect parse Malformed 'class Foo { int x( }'
+expect unsupported AnnotationDeclaration 'public @interface Foo { int x(); }'
+expect unsupported EmptyMemberDeclaration 'class Foo { ; }'
+expect translated Plain 'class Foo { int x() { return 1; } }'
+
+[ $STATUS -eq 0 ] && echo "ok"
+exit $STATUS